@@ -0,0 +1,89 @@
+package alvinw.cryptography.benchmark;
+
+import alvinw.cryptography.CryptoUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the primitives in {@link CryptoUtils} at several payload sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+    @Param({"64", "4096", "65536", "1048576"})
+    public int payloadSize;
+
+    private byte[] payload;
+    private byte[] fileId;
+    private SecretKey key;
+    private byte[] iv;
+    private long counter;
+    private byte[] cipherText;
+    private byte[] decryptIv;
+    private KeyPair keyPair;
+    private byte[] signature;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        this.payload = CryptoUtils.randomBytes(this.payloadSize);
+        this.fileId = CryptoUtils.sha256("benchmark".getBytes());
+        this.key = CryptoUtils.deriveAesKeyFromPasswordAndNonce("password", CryptoUtils.randomBytes(16));
+        this.iv = CryptoUtils.randomBytes(12);
+        this.decryptIv = CryptoUtils.randomBytes(12);
+        this.cipherText = CryptoUtils.aesGcmEncrypt(this.key, this.decryptIv, this.payload, this.fileId);
+        this.keyPair = CryptoUtils.generateKeyPair();
+        this.signature = CryptoUtils.signWithRsa(this.keyPair.getPrivate(), CryptoUtils.sha256(this.payload));
+    }
+
+    @Benchmark
+    public byte[] sha256() {
+        return CryptoUtils.sha256(this.payload);
+    }
+
+    @Benchmark
+    public byte[] aesGcmEncrypt() throws GeneralSecurityException {
+        // AES-GCM refuses to encrypt twice with the same key and iv
+        ByteBuffer.wrap(this.iv).putLong(4, ++this.counter);
+        return CryptoUtils.aesGcmEncrypt(this.key, this.iv, this.payload, this.fileId);
+    }
+
+    @Benchmark
+    public byte[] aesGcmDecrypt() throws GeneralSecurityException {
+        return CryptoUtils.aesGcmDecrypt(this.key, this.decryptIv, this.cipherText, this.fileId);
+    }
+
+    /**
+     * Hash the payload and sign the hash, as the client does with a file.
+     */
+    @Benchmark
+    public byte[] rsaSign() throws GeneralSecurityException {
+        return CryptoUtils.signWithRsa(this.keyPair.getPrivate(), CryptoUtils.sha256(this.payload));
+    }
+
+    /**
+     * Hash the payload and verify the signature of the hash.
+     */
+    @Benchmark
+    public boolean rsaVerify() throws GeneralSecurityException {
+        return CryptoUtils.verifyWithRsa(this.keyPair.getPublic(), CryptoUtils.sha256(this.payload), this.signature);
+    }
+}
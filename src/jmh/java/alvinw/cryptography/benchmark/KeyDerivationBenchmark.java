@@ -0,0 +1,48 @@
+package alvinw.cryptography.benchmark;
+
+import alvinw.cryptography.CryptoUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of deriving the key of a file, with PBKDF2 from the password and
+ * with HKDF from a master key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyDerivationBenchmark {
+    private byte[] nonce;
+    private SecretKey masterKey;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        this.nonce = CryptoUtils.randomBytes(16);
+        this.masterKey = CryptoUtils.deriveMasterKey("password", CryptoUtils.randomBytes(16));
+    }
+
+    @Benchmark
+    public SecretKey pbkdf2() throws GeneralSecurityException {
+        return CryptoUtils.deriveAesKeyFromPasswordAndNonce("password", this.nonce);
+    }
+
+    @Benchmark
+    public SecretKey hkdf() throws GeneralSecurityException {
+        return CryptoUtils.deriveAesKeyFromMasterKeyAndNonce(this.masterKey, this.nonce);
+    }
+}
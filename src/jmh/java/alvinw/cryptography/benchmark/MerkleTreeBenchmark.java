@@ -0,0 +1,115 @@
+package alvinw.cryptography.benchmark;
+
+import alvinw.cryptography.merkle.ComplementingHash;
+import alvinw.cryptography.merkle.FileInfo;
+import alvinw.cryptography.merkle.FlatMerkleTree;
+import alvinw.cryptography.merkle.LeafNode;
+import alvinw.cryptography.merkle.MerkleTree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of building Merkle trees and of creating and verifying proofs,
+ * across tree sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MerkleTreeBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int fileCount;
+
+    /**
+     * {@code node} for the tree of nodes, or {@code flat} for the tree stored in
+     * one buffer.
+     */
+    @Param({"node", "flat"})
+    public String implementation;
+
+    private Set<FileInfo> files;
+    private MerkleTree tree;
+    private byte[] topHash;
+    private List<byte[]> fileIds;
+    private List<byte[]> hashes;
+    private List<List<ComplementingHash>> proofs;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        this.files = new HashSet<>(this.fileCount);
+        for (int i = 0; i < this.fileCount; i++) {
+            byte[] fileId = new byte[32];
+            byte[] hash = new byte[32];
+            random.nextBytes(fileId);
+            random.nextBytes(hash);
+            this.files.add(FileInfo.ofHash(fileId, hash));
+        }
+        this.tree = this.build();
+        this.topHash = this.tree.getTopHash();
+
+        // Prove a fixed sample of the files in turn
+        this.fileIds = new ArrayList<>();
+        this.hashes = new ArrayList<>();
+        this.proofs = new ArrayList<>();
+        for (FileInfo file : this.files) {
+            if (this.fileIds.size() == 1024) {
+                break;
+            }
+            this.fileIds.add(file.getFileId());
+            this.hashes.add(file.getSha256());
+            this.proofs.add(this.tree.getComplementingHashes(file.getFileId()));
+        }
+    }
+
+    private MerkleTree build() {
+        return "flat".equals(this.implementation)
+            ? FlatMerkleTree.fromFiles(this.files, false)
+            : MerkleTree.fromFiles(this.files);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public byte[] fromFiles() {
+        return this.build().getTopHash();
+    }
+
+    @Benchmark
+    public List<ComplementingHash> getComplementingHashes() {
+        return this.tree.getComplementingHashes(this.fileIds.get(this.nextIndex()));
+    }
+
+    @Benchmark
+    public boolean verifyFile() {
+        int index = this.nextIndex();
+        return MerkleTree.verifyFile(new LeafNode(this.hashes.get(index)), this.topHash, this.proofs.get(index));
+    }
+
+    private int nextIndex() {
+        int index = this.next;
+        this.next = (index + 1) % this.fileIds.size();
+        return index;
+    }
+}
@@ -0,0 +1,104 @@
+package alvinw.cryptography.benchmark;
+
+import alvinw.cryptography.CryptoUtils;
+import alvinw.cryptography.client.Client;
+import alvinw.cryptography.server.Server;
+import alvinw.cryptography.server.ServerConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of uploading and reading files through a {@link Server} running in
+ * the same process, over HTTP on the loopback interface.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+    @Param({"1024", "1048576"})
+    public int fileSize;
+
+    private Path root;
+    private Server server;
+    private Client client;
+    private Path file;
+    private String fileName;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, GeneralSecurityException {
+        this.root = Files.createTempDirectory("benchmark");
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        this.server = new Server(this.root.resolve("server"), ServerConfig.defaults().withPort(port));
+        this.server.start();
+
+        Path clientRoot = Files.createDirectories(this.root.resolve("client"));
+        this.client = new Client(clientRoot, new URL("http://localhost:" + port), "password");
+        this.file = this.root.resolve("file.bin");
+        Files.write(this.file, CryptoUtils.randomBytes(this.fileSize));
+        this.fileName = this.file.getFileName().toString();
+        this.client.upload(this.file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.server.stop();
+        try (Stream<Path> paths = Files.walk(this.root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Encrypt, sign and upload the file, replacing the previous version.
+     */
+    @Benchmark
+    public void upload() throws IOException, GeneralSecurityException {
+        this.client.upload(this.file);
+    }
+
+    /**
+     * Download, decrypt and verify the file.
+     */
+    @Benchmark
+    public boolean read() throws IOException, GeneralSecurityException {
+        return this.client.read(this.fileName, OutputStream.nullOutputStream());
+    }
+
+    /**
+     * Upload the file and read it back.
+     */
+    @Benchmark
+    public boolean roundTrip() throws IOException, GeneralSecurityException {
+        this.client.upload(this.file);
+        return this.client.read(this.fileName, OutputStream.nullOutputStream());
+    }
+}
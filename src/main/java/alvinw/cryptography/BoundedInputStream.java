@@ -0,0 +1,68 @@
+package alvinw.cryptography;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream of a part of another stream, which ends after a given amount
+ * of bytes. Used to read one frame at a time from a stream of several frames.
+ * <p>
+ * Closing the stream does not close the underlying stream.
+ */
+public class BoundedInputStream extends FilterInputStream {
+    private final byte[] singleByte = new byte[1];
+    private long remaining;
+
+    /**
+     * Create a bounded input stream.
+     *
+     * @param in The underlying stream.
+     * @param length The amount of bytes to read from the underlying stream.
+     */
+    public BoundedInputStream(InputStream in, long length) {
+        super(in);
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return this.read(this.singleByte, 0, 1) == -1 ? -1 : this.singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (this.remaining == 0) {
+            return -1;
+        }
+        int read = this.in.read(b, off, (int) Math.min(len, this.remaining));
+        if (read == -1) {
+            throw new EOFException("The stream ended " + this.remaining + " bytes too early");
+        }
+        this.remaining -= read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = this.in.skip(Math.min(n, this.remaining));
+        this.remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(this.in.available(), this.remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        // The underlying stream is closed by its owner
+    }
+}
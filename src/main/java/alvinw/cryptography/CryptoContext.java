@@ -0,0 +1,264 @@
+package alvinw.cryptography;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * Reusable instances of the crypto primitives for one thread.
+ * <p>
+ * Looking up a {@link MessageDigest}, {@link Cipher} or {@link KeyFactory} goes
+ * through the security providers every time, which costs more than hashing a
+ * few bytes. A context keeps one instance of each for the thread that owns it,
+ * created the first time it is needed, and every method uses it from start to
+ * finish, so calls can not interfere with each other. Use {@link #get()} to get
+ * the context of the current thread, and never pass it to another thread.
+ * <p>
+ * Random bytes come from one {@link SecureRandom} shared by all threads, since
+ * it is thread safe and expensive to seed.
+ */
+public final class CryptoContext {
+    public static final int SHA_256_SIZE = 256 / 8;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<CryptoContext> CONTEXT = ThreadLocal.withInitial(CryptoContext::new);
+
+    private final MessageDigest sha256 = CryptoUtils.newSha256();
+    private @Nullable Cipher aesGcm;
+    private @Nullable Mac hmacSha256;
+    private @Nullable Cipher rsa;
+    private @Nullable KeyFactory rsaKeyFactory;
+
+    private CryptoContext() {
+    }
+
+    /**
+     * Get the context of the current thread.
+     *
+     * @return The context.
+     */
+    public static CryptoContext get() {
+        return CONTEXT.get();
+    }
+
+    /**
+     * Get the secure random number generator shared by all threads.
+     *
+     * @return The random number generator.
+     */
+    public static SecureRandom random() {
+        return RANDOM;
+    }
+
+    /**
+     * Calculate the SHA-256 hash of some bytes.
+     *
+     * @param content The bytes.
+     * @return The hash.
+     */
+    public byte[] sha256(byte[] content) {
+        return this.sha256.digest(content);
+    }
+
+    /**
+     * Calculate the SHA-256 hash of a part of an array.
+     *
+     * @param content The array.
+     * @param offset The start of the part.
+     * @param length The length of the part.
+     * @return The hash.
+     */
+    public byte[] sha256(byte[] content, int offset, int length) {
+        this.sha256.update(content, offset, length);
+        return this.sha256.digest();
+    }
+
+    /**
+     * Calculate the SHA-256 hash of two hashes after each other, without
+     * concatenating them first. This is the hash of a node in a Merkle tree.
+     *
+     * @param a The first hash.
+     * @param b The second hash, or null to hash only the first one.
+     * @return The hash.
+     */
+    public byte[] sha256(byte[] a, byte @Nullable [] b) {
+        this.sha256.update(a);
+        if (b != null) {
+            this.sha256.update(b);
+        }
+        return this.sha256.digest();
+    }
+
+    /**
+     * Calculate the SHA-256 hash of the remaining bytes of a buffer, and put it in
+     * another buffer.
+     *
+     * @param input The buffer to hash, whose position is moved to its limit.
+     * @param output The buffer to put the hash in, with at least
+     *               {@link #SHA_256_SIZE} bytes remaining. Its position is moved
+     *               past the hash.
+     */
+    public void sha256(ByteBuffer input, ByteBuffer output) {
+        this.sha256.update(input);
+        if (output.hasArray()) {
+            try {
+                this.sha256.digest(output.array(), output.arrayOffset() + output.position(), SHA_256_SIZE);
+            } catch (DigestException e) {
+                this.sha256.reset();
+                throw new IllegalArgumentException("Not enough room for the hash", e);
+            }
+            output.position(output.position() + SHA_256_SIZE);
+        } else {
+            output.put(this.sha256.digest());
+        }
+    }
+
+    /**
+     * Derive a 256 bit key with HKDF using HMAC-SHA256 (RFC 5869).
+     *
+     * @param inputKey The input keying material.
+     * @param salt The salt of the extract step.
+     * @param info The info of the expand step.
+     * @return The key.
+     * @throws GeneralSecurityException If HMAC-SHA256 is not available.
+     */
+    public byte[] hkdfSha256(byte[] inputKey, byte[] salt, byte[] info) throws GeneralSecurityException {
+        if (this.hmacSha256 == null) {
+            this.hmacSha256 = Mac.getInstance(CryptoUtils.HMAC_SHA_256_ALGO);
+        }
+        Mac mac = this.hmacSha256;
+        // Extract
+        mac.init(new SecretKeySpec(salt, CryptoUtils.HMAC_SHA_256_ALGO));
+        byte[] pseudoRandomKey = mac.doFinal(inputKey);
+        // Expand, where a single block is enough for a 256 bit key
+        mac.init(new SecretKeySpec(pseudoRandomKey, CryptoUtils.HMAC_SHA_256_ALGO));
+        mac.update(info);
+        mac.update((byte) 1);
+        return mac.doFinal();
+    }
+
+    /**
+     * Encrypt the remaining bytes of a buffer with AES-GCM.
+     *
+     * @param key The key.
+     * @param iv The initial values, which must never be used twice with the same
+     *           key.
+     * @param associatedData The additional data to authenticate.
+     * @param plainText The plaintext, whose position is moved to its limit.
+     * @param cipherText The buffer to put the ciphertext and tag in.
+     * @return The length of the ciphertext, including the tag.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    public int aesGcmEncrypt(SecretKey key, byte[] iv, byte[] associatedData, ByteBuffer plainText, ByteBuffer cipherText) throws GeneralSecurityException {
+        Cipher cipher = this.initAesGcm(Cipher.ENCRYPT_MODE, key, iv, associatedData);
+        return cipher.doFinal(plainText, cipherText);
+    }
+
+    /**
+     * Decrypt and authenticate the remaining bytes of a buffer with AES-GCM.
+     *
+     * @param key The key.
+     * @param iv The initial values.
+     * @param associatedData The additional data to authenticate.
+     * @param cipherText The ciphertext and tag, whose position is moved to its
+     *                   limit.
+     * @param plainText The buffer to put the plaintext in.
+     * @return The length of the plaintext.
+     * @throws GeneralSecurityException If the ciphertext is not authentic.
+     */
+    public int aesGcmDecrypt(SecretKey key, byte[] iv, byte[] associatedData, ByteBuffer cipherText, ByteBuffer plainText) throws GeneralSecurityException {
+        Cipher cipher = this.initAesGcm(Cipher.DECRYPT_MODE, key, iv, associatedData);
+        return cipher.doFinal(cipherText, plainText);
+    }
+
+    /**
+     * Encrypt or decrypt an array with AES-GCM.
+     *
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+     * @param key The key.
+     * @param iv The initial values.
+     * @param input The plaintext or ciphertext.
+     * @param associatedData The additional data to authenticate.
+     * @return The ciphertext or plaintext.
+     * @throws GeneralSecurityException If encryption fails or the ciphertext is
+     * not authentic.
+     */
+    public byte[] aesGcm(int mode, SecretKey key, byte[] iv, byte[] input, byte[] associatedData) throws GeneralSecurityException {
+        return this.initAesGcm(mode, key, iv, associatedData).doFinal(input);
+    }
+
+    private Cipher initAesGcm(int mode, SecretKey key, byte[] iv, byte[] associatedData) throws GeneralSecurityException {
+        if (this.aesGcm == null) {
+            this.aesGcm = Cipher.getInstance(CryptoUtils.AES_GCM_ALGO);
+        }
+        this.aesGcm.init(mode, key, new GCMParameterSpec(CryptoUtils.GCM_TAG_LENGTH, iv));
+        this.aesGcm.updateAAD(associatedData);
+        return this.aesGcm;
+    }
+
+    /**
+     * Sign a message with RSA.
+     *
+     * @param privateKey The private key.
+     * @param message The message, such as a hash.
+     * @return The signature.
+     * @throws GeneralSecurityException If signing fails.
+     */
+    public byte[] signWithRsa(PrivateKey privateKey, byte[] message) throws GeneralSecurityException {
+        Cipher cipher = this.rsa();
+        cipher.init(Cipher.ENCRYPT_MODE, privateKey);
+        return cipher.doFinal(message);
+    }
+
+    /**
+     * Verify an RSA signature.
+     *
+     * @param publicKey The public key.
+     * @param expectedMessage The message that should have been signed.
+     * @param signature The signature.
+     * @return Whether the signature signs the message.
+     * @throws GeneralSecurityException If the signature can not be decrypted.
+     */
+    public boolean verifyWithRsa(PublicKey publicKey, byte[] expectedMessage, byte[] signature) throws GeneralSecurityException {
+        Cipher cipher = this.rsa();
+        cipher.init(Cipher.DECRYPT_MODE, publicKey);
+        byte[] foundMessage = cipher.doFinal(signature);
+        return MessageDigest.isEqual(foundMessage, expectedMessage);
+    }
+
+    public PublicKey readPublicKey(byte[] bytes) throws GeneralSecurityException {
+        return this.rsaKeyFactory().generatePublic(new X509EncodedKeySpec(bytes));
+    }
+
+    public PrivateKey readPrivateKey(byte[] bytes) throws GeneralSecurityException {
+        return this.rsaKeyFactory().generatePrivate(new PKCS8EncodedKeySpec(bytes));
+    }
+
+    private Cipher rsa() throws GeneralSecurityException {
+        if (this.rsa == null) {
+            this.rsa = Cipher.getInstance(CryptoUtils.RSA_ALGO);
+        }
+        return this.rsa;
+    }
+
+    private KeyFactory rsaKeyFactory() throws GeneralSecurityException {
+        if (this.rsaKeyFactory == null) {
+            this.rsaKeyFactory = KeyFactory.getInstance(CryptoUtils.RSA_ALGO);
+        }
+        return this.rsaKeyFactory;
+    }
+}
@@ -3,23 +3,17 @@ package alvinw.cryptography;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
-import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
-import java.security.spec.EncodedKeySpec;
 import java.security.spec.KeySpec;
-import java.security.spec.PKCS8EncodedKeySpec;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Arrays;
 import java.util.HexFormat;
 
 /**
@@ -30,43 +24,85 @@ public class CryptoUtils {
     public static final String AES_ALGO = "AES";
     public static final String PBKDF2_ALGO = "PBKDF2WithHmacSHA256";
     public static final String SHA_256_ALGO = "SHA-256";
+    public static final String HMAC_SHA_256_ALGO = "HmacSHA256";
+    public static final int PBKDF2_ITERATIONS = 65536;
     public static final String RSA_ALGO = "RSA";
     public static final int RSA_SIZE = 2048;
+    /**
+     * The length of the AES-GCM authentication tag in bits.
+     */
+    public static final int GCM_TAG_LENGTH = 128;
+    private static final byte[] HKDF_FILE_KEY_INFO = "alvinw file key".getBytes(StandardCharsets.US_ASCII);
 
     public static byte[] randomBytes(int length) {
         byte[] nonce = new byte[length];
-        new SecureRandom().nextBytes(nonce);
+        CryptoContext.random().nextBytes(nonce);
         return nonce;
     }
 
     public static SecretKey deriveAesKeyFromPasswordAndNonce(String password, byte[] nonce) throws GeneralSecurityException {
         SecretKeyFactory factory = SecretKeyFactory.getInstance(PBKDF2_ALGO);
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), nonce, 65536, 256);
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), nonce, PBKDF2_ITERATIONS, 256);
         return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), AES_ALGO);
     }
 
-    public static byte[] sha256(byte[] content) {
+    /**
+     * Derive a master key from a password. This is as slow as
+     * {@link #deriveAesKeyFromPasswordAndNonce(String, byte[])}, so the master key
+     * should be derived once and then used to derive the key of each file with
+     * {@link #deriveAesKeyFromMasterKeyAndNonce(SecretKey, byte[])}.
+     *
+     * @param password The password.
+     * @param salt The salt.
+     * @return The master key.
+     * @throws GeneralSecurityException If PBKDF2 is not available.
+     */
+    public static SecretKey deriveMasterKey(String password, byte[] salt) throws GeneralSecurityException {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(PBKDF2_ALGO);
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, PBKDF2_ITERATIONS, 256);
+        return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), HMAC_SHA_256_ALGO);
+    }
+
+    /**
+     * Derive the AES key of a file from a master key and the nonce of the file,
+     * using HKDF with SHA-256 (RFC 5869). The nonce is the salt of the extract
+     * step, so every file gets its own key at the cost of two HMACs.
+     *
+     * @param masterKey The master key.
+     * @param nonce The nonce of the file.
+     * @return The AES key.
+     * @throws GeneralSecurityException If HMAC-SHA256 is not available.
+     */
+    public static SecretKey deriveAesKeyFromMasterKeyAndNonce(SecretKey masterKey, byte[] nonce) throws GeneralSecurityException {
+        byte[] key = CryptoContext.get().hkdfSha256(masterKey.getEncoded(), nonce, HKDF_FILE_KEY_INFO);
+        return new SecretKeySpec(key, AES_ALGO);
+    }
+
+    /**
+     * Create a message digest that calculates SHA-256 hashes incrementally. Use
+     * {@link CryptoContext} instead to hash something all at once.
+     *
+     * @return The message digest.
+     */
+    public static MessageDigest newSha256() {
         try {
-            MessageDigest sha256 = MessageDigest.getInstance(SHA_256_ALGO);
-            return sha256.digest(content);
+            return MessageDigest.getInstance(SHA_256_ALGO);
         } catch (NoSuchAlgorithmException e) {
             // All Java implementations are forced to implement SHA-256. Should never throw.
             throw new RuntimeException(e);
         }
     }
 
+    public static byte[] sha256(byte[] content) {
+        return CryptoContext.get().sha256(content);
+    }
+
     public static byte[] aesGcmEncrypt(SecretKey key, byte[] iv, byte[] plainText, byte[] associatedData) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance(AES_GCM_ALGO);
-        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
-        cipher.updateAAD(associatedData);
-        return cipher.doFinal(plainText);
+        return CryptoContext.get().aesGcm(Cipher.ENCRYPT_MODE, key, iv, plainText, associatedData);
     }
 
     public static byte[] aesGcmDecrypt(SecretKey key, byte[] iv, byte[] cipherText, byte[] associatedData) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance(AES_GCM_ALGO);
-        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
-        cipher.updateAAD(associatedData);
-        return cipher.doFinal(cipherText);
+        return CryptoContext.get().aesGcm(Cipher.DECRYPT_MODE, key, iv, cipherText, associatedData);
     }
 
     public static String hexString(byte[] bytes) {
@@ -79,32 +115,23 @@ public class CryptoUtils {
 
     public static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
         KeyPairGenerator generator = KeyPairGenerator.getInstance(RSA_ALGO);
-        generator.initialize(RSA_SIZE);
+        generator.initialize(RSA_SIZE, CryptoContext.random());
         return generator.generateKeyPair();
     }
 
     public static PublicKey readPublicKey(byte[] bytes) throws GeneralSecurityException {
-        KeyFactory keyFactory = KeyFactory.getInstance(RSA_ALGO);
-        EncodedKeySpec spec = new X509EncodedKeySpec(bytes);
-        return keyFactory.generatePublic(spec);
+        return CryptoContext.get().readPublicKey(bytes);
     }
 
     public static PrivateKey readPrivateKey(byte[] bytes) throws GeneralSecurityException {
-        KeyFactory keyFactory = KeyFactory.getInstance(RSA_ALGO);
-        EncodedKeySpec spec = new PKCS8EncodedKeySpec(bytes);
-        return keyFactory.generatePrivate(spec);
+        return CryptoContext.get().readPrivateKey(bytes);
     }
 
     public static byte[] signWithRsa(PrivateKey privateKey, byte[] message) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance(RSA_ALGO);
-        cipher.init(Cipher.ENCRYPT_MODE, privateKey);
-        return cipher.doFinal(message);
+        return CryptoContext.get().signWithRsa(privateKey, message);
     }
 
     public static boolean verifyWithRsa(PublicKey publicKey, byte[] expectedMessage, byte[] signature) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance(RSA_ALGO);
-        cipher.init(Cipher.DECRYPT_MODE, publicKey);
-        byte[] foundMessage = cipher.doFinal(signature);
-        return Arrays.equals(foundMessage, expectedMessage);
+        return CryptoContext.get().verifyWithRsa(publicKey, expectedMessage, signature);
     }
 }
@@ -1,44 +1,67 @@
 package alvinw.cryptography.client;
 
+import alvinw.cryptography.BoundedInputStream;
+import alvinw.cryptography.CryptoContext;
 import alvinw.cryptography.CryptoUtils;
+import alvinw.cryptography.merkle.ChunkTree;
 import alvinw.cryptography.merkle.ComplementingHash;
 import alvinw.cryptography.merkle.LeafNode;
 import alvinw.cryptography.merkle.MerkleTree;
+import alvinw.cryptography.merkle.MultiProof;
+import alvinw.cryptography.merkle.ProofFormat;
 import alvinw.cryptography.server.Server;
 import org.jetbrains.annotations.Nullable;
 
 import javax.crypto.SecretKey;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A client that can connect to the server and upload, read, and verify files.
  */
 public class Client {
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
     private final Path root;
     private final URL serverUrl;
     private final String password;
+    private final FileKeys fileKeys;
+    private @Nullable PublicKey publicKey;
+    private @Nullable PrivateKey privateKey;
+    private byte @Nullable [] keySalt;
 
     public Client(Path root, URL serverUrl, String password) {
         this.root = root;
         this.serverUrl = serverUrl;
         this.password = password;
+        this.fileKeys = new FileKeys(password);
     }
 
     public static void main(String[] args) throws IOException, GeneralSecurityException {
@@ -53,7 +76,7 @@ public class Client {
         label:
         while (true) {
             System.out.println("What do you want to do?");
-            System.out.println("(upload, read, verify, exit)");
+            System.out.println("(upload, upload-many, read, read-many, read-range, verify, reanchor, exit)");
             String action = scanner.nextLine().trim();
             if ("exit".equals(action)) {
                 break;
@@ -68,6 +91,24 @@ public class Client {
                     }
                     client.upload(path);
                 }
+                case "upload-many" -> {
+                    System.out.println("Enter the paths of the files to upload, one per line, followed by an empty line:");
+                    List<Path> paths = new ArrayList<>();
+                    String line;
+                    while (!(line = scanner.nextLine().trim()).isEmpty()) {
+                        Path path = Path.of(line);
+                        if (Files.notExists(path)) {
+                            System.err.println("File not found: " + path);
+                            continue;
+                        }
+                        paths.add(path);
+                    }
+                    if (paths.isEmpty()) {
+                        System.err.println("No files to upload");
+                        continue;
+                    }
+                    client.uploadBatch(paths);
+                }
                 case "read" -> {
                     System.out.println("Enter the file name of the file to read:");
                     String fileName = scanner.nextLine().trim();
@@ -80,7 +121,58 @@ public class Client {
                     }
                     System.out.println();
                 }
+                case "read-many" -> {
+                    System.out.println("Enter the file names of the files to read, one per line, followed by an empty line:");
+                    List<String> fileNames = new ArrayList<>();
+                    String line;
+                    while (!(line = scanner.nextLine().trim()).isEmpty()) {
+                        fileNames.add(line);
+                    }
+                    System.out.println();
+                    try {
+                        if (client.readMany(fileNames, System.out)) {
+                            System.out.println();
+                            System.out.println("Files verified. Top hash and signatures match.");
+                        } else {
+                            System.out.println();
+                            System.out.println("Failed to validate files! Top hash or signature does not line up.");
+                        }
+                    } catch (GeneralSecurityException e) {
+                        System.err.println("Failed to decrypt");
+                        System.err.println("error message: " + e);
+                    }
+                    System.out.println();
+                }
+                case "read-range" -> {
+                    System.out.println("Enter the file name of the file to read:");
+                    String fileName = scanner.nextLine().trim();
+                    System.out.println("Enter the position to start reading at:");
+                    long offset = Long.parseLong(scanner.nextLine().trim());
+                    System.out.println("Enter the amount of bytes to read:");
+                    long length = Long.parseLong(scanner.nextLine().trim());
+                    System.out.println();
+                    try {
+                        client.readRange(fileName, offset, length, System.out);
+                        System.out.println();
+                        System.out.println("Range verified. Top hash matches.");
+                    } catch (GeneralSecurityException e) {
+                        System.err.println("Failed to decrypt");
+                        System.err.println("error message: " + e);
+                    } catch (IOException e) {
+                        System.err.println("Failed to read range");
+                        System.err.println("error message: " + e);
+                    }
+                    System.out.println();
+                }
                 case "verify" -> client.verify();
+                case "reanchor" -> {
+                    System.out.println("This replaces the local top hash with the one from the server, without verifying it.");
+                    System.out.println("Only do this after the server was upgraded to a new file hash. Continue? (yes/no)");
+                    if ("yes".equals(scanner.nextLine().trim())) {
+                        client.reanchor();
+                        System.out.println("The top hash was replaced. Read the files to verify their signatures.");
+                    }
+                }
                 default -> System.err.println("Unrecognized option.");
             }
         }
@@ -106,85 +198,98 @@ public class Client {
         }
     }
 
-    public void generateKeyPair() throws NoSuchAlgorithmException, IOException {
+    public synchronized void generateKeyPair() throws NoSuchAlgorithmException, IOException {
         System.out.println("Generating key pair...");
         KeyPair keyPair = CryptoUtils.generateKeyPair();
 
         // Store keys
         Files.write(this.root.resolve("private_key.bin"), keyPair.getPrivate().getEncoded());
         Files.write(this.root.resolve("public_key.pub"), keyPair.getPublic().getEncoded());
+        this.privateKey = keyPair.getPrivate();
+        this.publicKey = keyPair.getPublic();
     }
 
-    public PublicKey getPublicKey() throws IOException, GeneralSecurityException {
+    /**
+     * Get the public key, which is read from disk the first time and then kept in
+     * memory.
+     *
+     * @return The public key.
+     * @throws IOException If an I/O error occurs.
+     * @throws GeneralSecurityException If the key can not be decoded.
+     */
+    public synchronized PublicKey getPublicKey() throws IOException, GeneralSecurityException {
+        if (this.publicKey != null) {
+            return this.publicKey;
+        }
         Path path = this.root.resolve("public_key.pub");
         if (Files.notExists(path)) {
             this.generateKeyPair();
+            return this.publicKey;
         }
         byte[] bytes = Files.readAllBytes(path);
-        return CryptoUtils.readPublicKey(bytes);
+        this.publicKey = CryptoUtils.readPublicKey(bytes);
+        return this.publicKey;
     }
 
-    public PrivateKey getPrivateKey() throws IOException, GeneralSecurityException {
+    /**
+     * Get the private key, which is read from disk the first time and then kept
+     * in memory.
+     *
+     * @return The private key.
+     * @throws IOException If an I/O error occurs.
+     * @throws GeneralSecurityException If the key can not be decoded.
+     */
+    public synchronized PrivateKey getPrivateKey() throws IOException, GeneralSecurityException {
+        if (this.privateKey != null) {
+            return this.privateKey;
+        }
         Path path = this.root.resolve("private_key.bin");
         if (Files.notExists(path)) {
             this.generateKeyPair();
+            return this.privateKey;
         }
         byte[] bytes = Files.readAllBytes(path);
-        return CryptoUtils.readPrivateKey(bytes);
+        this.privateKey = CryptoUtils.readPrivateKey(bytes);
+        return this.privateKey;
     }
 
-    public void upload(Path file) throws IOException, GeneralSecurityException {
-        byte[] plainText = Files.readAllBytes(file);
-
-        // Generate random nonce and iv.
-        // Nonce ensures aes key differs for each file.
-        // iv = initial values for AES-GCM.
-        byte[] nonce = CryptoUtils.randomBytes(16);
-        byte[] iv = CryptoUtils.randomBytes(12);
-        SecretKey aesKey = CryptoUtils.deriveAesKeyFromPasswordAndNonce(this.password, nonce);
-
-        // Calculate file id as the hash of the file name.
-        // The file id is then passed as additional data to AES-GCM.
-        String fileName = file.getFileName().toString();
-        byte[] fileNameHash = CryptoUtils.sha256(fileName.getBytes());
-
-        // Encrypt!
-        byte[] cipherText = CryptoUtils.aesGcmEncrypt(aesKey, iv, plainText, fileNameHash);
-
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        DataOutputStream dataOutput = new DataOutputStream(output);
-        dataOutput.write(nonce);
-        dataOutput.write(iv);
-        dataOutput.writeLong(System.currentTimeMillis()); // prevent replay
-        dataOutput.write(cipherText);
-        byte[] outputBytes = output.toByteArray();
-
-        // Calculate the SHA-256 of the none, iv, timestamp and ciphertext.
-        // This is the SHA-256 hash that we sign.
-        byte[] innerSha256 = CryptoUtils.sha256(outputBytes);
+    /**
+     * Get the salt of the master key that new files are encrypted with. The salt
+     * is generated the first time and stored, so the master key only has to be
+     * derived once per session.
+     *
+     * @return The salt.
+     * @throws IOException If an I/O error occurs.
+     */
+    private synchronized byte[] getKeySalt() throws IOException {
+        if (this.keySalt != null) {
+            return this.keySalt;
+        }
+        Path path = this.root.resolve("key_salt.bin");
+        byte[] salt = Files.exists(path) ? Files.readAllBytes(path) : null;
+        if (salt == null || salt.length != SegmentedEncryption.Header.SALT_SIZE) {
+            salt = CryptoUtils.randomBytes(SegmentedEncryption.Header.SALT_SIZE);
+            Files.write(path, salt);
+        }
+        this.keySalt = salt;
+        return salt;
+    }
 
-        // Sign the inner SHA-256 hash.
-        byte[] signature = CryptoUtils.signWithRsa(this.getPrivateKey(), innerSha256);
+    public void upload(Path file) throws IOException, GeneralSecurityException {
+        EncryptedFile encryptedFile = this.encrypt(file);
 
         // Prepare sending the request to the server.
-        URL uploadUrl = new URL(this.serverUrl, "/upload/" + fileName);
+        URL uploadUrl = new URL(this.serverUrl, "/upload/" + encryptedFile.fileName());
         HttpURLConnection req = (HttpURLConnection) uploadUrl.openConnection();
         req.setRequestMethod("POST");
         req.setDoOutput(true);
-        ByteArrayOutputStream finalBAOS = new ByteArrayOutputStream();
-        DataOutputStream finalOutput = new DataOutputStream(finalBAOS);
-
-        // Write the signature before the other data
-        finalOutput.writeInt(signature.length);
-        finalOutput.write(signature);
-
-        // Write the other output
-        finalOutput.write(outputBytes);
+        req.setFixedLengthStreamingMode(encryptedFile.size());
+        req.setRequestProperty(ProofFormat.ACCEPT_HEADER, ProofFormat.COMPACT.headerValue());
 
-        // Send the data to the server.
-        byte[] finalOutputBytes = finalBAOS.toByteArray();
-        req.getOutputStream().write(finalOutputBytes);
-        req.getOutputStream().close();
+        byte[] sha256;
+        try (OutputStream output = req.getOutputStream()) {
+            sha256 = this.writeEncrypted(encryptedFile, output);
+        }
         if (req.getResponseCode() != HttpURLConnection.HTTP_CREATED) {
             throw HttpResponseException.of(req);
         }
@@ -195,12 +300,7 @@ public class Client {
 
         InputStream input = req.getInputStream();
         DataInputStream dataInput = new DataInputStream(input);
-        List<ComplementingHash> complementingHashes = ComplementingHash.read(dataInput);
-
-        // Calculate the SHA-256 of the entire file, including the prefixed signature.
-        // This is the same SHA-256 hash that the server uses to calculate the
-        // Merkle-tree.
-        byte[] sha256 = CryptoUtils.sha256(finalOutputBytes);
+        List<ComplementingHash> complementingHashes = getProofFormat(req).read(dataInput);
 
         // We can now reconstruct the Merkle tree from the file hash and the
         // complementing hashes we got.
@@ -211,54 +311,353 @@ public class Client {
         setClientTopHash(merkleTree.getTopHash());
     }
 
+    /**
+     * Upload many files in one request. The server adds all the files to the
+     * Merkle tree at once and replies with the new top hash and a multiproof of
+     * all the files, which must lead to that top hash.
+     *
+     * @param files The files, at least one, which must have different file names.
+     * @throws IOException If an I/O error occurs or the reply does not line up.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    public void uploadBatch(List<Path> files) throws IOException, GeneralSecurityException {
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No files to upload");
+        }
+        List<EncryptedFile> encryptedFiles = new ArrayList<>(files.size());
+        Set<String> fileNames = new HashSet<>();
+        long length = 4;
+        for (Path file : files) {
+            EncryptedFile encryptedFile = this.encrypt(file);
+            if (!fileNames.add(encryptedFile.fileName())) {
+                throw new IllegalArgumentException("Duplicate file name " + encryptedFile.fileName());
+            }
+            encryptedFiles.add(encryptedFile);
+            length += 4 + encryptedFile.fileName().getBytes(StandardCharsets.UTF_8).length + 8 + encryptedFile.size();
+        }
+
+        URL uploadUrl = new URL(this.serverUrl, "/batch-upload");
+        HttpURLConnection req = (HttpURLConnection) uploadUrl.openConnection();
+        req.setRequestMethod("POST");
+        req.setDoOutput(true);
+        req.setFixedLengthStreamingMode(length);
+
+        // Send every file as a frame of its name and its encrypted content.
+        List<byte[]> hashes = new ArrayList<>(encryptedFiles.size());
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(req.getOutputStream()))) {
+            output.writeInt(encryptedFiles.size());
+            for (EncryptedFile encryptedFile : encryptedFiles) {
+                byte[] fileNameBytes = encryptedFile.fileName().getBytes(StandardCharsets.UTF_8);
+                output.writeInt(fileNameBytes.length);
+                output.write(fileNameBytes);
+                output.writeLong(encryptedFile.size());
+                hashes.add(this.writeEncrypted(encryptedFile, output));
+            }
+        }
+        if (req.getResponseCode() != HttpURLConnection.HTTP_CREATED) {
+            throw HttpResponseException.of(req);
+        }
+
+        // Every file must lead to the same new top hash.
+        DataInputStream dataInput = new DataInputStream(req.getInputStream());
+        byte[] topHash = new byte[256 / 8];
+        dataInput.readFully(topHash);
+        MultiProof multiProof = MultiProof.read(dataInput, hashes.size());
+        try {
+            if (!Arrays.equals(multiProof.calculateTopHash(hashes), topHash)) {
+                throw new IOException("Failed to validate batch! Top hash does not line up.");
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid multiproof", e);
+        }
+        setClientTopHash(topHash);
+    }
+
+    /**
+     * Encrypt a file once to calculate the signature, without keeping the
+     * ciphertext.
+     *
+     * @param file The file.
+     * @return Everything needed to write the encrypted file.
+     * @throws IOException If an I/O error occurs.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    private EncryptedFile encrypt(Path file) throws IOException, GeneralSecurityException {
+        // Generate a header with a random nonce and iv prefix.
+        // Nonce ensures aes key differs for each file.
+        // The iv prefix and the segment index make up the initial values for AES-GCM.
+        // The key is derived from the master key of this session and the nonce.
+        SegmentedEncryption.Header header = SegmentedEncryption.Header.random(
+            this.getKeySalt(), SegmentedEncryption.DEFAULT_SEGMENT_SIZE, Files.size(file)
+        );
+        SecretKey aesKey = this.fileKeys.getKey(header);
+
+        // Calculate file id as the hash of the file name.
+        // The file id is then passed as additional data to AES-GCM.
+        String fileName = file.getFileName().toString();
+        byte[] fileNameHash = CryptoUtils.sha256(fileName.getBytes());
+        SegmentedEncryption encryption = new SegmentedEncryption(header, aesKey, fileNameHash);
+
+        // Calculate the SHA-256 of the header and the encrypted segments.
+        // This is the SHA-256 hash that we sign. The signature is sent before the
+        // ciphertext, so we encrypt the file once without sending it just to
+        // calculate the hash. Encrypting twice keeps memory usage bounded without
+        // needing a temporary file.
+        MessageDigest innerDigest = CryptoUtils.newSha256();
+        try (InputStream plainText = Files.newInputStream(file)) {
+            encryption.encrypt(plainText, new DigestOutputStream(OutputStream.nullOutputStream(), innerDigest));
+        }
+        byte[] innerSha256 = innerDigest.digest();
+
+        // Sign the inner SHA-256 hash.
+        byte[] signature = CryptoUtils.signWithRsa(this.getPrivateKey(), innerSha256);
+
+        return new EncryptedFile(file, fileName, fileNameHash, header, aesKey, innerSha256, signature);
+    }
+
+    /**
+     * Encrypt a file again and write it.
+     *
+     * @param encryptedFile The file.
+     * @param out The output to write to, which is not closed.
+     * @return The hash of the written data, which is used in the Merkle tree.
+     * @throws IOException If an I/O error occurs or the file was modified.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    private byte[] writeEncrypted(EncryptedFile encryptedFile, OutputStream out) throws IOException, GeneralSecurityException {
+        // Calculate the hash of the entire file, including the prefixed signature,
+        // while it is sent. This is the same hash that the server uses to calculate
+        // the Merkle-tree.
+        ChunkTree.Hasher hasher = new ChunkTree.Hasher();
+        MessageDigest sentInnerDigest = CryptoUtils.newSha256();
+        DataOutputStream output = new DataOutputStream(new ChunkTree.HashingOutputStream(out, hasher));
+        try (InputStream plainText = Files.newInputStream(encryptedFile.file())) {
+            // Write the format version and the signature before the other data
+            output.writeInt(SegmentedEncryption.MAGIC);
+            output.writeByte(encryptedFile.header().version());
+            output.writeInt(encryptedFile.signature().length);
+            output.write(encryptedFile.signature());
+
+            // Encrypt the file again and send it to the server. This produces the same
+            // ciphertext, but a cipher refuses to be initialized with an iv it just
+            // encrypted with, so a new instance is needed.
+            new SegmentedEncryption(encryptedFile.header(), encryptedFile.aesKey(), encryptedFile.fileNameHash())
+                .encrypt(plainText, new DigestOutputStream(output, sentInnerDigest));
+        }
+        output.flush();
+        if (!Arrays.equals(sentInnerDigest.digest(), encryptedFile.innerSha256())) {
+            throw new IOException("The file was modified while it was uploaded");
+        }
+        return hasher.finish().getRootHash();
+    }
+
+    /**
+     * A file that is ready to be encrypted and sent.
+     *
+     * @param file The path of the plaintext.
+     * @param fileName The file name.
+     * @param fileNameHash The file id.
+     * @param header The header.
+     * @param aesKey The key.
+     * @param innerSha256 The SHA-256 of the header and segments.
+     * @param signature The signature of the inner SHA-256.
+     */
+    private record EncryptedFile(Path file, String fileName, byte[] fileNameHash, SegmentedEncryption.Header header,
+                                 SecretKey aesKey, byte[] innerSha256, byte[] signature) {
+        /**
+         * Get the size of the encrypted file, including the signature.
+         *
+         * @return The size.
+         */
+        long size() {
+            return 4 + 1 + 4 + this.signature.length + this.header.size() + this.header.cipherTextSize();
+        }
+    }
+
     public void read(String fileName) throws IOException, GeneralSecurityException {
+        Verification verification = this.download(fileName, System.out);
+        System.out.println();
+
+        if (verification.topHashMatches()) {
+            System.out.println("File verified. Top hash matches.");
+        } else {
+            System.out.println("Failed to validate file! Top hash does not line up.");
+        }
+        if (verification.signatureCorrect()) {
+            System.out.println("File verified (with signature). Signature is correct.");
+        } else {
+            System.out.println("Failed to validate file! Signature is not correct.");
+        }
+    }
+
+    /**
+     * Read a file and verify it, without printing anything.
+     *
+     * @param fileName The file name.
+     * @param output The output to write the plaintext of the file to.
+     * @return Whether the top hash and the signature are correct.
+     * @throws IOException If an I/O error occurs.
+     * @throws GeneralSecurityException If decryption fails.
+     */
+    public boolean read(String fileName, OutputStream output) throws IOException, GeneralSecurityException {
+        Verification verification = this.download(fileName, output);
+        return verification.topHashMatches() && verification.signatureCorrect();
+    }
+
+    private Verification download(String fileName, OutputStream output) throws IOException, GeneralSecurityException {
         // Send the request
         URL readUrl = new URL(this.serverUrl, "/read/" + fileName);
         HttpURLConnection req = (HttpURLConnection) readUrl.openConnection();
+        req.setRequestProperty(ProofFormat.ACCEPT_HEADER, ProofFormat.COMPACT.headerValue());
+        if (req.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw HttpResponseException.of(req);
+        }
+        try (DataInputStream dataInput = new DataInputStream(req.getInputStream())) {
+            // The server first sends the complementing hashes so that we can recalculate
+            // the top hash and compare it to the one stored locally to ensure that the file
+            // we are reading has not been changed by the server.
+            List<ComplementingHash> complementingHashes = getProofFormat(req).read(dataInput);
+
+            ReadFile file = this.readFile(fileName, dataInput, output);
+
+            // Verify the file using the Merkle tree.
+            boolean topHashMatches = MerkleTree.verifyFile(new LeafNode(file.sha256()), this.getClientTopHash(), complementingHashes);
+
+            // Verify the signature. This ensures that the file was actually uploaded by
+            // this client, as no one else could have created a valid signature since that
+            // requires access to the private key. Since signing is done with the private
+            // key, we use the public key to validate the signature.
+            boolean signatureCorrect = CryptoUtils.verifyWithRsa(this.getPublicKey(), file.innerSha256(), file.signature());
+            return new Verification(topHashMatches, signatureCorrect);
+        }
+    }
+
+    private record Verification(boolean topHashMatches, boolean signatureCorrect) {}
+
+    /**
+     * Read many files in one request. The server sends one multiproof for all the
+     * files, which is used to calculate the top hash from the hashes of the files.
+     * The signature of each file is verified after the file has been written.
+     *
+     * @param fileNames The file names, without duplicates.
+     * @param output The output to write the plaintext of the files to.
+     * @return Whether the top hash and all the signatures are correct.
+     * @throws IOException If an I/O error occurs or the reply does not line up.
+     * @throws GeneralSecurityException If decryption fails.
+     */
+    public boolean readMany(List<String> fileNames, OutputStream output) throws IOException, GeneralSecurityException {
+        long length = 4;
+        for (String fileName : fileNames) {
+            length += 4 + fileName.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        URL readUrl = new URL(this.serverUrl, "/read-many");
+        HttpURLConnection req = (HttpURLConnection) readUrl.openConnection();
+        req.setRequestMethod("POST");
+        req.setDoOutput(true);
+        req.setFixedLengthStreamingMode(length);
+        try (DataOutputStream dataOutput = new DataOutputStream(new BufferedOutputStream(req.getOutputStream()))) {
+            dataOutput.writeInt(fileNames.size());
+            for (String fileName : fileNames) {
+                byte[] fileNameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+                dataOutput.writeInt(fileNameBytes.length);
+                dataOutput.write(fileNameBytes);
+            }
+        }
         if (req.getResponseCode() != HttpURLConnection.HTTP_OK) {
             throw HttpResponseException.of(req);
         }
-        DataInputStream dataInput = new DataInputStream(req.getInputStream());
 
-        // The server first sends the complementing hashes so that we can recalculate
-        // the top hash and compare it to the one stored locally to ensure that the file
-        // we are reading has not been changed by the server.
-        List<ComplementingHash> complementingHashes = ComplementingHash.read(dataInput);
+        boolean verified = true;
+        List<byte[]> hashes = new ArrayList<>(fileNames.size());
+        try (DataInputStream dataInput = new DataInputStream(req.getInputStream())) {
+            MultiProof multiProof = MultiProof.read(dataInput, fileNames.size());
+
+            // Each file is sent as its size followed by its content.
+            for (String fileName : fileNames) {
+                long size = dataInput.readLong();
+                ReadFile file = this.readFile(fileName, new BoundedInputStream(dataInput, size), output);
+                output.flush();
+                hashes.add(file.sha256());
+                verified &= CryptoUtils.verifyWithRsa(this.getPublicKey(), file.innerSha256(), file.signature());
+            }
 
-        // Calculate the SHA-256 of the entire data, including the signature, as this is
+            // Every file must lead to the top hash that we have stored.
+            byte[] topHash;
+            try {
+                topHash = multiProof.calculateTopHash(hashes);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid multiproof", e);
+            }
+            verified &= Arrays.equals(topHash, this.getClientTopHash());
+        }
+        return verified;
+    }
+
+    /**
+     * Read and decrypt a file in any of the formats.
+     *
+     * @param fileName The file name.
+     * @param input The input with the stored file, which is read to the end.
+     * @param output The output to write the plaintext to.
+     * @return The hashes needed to verify the file, which the caller must check.
+     * @throws IOException If an I/O error occurs.
+     * @throws GeneralSecurityException If decryption fails.
+     */
+    private ReadFile readFile(String fileName, InputStream input, OutputStream output) throws IOException, GeneralSecurityException {
+        // Calculate the hash of the entire data, including the signature, as this is
         // used in the Merkle tree.
-        byte[] totalData = dataInput.readAllBytes();
-        byte[] sha256 = CryptoUtils.sha256(totalData);
+        ChunkTree.Hasher hasher = new ChunkTree.Hasher();
+        DataInputStream data = new DataInputStream(new ChunkTree.HashingInputStream(input, hasher));
 
-        // Verify the file using the Merkle tree.
-        LeafNode fileNode = new LeafNode(sha256);
-        if (MerkleTree.verifyFile(fileNode, this.getClientTopHash(), complementingHashes)) {
-            System.out.println("File verified. Top hash matches.");
-        } else {
-            System.out.println("Failed to validate file! Top hash does not line up.");
+        // Calculate the file id since that is used as additional data in AES-GCM.
+        byte[] fileNameHash = CryptoUtils.sha256(fileName.getBytes());
+
+        int first = data.readInt();
+        if (first != SegmentedEncryption.MAGIC) {
+            // A file in the original format, which starts with the signature size.
+            return this.readUnsegmented(first, data, hasher, fileNameHash, output);
+        }
+        byte version = data.readByte();
+        if (version != SegmentedEncryption.VERSION && version != SegmentedEncryption.VERSION_PASSWORD_KEY) {
+            throw new IOException("Unsupported file format version " + version);
         }
 
-        DataInputStream data = new DataInputStream(new ByteArrayInputStream(totalData));
         // Read the signature.
         int signatureSize = data.readInt();
         byte[] signature = data.readNBytes(signatureSize);
 
+        // The signature signs the SHA-256 of the header and the encrypted segments,
+        // so calculate that hash while reading them.
+        MessageDigest innerDigest = CryptoUtils.newSha256();
+        DataInputStream innerData = new DataInputStream(new DigestInputStream(data, innerDigest));
+        SegmentedEncryption.Header header = SegmentedEncryption.Header.read(innerData, version);
+
+        // Calculate the symmetric key used for encryption so that we can decrypt.
+        SecretKey aesKey = this.fileKeys.getKey(header);
+
+        // Decrypt! Each segment is written as soon as it has been authenticated, so
+        // the whole file is never kept in memory.
+        new SegmentedEncryption(header, aesKey, fileNameHash).decrypt(innerData, output);
+        if (data.read() != -1) {
+            throw new IOException("Unexpected data after the last segment");
+        }
+        return new ReadFile(hasher.finish().getRootHash(), innerDigest.digest(), signature);
+    }
+
+    /**
+     * Read a file in the original format, where the entire file is encrypted at once.
+     */
+    private ReadFile readUnsegmented(int signatureSize, DataInputStream data, ChunkTree.Hasher hasher,
+                                     byte[] fileNameHash, OutputStream output) throws IOException, GeneralSecurityException {
+        // Read the signature.
+        byte[] signature = data.readNBytes(signatureSize);
+
         // The signature signs the SHA-256 of the inner content. So calculate that hash
         // from the remaining bytes.
         byte[] innerDataBytes = data.readAllBytes();
         byte[] innerSha256 = CryptoUtils.sha256(innerDataBytes);
 
-        // Verify the signature. This ensures that the file was actually uploaded by
-        // this client, as no one else could have created a valid signature since that
-        // requires access to the private key.
-        // Since signing is done with the private key, we use the public key to validate
-        // the signature.
-        if (CryptoUtils.verifyWithRsa(this.getPublicKey(), innerSha256, signature)) {
-            System.out.println("File verified (with signature). Signature is correct.");
-        } else {
-            System.out.println("Failed to validate file! Signature is not correct.");
-        }
-
         DataInputStream innerData = new DataInputStream(new ByteArrayInputStream(innerDataBytes));
         // Read the nonce, iv, timestamp and ciphertext.
         // While we don't use the timestamp here, it needs to be in the data so that the
@@ -271,24 +670,178 @@ public class Client {
         // Calculate the symmetric key used for encryption so that we can decrypt.
         SecretKey aesKey = CryptoUtils.deriveAesKeyFromPasswordAndNonce(this.password, nonce);
 
-        // Calculate the file id since that is used as additional data in AES-GCM.
-        byte[] fileNameHash = CryptoUtils.sha256(fileName.getBytes());
-
         // Decrypt!
         byte[] plainText = CryptoUtils.aesGcmDecrypt(aesKey, iv, cipherText, fileNameHash);
 
-        System.out.write(plainText);
+        output.write(plainText);
+        return new ReadFile(hasher.finish().getRootHash(), innerSha256, signature);
     }
 
-    private void verify() throws IOException {
-        // Send the request
+    /**
+     * The hashes of a file that has been read, which are needed to verify it.
+     *
+     * @param sha256 The hash of the stored file, which is used in the Merkle tree.
+     * @param innerSha256 The hash that the signature signs.
+     * @param signature The signature.
+     */
+    private record ReadFile(byte[] sha256, byte[] innerSha256, byte[] signature) {}
+
+    /**
+     * Read a part of a file without downloading the rest of it. Only the segments
+     * that contain the range are downloaded and decrypted, and they are verified
+     * against the top hash using the chunk tree of the file before they are
+     * decrypted. The signature can not be verified, since it signs the entire
+     * file.
+     *
+     * @param fileName The file name.
+     * @param offset The position in the plaintext to start reading at.
+     * @param length The amount of bytes to read.
+     * @param output The output to write the plaintext to.
+     * @throws IOException If an I/O error occurs or the range can not be verified.
+     * @throws GeneralSecurityException If decryption fails.
+     */
+    public void readRange(String fileName, long offset, long length, OutputStream output) throws IOException, GeneralSecurityException {
+        // The header is at the start of the file, so it is in the first chunk.
+        VerifiedRange first = this.downloadRange(fileName, 0, 0);
+        DataInputStream headerInput = new DataInputStream(new ByteArrayInputStream(first.data()));
+        if (headerInput.readInt() != SegmentedEncryption.MAGIC) {
+            throw new IOException("Only files in the segmented format can be read in parts");
+        }
+        byte version = headerInput.readByte();
+        if (version != SegmentedEncryption.VERSION && version != SegmentedEncryption.VERSION_PASSWORD_KEY) {
+            throw new IOException("Unsupported file format version " + version);
+        }
+        int signatureSize = headerInput.readInt();
+        headerInput.skipNBytes(signatureSize);
+        SegmentedEncryption.Header header = SegmentedEncryption.Header.read(headerInput, version);
+        long segmentsStart = 4 + 1 + 4 + signatureSize + header.size();
+
+        long end = Math.min(offset + length, header.plainTextSize());
+        if (offset < 0 || offset >= end) {
+            return;
+        }
+        long firstSegment = offset / header.segmentSize();
+        long lastSegment = (end - 1) / header.segmentSize();
+
+        // Download the chunks that contain the segments.
+        long rangeStart = segmentsStart + header.segmentOffset(firstSegment);
+        long rangeEnd = segmentsStart + header.segmentOffset(lastSegment)
+            + header.segmentPlainTextSize(lastSegment) + SegmentedEncryption.TAG_SIZE;
+        VerifiedRange range = this.downloadRange(fileName, rangeStart, rangeEnd - 1);
+
+        // Decrypt the segments and write the requested part of them.
+        SecretKey aesKey = this.fileKeys.getKey(header);
+        byte[] fileNameHash = CryptoUtils.sha256(fileName.getBytes());
+        SegmentedEncryption encryption = new SegmentedEncryption(header, aesKey, fileNameHash);
+        byte[] plainText = new byte[header.segmentSize()];
+        for (long segment = firstSegment; segment <= lastSegment; segment++) {
+            int cipherTextOffset = (int) (segmentsStart + header.segmentOffset(segment) - range.start());
+            int cipherTextLength = header.segmentPlainTextSize(segment) + SegmentedEncryption.TAG_SIZE;
+            byte[] cipherText = Arrays.copyOfRange(range.data(), cipherTextOffset, cipherTextOffset + cipherTextLength);
+            int plainTextLength = encryption.decryptSegment(segment, cipherText, cipherTextLength, plainText);
+
+            long segmentStart = segment * header.segmentSize();
+            int from = (int) Math.max(0, offset - segmentStart);
+            int to = (int) Math.min(plainTextLength, end - segmentStart);
+            output.write(plainText, from, to - from);
+        }
+    }
+
+    /**
+     * Download a range of a file and verify it using the chunk tree of the file.
+     * The server extends the range to whole chunks.
+     *
+     * @param fileName The file name.
+     * @param first The first byte.
+     * @param last The last byte, inclusive.
+     * @return The downloaded range.
+     * @throws IOException If an I/O error occurs or the range can not be verified.
+     */
+    private VerifiedRange downloadRange(String fileName, long first, long last) throws IOException {
+        URL readUrl = new URL(this.serverUrl, "/read/" + fileName);
+        HttpURLConnection req = (HttpURLConnection) readUrl.openConnection();
+        req.setRequestProperty("Range", "bytes=" + first + "-" + last);
+        req.setRequestProperty(ProofFormat.ACCEPT_HEADER, ProofFormat.COMPACT.headerValue());
+        if (req.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            throw HttpResponseException.of(req);
+        }
+        String contentRange = req.getHeaderField("Content-Range");
+        Matcher matcher = contentRange == null ? null : CONTENT_RANGE_PATTERN.matcher(contentRange);
+        if (matcher == null || !matcher.matches()) {
+            throw new IOException("Invalid Content-Range: " + contentRange);
+        }
+        long start = Long.parseLong(matcher.group(1));
+        long end = Long.parseLong(matcher.group(2)) + 1;
+        long fileSize = Long.parseLong(matcher.group(3));
+        if (start % ChunkTree.CHUNK_SIZE != 0 || start > first || end <= last || end > fileSize
+            || end - start > Integer.MAX_VALUE) {
+            throw new IOException("Unexpected Content-Range: " + contentRange);
+        }
+
+        List<ComplementingHash> complementingHashes;
+        List<byte[]> rangeProof;
+        byte[] data;
+        try (DataInputStream dataInput = new DataInputStream(req.getInputStream())) {
+            complementingHashes = getProofFormat(req).read(dataInput);
+            rangeProof = ChunkTree.readRangeProof(dataInput);
+            data = dataInput.readNBytes((int) (end - start));
+        }
+        if (data.length != end - start) {
+            throw new EOFException("The range is shorter than expected");
+        }
+
+        // Calculate the hash of the file from the hashes of the chunks and the proof,
+        // and then the top hash from the hash of the file.
+        CryptoContext context = CryptoContext.get();
+        List<byte[]> chunkHashes = new ArrayList<>();
+        for (int i = 0; i < data.length; i += ChunkTree.CHUNK_SIZE) {
+            chunkHashes.add(context.sha256(data, i, Math.min(ChunkTree.CHUNK_SIZE, data.length - i)));
+        }
+        byte[] sha256;
+        try {
+            sha256 = ChunkTree.calculateRoot(fileSize, (int) (start / ChunkTree.CHUNK_SIZE), chunkHashes, rangeProof);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid range proof", e);
+        }
+        if (!MerkleTree.verifyFile(new LeafNode(sha256), this.getClientTopHash(), complementingHashes)) {
+            throw new IOException("Failed to validate range! Top hash does not line up.");
+        }
+        return new VerifiedRange(start, data);
+    }
+
+    /**
+     * A range of a file that has been verified against the top hash.
+     *
+     * @param start The position of the first byte.
+     * @param data The bytes.
+     */
+    private record VerifiedRange(long start, byte[] data) {}
+
+    /**
+     * Get the format of the complementing hashes in a reply. Servers that do not
+     * know about proof formats ignore the request header and use the original
+     * format.
+     *
+     * @param req The request.
+     * @return The format.
+     * @throws IOException If the format is unknown.
+     */
+    private static ProofFormat getProofFormat(HttpURLConnection req) throws IOException {
+        return ProofFormat.fromHeader(req.getHeaderField(ProofFormat.HEADER));
+    }
+
+    private byte[] getServerTopHash() throws IOException {
         URL readUrl = new URL(this.serverUrl, "/verify");
         HttpURLConnection req = (HttpURLConnection) readUrl.openConnection();
         if (req.getResponseCode() != HttpURLConnection.HTTP_OK) {
             throw HttpResponseException.of(req);
         }
+        return req.getInputStream().readAllBytes();
+    }
+
+    private void verify() throws IOException {
         // Read the server's top hash and compare to the local one.
-        byte[] topHash = req.getInputStream().readAllBytes();
+        byte[] topHash = this.getServerTopHash();
         byte[] clientTopHash = this.getClientTopHash();
         if (Arrays.equals(topHash, clientTopHash)) {
             System.out.println("Verification successful!");
@@ -297,4 +850,21 @@ public class Client {
         }
     }
 
+    /**
+     * Replace the local top hash with the top hash of the server. This is needed
+     * once after the server is upgraded to a version that hashes files
+     * differently, since the old top hash can then never match again.
+     * <p>
+     * The new top hash is not verified, so the files should be read afterwards to
+     * verify their signatures.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public void reanchor() throws IOException {
+        byte[] topHash = this.getServerTopHash();
+        if (topHash.length != 256 / 8) {
+            throw new IOException("Invalid top hash from the server");
+        }
+        this.setClientTopHash(topHash);
+    }
 }
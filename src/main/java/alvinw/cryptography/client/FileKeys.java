@@ -0,0 +1,53 @@
+package alvinw.cryptography.client;
+
+import alvinw.cryptography.CryptoUtils;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Derives the keys of files from the password of a client.
+ * <p>
+ * PBKDF2 is deliberately slow, so it runs once per salt to derive a master key,
+ * which is then cached. The key of each file is derived from the master key and
+ * the nonce of the file with HKDF, which is cheap. Files in
+ * {@link SegmentedEncryption#VERSION_PASSWORD_KEY} have no salt, and their keys
+ * are derived from the password directly.
+ */
+class FileKeys {
+    private final String password;
+    private final Map<ByteBuffer, SecretKey> masterKeys = new ConcurrentHashMap<>();
+
+    FileKeys(String password) {
+        this.password = password;
+    }
+
+    /**
+     * Get the key of a file.
+     *
+     * @param header The header of the file.
+     * @return The AES key.
+     * @throws GeneralSecurityException If the key can not be derived.
+     */
+    SecretKey getKey(SegmentedEncryption.Header header) throws GeneralSecurityException {
+        byte[] salt = header.salt();
+        if (salt == null) {
+            return CryptoUtils.deriveAesKeyFromPasswordAndNonce(this.password, header.nonce());
+        }
+        return CryptoUtils.deriveAesKeyFromMasterKeyAndNonce(this.getMasterKey(salt), header.nonce());
+    }
+
+    private SecretKey getMasterKey(byte[] salt) throws GeneralSecurityException {
+        ByteBuffer key = ByteBuffer.wrap(salt.clone());
+        SecretKey masterKey = this.masterKeys.get(key);
+        if (masterKey == null) {
+            // Two threads may derive the same key at once, which is harmless
+            masterKey = CryptoUtils.deriveMasterKey(this.password, salt);
+            this.masterKeys.putIfAbsent(key, masterKey);
+        }
+        return masterKey;
+    }
+}
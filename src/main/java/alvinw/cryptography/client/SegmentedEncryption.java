@@ -0,0 +1,324 @@
+package alvinw.cryptography.client;
+
+import alvinw.cryptography.CryptoContext;
+import alvinw.cryptography.CryptoUtils;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Encryption of files in segments.
+ * <p>
+ * The plaintext is split into segments of a fixed size that are encrypted with
+ * AES-GCM separately, so a file can be decrypted as it is received, and any
+ * segment can be decrypted without reading the ones before it.
+ * <p>
+ * The iv of a segment is a random prefix from the header followed by the index
+ * of the segment and a flag that is 1 for the last segment. Segments can
+ * therefore not be reordered, and a file can not be truncated, without failing
+ * authentication. The header is part of the additional data of every segment.
+ * <p>
+ * Segments are decrypted with the AES-GCM cipher of the {@link CryptoContext}
+ * of the calling thread. Encryption uses a cipher of its own instead: the
+ * client encrypts a file twice with the same key and ivs, once to sign it and
+ * once to send it, and a cipher refuses to encrypt with the key and iv it was
+ * last initialized with, which the shared cipher would be for a file of one
+ * segment. The cipher is only created for instances that encrypt.
+ */
+public class SegmentedEncryption {
+    /**
+     * The first bytes of a file in a versioned format. Files in the original
+     * format start with the length of the signature, which is never this large.
+     */
+    public static final int MAGIC = 0x414c5657; // "ALVW"
+    /**
+     * The current version, where the header contains the salt of a master key,
+     * and the key of the file is derived from the master key and the nonce.
+     */
+    public static final byte VERSION = 3;
+    /**
+     * The first segmented version, where the key of the file is derived from the
+     * password and the nonce.
+     */
+    public static final byte VERSION_PASSWORD_KEY = 2;
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    /**
+     * The largest segment size that is accepted in a header, since a buffer of
+     * that size is allocated to decrypt a segment.
+     */
+    public static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int TAG_SIZE = CryptoUtils.GCM_TAG_LENGTH / 8;
+
+    private final Header header;
+    private final SecretKey key;
+    private final byte[] associatedData;
+    private @Nullable Cipher encryptCipher;
+
+    /**
+     * Create an instance for encrypting or decrypting a file.
+     *
+     * @param header The header of the file.
+     * @param key The AES key.
+     * @param fileNameHash The file id, which is authenticated together with the
+     *                     header.
+     */
+    public SegmentedEncryption(Header header, SecretKey key, byte[] fileNameHash) {
+        this.header = header;
+        this.key = key;
+        this.associatedData = ByteBuffer.allocate(fileNameHash.length + header.size())
+            .put(fileNameHash)
+            .put(header.toBytes())
+            .array();
+    }
+
+    public Header getHeader() {
+        return this.header;
+    }
+
+    /**
+     * Encrypt a segment.
+     *
+     * @param segment The index of the segment.
+     * @param plainText The plaintext of the segment.
+     * @param length The length of the plaintext.
+     * @param output The array to write the ciphertext to, which must fit the
+     *               plaintext and the tag.
+     * @return The length of the ciphertext.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    public int encryptSegment(long segment, byte[] plainText, int length, byte[] output) throws GeneralSecurityException {
+        if (this.encryptCipher == null) {
+            this.encryptCipher = Cipher.getInstance(CryptoUtils.AES_GCM_ALGO);
+        }
+        this.encryptCipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(CryptoUtils.GCM_TAG_LENGTH, this.iv(segment)));
+        this.encryptCipher.updateAAD(this.associatedData);
+        return this.encryptCipher.doFinal(plainText, 0, length, output, 0);
+    }
+
+    /**
+     * Decrypt and authenticate a segment.
+     *
+     * @param segment The index of the segment.
+     * @param cipherText The ciphertext of the segment.
+     * @param length The length of the ciphertext.
+     * @param output The array to write the plaintext to.
+     * @return The length of the plaintext.
+     * @throws GeneralSecurityException If the segment is not authentic.
+     */
+    public int decryptSegment(long segment, byte[] cipherText, int length, byte[] output) throws GeneralSecurityException {
+        return CryptoContext.get().aesGcmDecrypt(this.key, this.iv(segment), this.associatedData,
+            ByteBuffer.wrap(cipherText, 0, length), ByteBuffer.wrap(output));
+    }
+
+    private byte[] iv(long segment) {
+        if (segment < 0 || segment >= this.header.segmentCount()) {
+            throw new IllegalArgumentException("Segment " + segment + " out of range");
+        }
+        return ByteBuffer.allocate(12)
+            .put(this.header.ivPrefix())
+            .putInt((int) segment)
+            .put((byte) (segment == this.header.segmentCount() - 1 ? 1 : 0))
+            .array();
+    }
+
+    /**
+     * Write the header followed by all encrypted segments.
+     *
+     * @param plainText The plaintext, which must contain at least as many bytes as
+     *                  specified in the header.
+     * @param output The output to write to.
+     * @throws IOException If an I/O error occurs.
+     * @throws GeneralSecurityException If encryption fails.
+     */
+    public void encrypt(InputStream plainText, OutputStream output) throws IOException, GeneralSecurityException {
+        output.write(this.header.toBytes());
+        byte[] plainTextSegment = new byte[this.header.segmentSize()];
+        byte[] cipherTextSegment = new byte[this.header.segmentSize() + TAG_SIZE];
+        for (long segment = 0; segment < this.header.segmentCount(); segment++) {
+            int length = this.header.segmentPlainTextSize(segment);
+            if (plainText.readNBytes(plainTextSegment, 0, length) != length) {
+                throw new EOFException("The file is shorter than expected");
+            }
+            int cipherTextLength = this.encryptSegment(segment, plainTextSegment, length, cipherTextSegment);
+            output.write(cipherTextSegment, 0, cipherTextLength);
+        }
+    }
+
+    /**
+     * Decrypt all segments and write the plaintext of each segment as soon as it
+     * has been authenticated.
+     *
+     * @param cipherText The segments, following the header.
+     * @param output The output to write the plaintext to.
+     * @throws IOException If an I/O error occurs.
+     * @throws GeneralSecurityException If a segment is not authentic.
+     */
+    public void decrypt(InputStream cipherText, OutputStream output) throws IOException, GeneralSecurityException {
+        byte[] cipherTextSegment = new byte[this.header.segmentSize() + TAG_SIZE];
+        byte[] plainTextSegment = new byte[this.header.segmentSize()];
+        for (long segment = 0; segment < this.header.segmentCount(); segment++) {
+            int length = this.header.segmentPlainTextSize(segment) + TAG_SIZE;
+            if (cipherText.readNBytes(cipherTextSegment, 0, length) != length) {
+                throw new EOFException("The file is shorter than expected");
+            }
+            int plainTextLength = this.decryptSegment(segment, cipherTextSegment, length, plainTextSegment);
+            output.write(plainTextSegment, 0, plainTextLength);
+        }
+    }
+
+    /**
+     * The header of a segmented file.
+     *
+     * @param salt The salt of the master key that the key is derived from, or
+     *             null if the key is derived from the password directly, as in
+     *             {@link #VERSION_PASSWORD_KEY}.
+     * @param nonce The nonce used to derive the key.
+     * @param ivPrefix The first bytes of the iv of every segment.
+     * @param timestamp When the file was encrypted, to prevent replay.
+     * @param segmentSize The size of the plaintext of every segment but the last.
+     * @param plainTextSize The total size of the plaintext.
+     */
+    public record Header(byte @Nullable [] salt, byte[] nonce, byte[] ivPrefix, long timestamp, int segmentSize, long plainTextSize) {
+        public static final int SALT_SIZE = 16;
+        public static final int NONCE_SIZE = 16;
+        public static final int IV_PREFIX_SIZE = 7;
+        /**
+         * The size of a header without a salt.
+         */
+        public static final int BASE_SIZE = NONCE_SIZE + IV_PREFIX_SIZE + 8 + 4 + 8;
+
+        /**
+         * Create a header with a random nonce and iv prefix.
+         *
+         * @param salt The salt of the master key.
+         * @param segmentSize The size of the plaintext of every segment but the last.
+         * @param plainTextSize The total size of the plaintext.
+         * @return The header.
+         */
+        public static Header random(byte[] salt, int segmentSize, long plainTextSize) {
+            return new Header(
+                salt,
+                CryptoUtils.randomBytes(NONCE_SIZE),
+                CryptoUtils.randomBytes(IV_PREFIX_SIZE),
+                System.currentTimeMillis(),
+                segmentSize,
+                plainTextSize
+            );
+        }
+
+        /**
+         * Read a header.
+         *
+         * @param input The input to read from.
+         * @param version The version of the file.
+         * @return The header.
+         * @throws IOException If an I/O error occurs, the version is not supported
+         * or the header is invalid.
+         */
+        public static Header read(DataInput input, byte version) throws IOException {
+            byte[] salt = null;
+            if (version == VERSION) {
+                salt = new byte[SALT_SIZE];
+                input.readFully(salt);
+            } else if (version != VERSION_PASSWORD_KEY) {
+                throw new IOException("Unsupported file format version " + version);
+            }
+            byte[] nonce = new byte[NONCE_SIZE];
+            input.readFully(nonce);
+            byte[] ivPrefix = new byte[IV_PREFIX_SIZE];
+            input.readFully(ivPrefix);
+            long timestamp = input.readLong();
+            int segmentSize = input.readInt();
+            long plainTextSize = input.readLong();
+            if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE || plainTextSize < 0
+                || segmentCount(segmentSize, plainTextSize) > Integer.MAX_VALUE) {
+                throw new IOException("Invalid segment header");
+            }
+            return new Header(salt, nonce, ivPrefix, timestamp, segmentSize, plainTextSize);
+        }
+
+        /**
+         * Get the version of the file format that this header belongs to.
+         *
+         * @return The version.
+         */
+        public byte version() {
+            return this.salt != null ? VERSION : VERSION_PASSWORD_KEY;
+        }
+
+        /**
+         * Get the size of the header.
+         *
+         * @return The size in bytes.
+         */
+        public int size() {
+            return (this.salt != null ? SALT_SIZE : 0) + BASE_SIZE;
+        }
+
+        public byte[] toBytes() {
+            ByteBuffer buffer = ByteBuffer.allocate(this.size());
+            if (this.salt != null) {
+                buffer.put(this.salt);
+            }
+            return buffer
+                .put(this.nonce)
+                .put(this.ivPrefix)
+                .putLong(this.timestamp)
+                .putInt(this.segmentSize)
+                .putLong(this.plainTextSize)
+                .array();
+        }
+
+        /**
+         * Get the amount of segments. An empty file has one empty segment.
+         *
+         * @return The amount of segments.
+         */
+        public long segmentCount() {
+            return Math.max(1, segmentCount(this.segmentSize, this.plainTextSize));
+        }
+
+        private static long segmentCount(int segmentSize, long plainTextSize) {
+            // Rounded up without adding to the size, which could overflow
+            return plainTextSize / segmentSize + (plainTextSize % segmentSize != 0 ? 1 : 0);
+        }
+
+        /**
+         * Get the size of the plaintext of a segment.
+         *
+         * @param segment The index of the segment.
+         * @return The size.
+         */
+        public int segmentPlainTextSize(long segment) {
+            return (int) Math.min(this.segmentSize, this.plainTextSize - segment * this.segmentSize);
+        }
+
+        /**
+         * Get the position of a segment, relative to the end of the header.
+         *
+         * @param segment The index of the segment.
+         * @return The position.
+         */
+        public long segmentOffset(long segment) {
+            return segment * (this.segmentSize + TAG_SIZE);
+        }
+
+        /**
+         * Get the total size of all encrypted segments.
+         *
+         * @return The size.
+         */
+        public long cipherTextSize() {
+            return this.plainTextSize + this.segmentCount() * TAG_SIZE;
+        }
+    }
+}
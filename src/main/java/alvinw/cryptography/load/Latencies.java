@@ -0,0 +1,65 @@
+package alvinw.cryptography.load;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of requests of one kind, recorded by a single thread.
+ * <p>
+ * Every latency is kept, so that the percentiles are exact. The latencies of all
+ * the clients are merged once the run is over.
+ */
+class Latencies {
+    private long[] nanos = new long[1024];
+    private int size;
+    private long bytes;
+
+    /**
+     * Record a request.
+     *
+     * @param nanos The latency in nanoseconds.
+     * @param bytes The amount of plaintext bytes that were uploaded or read.
+     */
+    void record(long nanos, long bytes) {
+        if (this.size == this.nanos.length) {
+            this.nanos = Arrays.copyOf(this.nanos, this.size * 2);
+        }
+        this.nanos[this.size++] = nanos;
+        this.bytes += bytes;
+    }
+
+    void addAll(Latencies other) {
+        if (this.size + other.size > this.nanos.length) {
+            this.nanos = Arrays.copyOf(this.nanos, Math.max(this.size + other.size, this.size * 2));
+        }
+        System.arraycopy(other.nanos, 0, this.nanos, this.size, other.size);
+        this.size += other.size;
+        this.bytes += other.bytes;
+    }
+
+    /**
+     * Sort the latencies and summarize them. Must be called after the last
+     * latency is recorded.
+     *
+     * @return The summary.
+     */
+    LoadGenerator.Stats stats() {
+        Arrays.sort(this.nanos, 0, this.size);
+        return new LoadGenerator.Stats(this.size, this.bytes, this.percentile(50), this.percentile(99),
+            this.percentile(99.9), this.percentile(100));
+    }
+
+    /**
+     * Get a percentile of the sorted latencies.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The latency in nanoseconds, or 0 if nothing was recorded.
+     */
+    private long percentile(double percentile) {
+        if (this.size == 0) {
+            return 0;
+        }
+        // The nearest rank
+        int rank = (int) Math.ceil(percentile / 100 * this.size);
+        return this.nanos[Math.max(0, Math.min(this.size, rank) - 1)];
+    }
+}
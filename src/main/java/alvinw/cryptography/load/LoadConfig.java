@@ -0,0 +1,131 @@
+package alvinw.cryptography.load;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The configuration of a {@link LoadGenerator} run.
+ *
+ * @param clients The amount of clients that send requests at the same time.
+ * @param warmupSeconds The time to run before latencies are recorded.
+ * @param durationSeconds The time to record latencies, after the warmup.
+ * @param readRatio The share of the requests that are reads, from 0 to 1. The
+ *                  rest are uploads.
+ * @param fileSizes The distribution of the sizes of uploaded files.
+ * @param filesPerClient The amount of different files that each client uploads
+ *                       and reads.
+ * @param serverUrl The server to send requests to, or null to start a server in
+ *                  the same process.
+ */
+public record LoadConfig(int clients, int warmupSeconds, int durationSeconds, double readRatio,
+                         List<FileSize> fileSizes, int filesPerClient, @Nullable URL serverUrl) {
+    public LoadConfig {
+        if (clients <= 0 || filesPerClient <= 0) {
+            throw new IllegalArgumentException("clients and filesPerClient must be positive");
+        }
+        if (warmupSeconds < 0 || durationSeconds <= 0) {
+            throw new IllegalArgumentException("Invalid duration");
+        }
+        if (readRatio < 0 || readRatio > 1) {
+            throw new IllegalArgumentException("readRatio must be between 0 and 1");
+        }
+        if (fileSizes.isEmpty()) {
+            throw new IllegalArgumentException("There must be at least one file size");
+        }
+        fileSizes = List.copyOf(fileSizes);
+    }
+
+    /**
+     * The default configuration: 8 clients for 30 seconds after 5 seconds of
+     * warmup, 80% reads, and mostly small files against a server in the same
+     * process.
+     *
+     * @return The configuration.
+     */
+    public static LoadConfig defaults() {
+        return new LoadConfig(8, 5, 30, 0.8, parseFileSizes("1024:50,65536:40,1048576:10"), 16, null);
+    }
+
+    /**
+     * The default configuration, overridden by the system properties
+     * {@code load.clients}, {@code load.warmup}, {@code load.duration} (in
+     * seconds), {@code load.reads} (the read ratio), {@code load.sizes},
+     * {@code load.files} and {@code load.url}.
+     * <p>
+     * The file sizes are written as comma separated pairs of a size in bytes and
+     * a weight, for example {@code 1024:50,1048576:10}.
+     *
+     * @return The configuration.
+     * @throws MalformedURLException If the server URL is not valid.
+     */
+    public static LoadConfig fromSystemProperties() throws MalformedURLException {
+        LoadConfig defaults = defaults();
+        String sizes = System.getProperty("load.sizes");
+        String reads = System.getProperty("load.reads");
+        String url = System.getProperty("load.url");
+        return new LoadConfig(
+            Integer.getInteger("load.clients", defaults.clients()),
+            Integer.getInteger("load.warmup", defaults.warmupSeconds()),
+            Integer.getInteger("load.duration", defaults.durationSeconds()),
+            reads != null ? Double.parseDouble(reads) : defaults.readRatio(),
+            sizes != null ? parseFileSizes(sizes) : defaults.fileSizes(),
+            Integer.getInteger("load.files", defaults.filesPerClient()),
+            url != null ? new URL(url) : defaults.serverUrl()
+        );
+    }
+
+    private static List<FileSize> parseFileSizes(String value) {
+        List<FileSize> fileSizes = new ArrayList<>();
+        for (String part : value.split(",")) {
+            String[] sizeAndWeight = part.trim().split(":");
+            if (sizeAndWeight.length > 2) {
+                throw new IllegalArgumentException("Invalid file size: " + part);
+            }
+            int size = Integer.parseInt(sizeAndWeight[0]);
+            int weight = sizeAndWeight.length == 2 ? Integer.parseInt(sizeAndWeight[1]) : 1;
+            fileSizes.add(new FileSize(size, weight));
+        }
+        return fileSizes;
+    }
+
+    /**
+     * Pick a file size at random, with the probability of each size given by its
+     * weight.
+     *
+     * @param random The random to use.
+     * @return The size in bytes.
+     */
+    int randomFileSize(Random random) {
+        int totalWeight = 0;
+        for (FileSize fileSize : this.fileSizes) {
+            totalWeight += fileSize.weight();
+        }
+        int value = random.nextInt(totalWeight);
+        for (FileSize fileSize : this.fileSizes) {
+            value -= fileSize.weight();
+            if (value < 0) {
+                return fileSize.bytes();
+            }
+        }
+        throw new AssertionError();
+    }
+
+    /**
+     * A file size and how often it is picked.
+     *
+     * @param bytes The size in bytes.
+     * @param weight The weight, relative to the other sizes.
+     */
+    public record FileSize(int bytes, int weight) {
+        public FileSize {
+            if (bytes < 0 || weight <= 0) {
+                throw new IllegalArgumentException("Invalid file size " + bytes + ":" + weight);
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package alvinw.cryptography.load;
+
+import alvinw.cryptography.client.Client;
+import alvinw.cryptography.server.Server;
+import alvinw.cryptography.server.ServerConfig;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Generates load on a {@link Server} from many {@link Client}s at the same time,
+ * to measure the throughput and latencies of the server.
+ * <p>
+ * Every client runs on its own thread with its own keys and top hash, and sends
+ * requests one at a time in a closed loop. Each request is either an upload of
+ * one of the client's files with new random content, or a verified read of one
+ * of the client's files, picked at random according to the
+ * {@link LoadConfig#readRatio()}. Since the clients upload at the same time, a
+ * read usually does not match the top hash that its client stored after its own
+ * last upload. Those reads are counted, but are not errors.
+ * <p>
+ * The heap usage of the server is sampled from its {@code /metrics} endpoint
+ * every second. When the server runs in the same process, the heap also contains
+ * the clients.
+ */
+public class LoadGenerator {
+    private static final String PASSWORD = "password";
+    private static final String HEAP_USED_METRIC = "jvm_heap_used_bytes ";
+
+    private final LoadConfig config;
+
+    public LoadGenerator(LoadConfig config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException, InterruptedException {
+        LoadConfig config = LoadConfig.fromSystemProperties();
+        Result result = new LoadGenerator(config).run();
+        result.print(System.out);
+    }
+
+    /**
+     * Upload the files of every client once, then send requests for the
+     * configured time.
+     *
+     * @return The result.
+     * @throws IOException If an I/O error occurs while setting up the clients.
+     * @throws GeneralSecurityException If the first upload of a file fails.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    public Result run() throws IOException, GeneralSecurityException, InterruptedException {
+        Path root = Files.createTempDirectory("load");
+        Server server = null;
+        ExecutorService executor = Executors.newFixedThreadPool(this.config.clients());
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            URL serverUrl = this.config.serverUrl();
+            if (serverUrl == null) {
+                int port;
+                try (ServerSocket socket = new ServerSocket(0)) {
+                    port = socket.getLocalPort();
+                }
+                server = new Server(root.resolve("server"), ServerConfig.fromSystemProperties().withPort(port));
+                server.start();
+                serverUrl = new URL("http://localhost:" + port);
+            }
+
+            List<Worker> workers = new ArrayList<>(this.config.clients());
+            for (int i = 0; i < this.config.clients(); i++) {
+                workers.add(new Worker(i, root, serverUrl));
+            }
+            invokeAll(executor, workers.stream().<Callable<Void>>map(worker -> worker::setup).toList());
+
+            AtomicLong maxHeapUsed = new AtomicLong(-1);
+            AtomicLong lastHeapUsed = new AtomicLong(-1);
+            URL metricsUrl = new URL(serverUrl, "/metrics");
+            sampler.scheduleAtFixedRate(() -> {
+                long heapUsed = readHeapUsed(metricsUrl);
+                if (heapUsed >= 0) {
+                    lastHeapUsed.set(heapUsed);
+                    maxHeapUsed.accumulateAndGet(heapUsed, Math::max);
+                }
+            }, 0, 1, TimeUnit.SECONDS);
+
+            long start = System.nanoTime();
+            long measureStart = start + TimeUnit.SECONDS.toNanos(this.config.warmupSeconds());
+            long end = measureStart + TimeUnit.SECONDS.toNanos(this.config.durationSeconds());
+            invokeAll(executor, workers.stream().<Callable<Void>>map(worker -> () -> worker.run(measureStart, end)).toList());
+            long measuredNanos = System.nanoTime() - measureStart;
+            sampler.shutdownNow();
+
+            Latencies uploads = new Latencies();
+            Latencies reads = new Latencies();
+            long errors = 0;
+            long unverifiedReads = 0;
+            String firstError = null;
+            for (Worker worker : workers) {
+                uploads.addAll(worker.uploads);
+                reads.addAll(worker.reads);
+                errors += worker.errors;
+                unverifiedReads += worker.unverifiedReads;
+                if (firstError == null) {
+                    firstError = worker.firstError;
+                }
+            }
+            return new Result(this.config, measuredNanos, uploads.stats(), reads.stats(), errors, unverifiedReads, firstError,
+                maxHeapUsed.get(), lastHeapUsed.get());
+        } finally {
+            sampler.shutdownNow();
+            executor.shutdownNow();
+            if (server != null) {
+                server.stop();
+            }
+            try (Stream<Path> paths = Files.walk(root)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks)
+        throws IOException, GeneralSecurityException, InterruptedException {
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) {
+                    throw cause;
+                }
+                if (e.getCause() instanceof GeneralSecurityException cause) {
+                    throw cause;
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Read the used heap from the metrics of the server.
+     *
+     * @param metricsUrl The URL of the metrics endpoint.
+     * @return The used heap in bytes, or -1 if it could not be read.
+     */
+    private static long readHeapUsed(URL metricsUrl) {
+        try (InputStream input = metricsUrl.openStream();
+             BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(HEAP_USED_METRIC)) {
+                    return Long.parseLong(line.substring(HEAP_USED_METRIC.length()).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // The sample is skipped
+        }
+        return -1;
+    }
+
+    /**
+     * A client and the latencies of its requests.
+     */
+    private class Worker {
+        private final Client client;
+        private final Random random;
+        private final Path[] files;
+        private final Latencies uploads = new Latencies();
+        private final Latencies reads = new Latencies();
+        private long errors;
+        private long unverifiedReads;
+        private @Nullable String firstError;
+
+        private Worker(int index, Path root, URL serverUrl) throws IOException {
+            Path clientRoot = Files.createDirectories(root.resolve("client-" + index));
+            this.client = new Client(clientRoot, serverUrl, PASSWORD);
+            this.random = new Random(index);
+            this.files = new Path[LoadGenerator.this.config.filesPerClient()];
+            Path fileDirectory = Files.createDirectories(root.resolve("files-" + index));
+            for (int i = 0; i < this.files.length; i++) {
+                // The file name is the file id on the server, so it must differ between clients
+                this.files[i] = fileDirectory.resolve("client" + index + "-file" + i + ".bin");
+            }
+        }
+
+        /**
+         * Create the keys of the client and upload every file once, so that all the
+         * files can be read when the run starts.
+         */
+        private Void setup() throws IOException, GeneralSecurityException {
+            this.client.getPrivateKey();
+            for (Path file : this.files) {
+                this.writeRandomContent(file);
+                this.client.upload(file);
+            }
+            return null;
+        }
+
+        private Void run(long measureStart, long end) {
+            byte[] buffer = new byte[0];
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                Path file = this.files[this.random.nextInt(this.files.length)];
+                boolean read = this.random.nextDouble() < LoadGenerator.this.config.readRatio();
+                try {
+                    long size;
+                    long start;
+                    if (read) {
+                        CountingOutputStream output = new CountingOutputStream();
+                        start = System.nanoTime();
+                        if (!this.client.read(file.getFileName().toString(), output)) {
+                            this.unverifiedReads++;
+                        }
+                        size = output.count;
+                    } else {
+                        // The new content is written before the request is timed
+                        size = this.writeRandomContent(file);
+                        start = System.nanoTime();
+                        this.client.upload(file);
+                    }
+                    long latency = System.nanoTime() - start;
+                    if (now >= measureStart) {
+                        (read ? this.reads : this.uploads).record(latency, size);
+                    }
+                } catch (IOException | GeneralSecurityException e) {
+                    this.errors++;
+                    if (this.firstError == null) {
+                        this.firstError = e.toString();
+                    }
+                }
+            }
+            return null;
+        }
+
+        private int writeRandomContent(Path file) throws IOException {
+            byte[] content = new byte[LoadGenerator.this.config.randomFileSize(this.random)];
+            this.random.nextBytes(content);
+            Files.write(file, content);
+            return content.length;
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.count += len;
+        }
+    }
+
+    /**
+     * The result of a run.
+     *
+     * @param config The configuration of the run.
+     * @param measuredNanos The time that latencies were recorded.
+     * @param uploads The uploads.
+     * @param reads The reads.
+     * @param errors The amount of requests that failed.
+     * @param unverifiedReads The amount of reads that did not match the top hash of
+     *                        their client or had an invalid signature.
+     * @param firstError The first error, or null if there were none.
+     * @param maxHeapUsed The largest sampled heap usage of the server in bytes, or
+     *                    -1 if it could not be read.
+     * @param lastHeapUsed The last sampled heap usage of the server in bytes, or -1
+     *                     if it could not be read.
+     */
+    public record Result(LoadConfig config, long measuredNanos, Stats uploads, Stats reads, long errors,
+                         long unverifiedReads, @Nullable String firstError, long maxHeapUsed, long lastHeapUsed) {
+
+        public void print(PrintStream output) {
+            double seconds = this.measuredNanos / 1e9;
+            int requests = this.uploads.count() + this.reads.count();
+            output.printf(Locale.ROOT, "Clients: %d, warmup: %d s, duration: %d s, reads: %.0f%%%n",
+                this.config.clients(), this.config.warmupSeconds(), this.config.durationSeconds(), this.config.readRatio() * 100);
+            output.printf(Locale.ROOT, "Requests: %d (%.1f/s), errors: %d%n", requests, requests / seconds, this.errors);
+            if (this.firstError != null) {
+                output.println("First error: " + this.firstError);
+            }
+            printStats(output, "upload", this.uploads, seconds);
+            printStats(output, "read", this.reads, seconds);
+            output.println("Reads not matching the client's top hash: " + this.unverifiedReads);
+            if (this.maxHeapUsed >= 0) {
+                output.printf(Locale.ROOT, "Server heap used: max %.1f MiB, last %.1f MiB%n",
+                    this.maxHeapUsed / (1024.0 * 1024), this.lastHeapUsed / (1024.0 * 1024));
+            } else {
+                output.println("Server heap used: unknown");
+            }
+        }
+
+        private static void printStats(PrintStream output, String name, Stats stats, double seconds) {
+            output.printf(Locale.ROOT, "%-6s %d requests, %.1f/s, %.2f MiB/s, p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+                name + ":", stats.count(), stats.count() / seconds, stats.bytes() / (1024.0 * 1024) / seconds,
+                stats.p50Nanos() / 1e6, stats.p99Nanos() / 1e6, stats.p999Nanos() / 1e6, stats.maxNanos() / 1e6);
+        }
+    }
+
+    /**
+     * The requests of one kind during a run.
+     *
+     * @param count The amount of requests.
+     * @param bytes The amount of plaintext bytes that were uploaded or read.
+     * @param p50Nanos The median latency in nanoseconds.
+     * @param p99Nanos The 99th percentile of the latency in nanoseconds.
+     * @param p999Nanos The 99.9th percentile of the latency in nanoseconds.
+     * @param maxNanos The largest latency in nanoseconds.
+     */
+    public record Stats(int count, long bytes, long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos) {}
+}
@@ -0,0 +1,535 @@
+package alvinw.cryptography.merkle;
+
+import alvinw.cryptography.CryptoContext;
+import alvinw.cryptography.CryptoUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hash tree over the chunks of a single file. The root of the tree is the hash
+ * of the file that is used as its leaf in the {@link MerkleTree}, so a range of
+ * chunks can be verified against the top hash without reading the rest of the
+ * file.
+ * <p>
+ * The file is split into chunks of {@link #CHUNK_SIZE} bytes, where the last
+ * chunk may be shorter. An empty file has one empty chunk. The leaves are the
+ * SHA-256 hashes of the chunks, and a layer with an odd amount of nodes moves its
+ * last node up to the next layer unchanged.
+ * <p>
+ * The root is the SHA-256 hash of the size of the file, as 8 bytes, followed by
+ * the top node of the tree. The size decides which nodes are leaves, so a chunk
+ * whose content is two hashes can not be passed off as the inner node above them.
+ * Roots from before the size was included are not valid anymore, which changes
+ * the top hash of every stored file, so clients have to replace their top hash
+ * once with {@code Client.reanchor()}.
+ * <p>
+ * The hashes of all layers are stored as 32 byte slots, leaves first, which is
+ * also how the tree is written to disk. A tree in memory keeps them in one
+ * buffer, while a tree read from a file channel reads each hash from the file
+ * when it is needed.
+ */
+public class ChunkTree {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final int HASH_SIZE = 256 / 8;
+
+    private final long fileSize;
+    private final @Nullable ByteBuffer hashes;
+    private final @Nullable FileChannel channel;
+    private final int[] layerOffsets;
+    private final int[] layerSizes;
+
+    private ChunkTree(long fileSize, @Nullable ByteBuffer hashes, @Nullable FileChannel channel) {
+        this.fileSize = fileSize;
+        this.hashes = hashes;
+        this.channel = channel;
+        this.layerSizes = layerSizes(chunkCount(fileSize));
+        this.layerOffsets = new int[this.layerSizes.length];
+        for (int layer = 1; layer < this.layerSizes.length; layer++) {
+            this.layerOffsets[layer] = this.layerOffsets[layer - 1] + this.layerSizes[layer - 1];
+        }
+    }
+
+    /**
+     * Get the amount of chunks of a file.
+     *
+     * @param fileSize The size of the file.
+     * @return The amount of chunks.
+     */
+    public static int chunkCount(long fileSize) {
+        long chunks = Math.max(1, (fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        if (chunks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("File too large: " + fileSize);
+        }
+        return (int) chunks;
+    }
+
+    private static int[] layerSizes(int chunkCount) {
+        List<Integer> sizes = new ArrayList<>();
+        int size = chunkCount;
+        sizes.add(size);
+        while (size > 1) {
+            size = (size + 1) / 2;
+            sizes.add(size);
+        }
+        return sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int slotCount(int[] layerSizes) {
+        int slots = 0;
+        for (int size : layerSizes) {
+            slots += size;
+        }
+        return slots;
+    }
+
+    /**
+     * Create the chunk tree of file content that is in memory.
+     *
+     * @param content The file content.
+     * @return The chunk tree.
+     */
+    public static ChunkTree of(byte[] content) {
+        Hasher hasher = new Hasher();
+        hasher.update(content, 0, content.length);
+        return hasher.finish();
+    }
+
+    /**
+     * Create the chunk tree of a file by reading it to the end.
+     *
+     * @param content The stream of file content.
+     * @return The chunk tree.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static ChunkTree read(InputStream content) throws IOException {
+        Hasher hasher = new Hasher();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            hasher.update(buffer, 0, read);
+        }
+        return hasher.finish();
+    }
+
+    /**
+     * Read a chunk tree that was written with {@link #write(OutputStream)}. Only
+     * the size is read right away. The hashes are read with positional reads
+     * when they are used, so a range proof only reads its own hashes, and the
+     * file is not mapped for every request.
+     *
+     * @param channel The channel to read from, which must stay open while the
+     *                tree is used.
+     * @return The chunk tree.
+     * @throws IOException If an I/O error occurs or the tree is invalid.
+     */
+    public static ChunkTree read(FileChannel channel) throws IOException {
+        ByteBuffer sizeBuffer = ByteBuffer.allocate(8);
+        while (sizeBuffer.hasRemaining()) {
+            if (channel.read(sizeBuffer, sizeBuffer.position()) == -1) {
+                throw new IOException("Invalid chunk tree");
+            }
+        }
+        long fileSize = sizeBuffer.getLong(0);
+        if (fileSize < 0) {
+            throw new IOException("Invalid chunk tree");
+        }
+        long hashesSize = (long) slotCount(layerSizes(chunkCount(fileSize))) * HASH_SIZE;
+        if (channel.size() != 8 + hashesSize) {
+            throw new IOException("Invalid chunk tree");
+        }
+        return new ChunkTree(fileSize, null, channel);
+    }
+
+    /**
+     * Read a chunk tree that was written with {@link #write(OutputStream)} from a
+     * buffer. The hashes are not copied, the tree uses the remaining bytes of the
+     * buffer directly.
+     *
+     * @param buffer The buffer, with exactly the tree remaining.
+     * @return The chunk tree.
+     * @throws IOException If the tree is invalid.
+     */
+    public static ChunkTree read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 8) {
+            throw new IOException("Invalid chunk tree");
+        }
+        long fileSize = buffer.getLong(buffer.position());
+        if (fileSize < 0) {
+            throw new IOException("Invalid chunk tree");
+        }
+        long hashesSize = (long) slotCount(layerSizes(chunkCount(fileSize))) * HASH_SIZE;
+        if (buffer.remaining() != 8 + hashesSize) {
+            throw new IOException("Invalid chunk tree");
+        }
+        return new ChunkTree(fileSize, buffer.slice(buffer.position() + 8, (int) hashesSize), null);
+    }
+
+    /**
+     * Get the amount of bytes that {@link #write(OutputStream)} writes.
+     *
+     * @return The size in bytes.
+     */
+    public int getSerializedSize() {
+        return 8 + slotCount(this.layerSizes) * HASH_SIZE;
+    }
+
+    /**
+     * Write the size of the file and the hashes of the tree.
+     *
+     * @param output The output to write to.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void write(OutputStream output) throws IOException {
+        DataOutputStream dataOutput = new DataOutputStream(output);
+        dataOutput.writeLong(this.fileSize);
+        for (int layer = 0; layer < this.layerSizes.length; layer++) {
+            for (int index = 0; index < this.layerSizes[layer]; index++) {
+                dataOutput.write(this.getHash(layer, index));
+            }
+        }
+        dataOutput.flush();
+    }
+
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    public int getChunkCount() {
+        return this.layerSizes[0];
+    }
+
+    /**
+     * Get the root of the tree, which is the hash of the file.
+     *
+     * @return The root hash.
+     */
+    public byte[] getRootHash() {
+        return rootHash(this.fileSize, this.getHash(this.layerSizes.length - 1, 0));
+    }
+
+    private static byte[] rootHash(long fileSize, byte[] topNode) {
+        byte[] size = ByteBuffer.allocate(8).putLong(fileSize).array();
+        return CryptoContext.get().sha256(size, topNode);
+    }
+
+    /**
+     * Get a hash of the tree.
+     *
+     * @throws UncheckedIOException If the hash can not be read from the channel.
+     */
+    private byte[] getHash(int layer, int index) {
+        byte[] hash = new byte[HASH_SIZE];
+        int offset = (this.layerOffsets[layer] + index) * HASH_SIZE;
+        if (this.hashes != null) {
+            this.hashes.get(offset, hash);
+            return hash;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(hash);
+        try {
+            while (buffer.hasRemaining()) {
+                if (this.channel.read(buffer, 8L + offset + buffer.position()) == -1) {
+                    throw new EOFException("The chunk tree is truncated");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return hash;
+    }
+
+    /**
+     * Get the hashes needed to calculate the root from the hashes of a range of
+     * chunks.
+     * <p>
+     * For each layer from the leaves up, the proof contains the left neighbour of
+     * the range if the range starts with a right node, followed by the right
+     * neighbour of the range if the range ends with a left node that has one. The
+     * verifier knows from the size of the file and the range which of these are
+     * present.
+     *
+     * @param first The first chunk of the range.
+     * @param last The last chunk of the range, inclusive.
+     * @return The proof.
+     * @throws UncheckedIOException If the tree is read from a file channel and
+     * an I/O error occurs.
+     */
+    public List<byte[]> getRangeProof(int first, int last) {
+        if (first < 0 || last < first || last >= this.getChunkCount()) {
+            throw new IllegalArgumentException("Invalid chunk range " + first + "-" + last);
+        }
+        List<byte[]> proof = new ArrayList<>();
+        for (int layer = 0; layer < this.layerSizes.length - 1; layer++) {
+            if (first % 2 == 1) {
+                proof.add(this.getHash(layer, first - 1));
+            }
+            if (last % 2 == 0 && last + 1 < this.layerSizes[layer]) {
+                proof.add(this.getHash(layer, last + 1));
+            }
+            first /= 2;
+            last /= 2;
+        }
+        return proof;
+    }
+
+    /**
+     * Calculate the root of a chunk tree from the hashes of a range of chunks and
+     * the proof from {@link #getRangeProof(int, int)}.
+     *
+     * @param fileSize The size of the file.
+     * @param first The first chunk of the range.
+     * @param chunkHashes The hashes of the chunks in the range.
+     * @param proof The proof.
+     * @return The root hash, which equals the hash of the file if the chunks and
+     * the proof are correct.
+     * @throws IllegalArgumentException If the amount of hashes does not match the
+     * range.
+     */
+    public static byte[] calculateRoot(long fileSize, int first, List<byte[]> chunkHashes, List<byte[]> proof) {
+        int[] layerSizes = layerSizes(chunkCount(fileSize));
+        int last = first + chunkHashes.size() - 1;
+        if (first < 0 || last < first || last >= layerSizes[0]) {
+            throw new IllegalArgumentException("Invalid chunk range " + first + "-" + last);
+        }
+        CryptoContext context = CryptoContext.get();
+        List<byte[]> current = new ArrayList<>(chunkHashes);
+        int proofIndex = 0;
+        for (int layer = 0; layer < layerSizes.length - 1; layer++) {
+            if (first % 2 == 1) {
+                if (proofIndex >= proof.size()) {
+                    throw new IllegalArgumentException("Proof is too short");
+                }
+                current.add(0, proof.get(proofIndex++));
+                first--;
+            }
+            if (last % 2 == 0 && last + 1 < layerSizes[layer]) {
+                if (proofIndex >= proof.size()) {
+                    throw new IllegalArgumentException("Proof is too short");
+                }
+                current.add(proof.get(proofIndex++));
+                last++;
+            }
+            List<byte[]> parents = new ArrayList<>((current.size() + 1) / 2);
+            for (int i = 0; i < current.size(); i += 2) {
+                if (i + 1 < current.size()) {
+                    parents.add(context.sha256(current.get(i), current.get(i + 1)));
+                } else {
+                    // The last node of a layer with an odd amount of nodes
+                    parents.add(current.get(i));
+                }
+            }
+            current = parents;
+            first /= 2;
+            last /= 2;
+        }
+        if (proofIndex != proof.size()) {
+            throw new IllegalArgumentException("Proof is too long");
+        }
+        return rootHash(fileSize, current.get(0));
+    }
+
+    /**
+     * Write a range proof.
+     *
+     * @param proof The proof.
+     * @param dataOutput The output to write to.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void writeRangeProof(List<byte[]> proof, DataOutputStream dataOutput) throws IOException {
+        dataOutput.writeInt(proof.size());
+        for (byte[] hash : proof) {
+            dataOutput.write(hash);
+        }
+    }
+
+    /**
+     * Read a range proof.
+     *
+     * @param dataInput The data input to read from.
+     * @return The proof.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static List<byte[]> readRangeProof(DataInputStream dataInput) throws IOException {
+        int size = dataInput.readInt();
+        // A proof has at most two hashes per layer
+        if (size < 0 || size > 2 * 32) {
+            throw new IOException("Invalid range proof size " + size);
+        }
+        List<byte[]> proof = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            byte[] hash = new byte[HASH_SIZE];
+            dataInput.readFully(hash);
+            proof.add(hash);
+        }
+        return proof;
+    }
+
+    /**
+     * Calculates the chunk tree of a file as it is written, one chunk at a time,
+     * so that only the chunk hashes are kept in memory.
+     */
+    public static class Hasher {
+        private final MessageDigest digest = CryptoUtils.newSha256();
+        private final ByteArrayOutputStream leaves = new ByteArrayOutputStream();
+        private final byte[] singleByte = new byte[1];
+        private long size;
+        private int chunkRemaining = CHUNK_SIZE;
+
+        public void update(byte[] bytes, int offset, int length) {
+            this.size += length;
+            while (length > 0) {
+                int count = Math.min(length, this.chunkRemaining);
+                this.digest.update(bytes, offset, count);
+                offset += count;
+                length -= count;
+                this.hashed(count);
+            }
+        }
+
+        /**
+         * Hash the remaining bytes of a buffer. A direct or mapped buffer is hashed
+         * where it is, without copying its content onto the heap first.
+         *
+         * @param buffer The buffer, which is read to its limit.
+         */
+        public void update(ByteBuffer buffer) {
+            this.size += buffer.remaining();
+            int limit = buffer.limit();
+            while (buffer.position() < limit) {
+                int count = Math.min(limit - buffer.position(), this.chunkRemaining);
+                buffer.limit(buffer.position() + count);
+                this.digest.update(buffer);
+                buffer.limit(limit);
+                this.hashed(count);
+            }
+        }
+
+        private void hashed(int count) {
+            this.chunkRemaining -= count;
+            if (this.chunkRemaining == 0) {
+                this.leaves.writeBytes(this.digest.digest());
+                this.chunkRemaining = CHUNK_SIZE;
+            }
+        }
+
+        public void update(byte b) {
+            this.singleByte[0] = b;
+            this.update(this.singleByte, 0, 1);
+        }
+
+        /**
+         * Complete the tree. The hasher can not be used afterwards.
+         *
+         * @return The chunk tree.
+         */
+        public ChunkTree finish() {
+            if (this.chunkRemaining != CHUNK_SIZE || this.size == 0) {
+                this.leaves.writeBytes(this.digest.digest());
+            }
+            int[] layerSizes = layerSizes(chunkCount(this.size));
+            ByteBuffer hashes = ByteBuffer.allocate(slotCount(layerSizes) * HASH_SIZE);
+            hashes.put(this.leaves.toByteArray());
+            int offset = 0;
+            byte[] left = new byte[HASH_SIZE];
+            byte[] right = new byte[HASH_SIZE];
+            for (int layer = 0; layer < layerSizes.length - 1; layer++) {
+                int size = layerSizes[layer];
+                for (int i = 0; i < size; i += 2) {
+                    hashes.get((offset + i) * HASH_SIZE, left);
+                    if (i + 1 < size) {
+                        hashes.get((offset + i + 1) * HASH_SIZE, right);
+                        this.digest.update(left);
+                        this.digest.update(right);
+                        hashes.put(this.digest.digest());
+                    } else {
+                        hashes.put(left);
+                    }
+                }
+                offset += size;
+            }
+            return new ChunkTree(this.size, hashes, null);
+        }
+    }
+
+    /**
+     * An input stream that updates a {@link Hasher} with the bytes read through it.
+     */
+    public static class HashingInputStream extends FilterInputStream {
+        private final Hasher hasher;
+
+        public HashingInputStream(InputStream in, Hasher hasher) {
+            super(in);
+            this.hasher = hasher;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = this.in.read();
+            if (b != -1) {
+                this.hasher.update((byte) b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = this.in.read(b, off, len);
+            if (read > 0) {
+                this.hasher.update(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must also be hashed
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = this.read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * An output stream that updates a {@link Hasher} with the bytes written through
+     * it.
+     */
+    public static class HashingOutputStream extends FilterOutputStream {
+        private final Hasher hasher;
+
+        public HashingOutputStream(OutputStream out, Hasher hasher) {
+            super(out);
+            this.hasher = hasher;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.hasher.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.hasher.update(b, off, len);
+        }
+    }
+}
@@ -6,6 +6,8 @@ import org.jetbrains.annotations.Nullable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -16,6 +18,18 @@ import java.util.List;
  * @param sha256 The SHA-256.
  */
 public record ComplementingHash(boolean left, @Nullable byte @Nullable [] sha256) {
+    /**
+     * The version byte at the start of the compact format.
+     */
+    public static final byte COMPACT_VERSION = 1;
+    /**
+     * The largest amount of complementing hashes in the compact format, which is
+     * more than any tree that fits in memory needs.
+     */
+    public static final int MAX_COMPACT_SIZE = 64;
+    private static final int HASH_SIZE = 256 / 8;
+    private static final int COMPACT_HEADER_SIZE = 2;
+
     /**
      * Read a list of complementing hashes.
      *
@@ -65,4 +79,145 @@ public record ComplementingHash(boolean left, @Nullable byte @Nullable [] sha256
             }
         }
     }
+
+    /**
+     * Get the size of a list of complementing hashes in the compact format.
+     *
+     * @param complementingHashes The list.
+     * @return The size in bytes.
+     */
+    public static int compactSize(List<ComplementingHash> complementingHashes) {
+        int present = 0;
+        for (ComplementingHash complementingHash : complementingHashes) {
+            if (complementingHash.sha256() != null) {
+                present++;
+            }
+        }
+        return COMPACT_HEADER_SIZE + 2 * bitmapSize(complementingHashes.size()) + present * HASH_SIZE;
+    }
+
+    /**
+     * Write a list of complementing hashes in the compact format. The format is a
+     * version byte, the amount of hashes as an unsigned byte, a bitmap of which
+     * hashes are left ones, a bitmap of which hashes are present, and then the
+     * present hashes. Bit {@code i} of a bitmap is bit {@code i % 8} of byte
+     * {@code i / 8}.
+     *
+     * @param complementingHashes The list.
+     * @param buffer The buffer to write to, with at least
+     *               {@link #compactSize(List)} bytes remaining.
+     */
+    public static void writeCompact(List<ComplementingHash> complementingHashes, ByteBuffer buffer) {
+        int size = complementingHashes.size();
+        if (size > MAX_COMPACT_SIZE) {
+            throw new IllegalArgumentException("Too many complementing hashes: " + size);
+        }
+        buffer.put(COMPACT_VERSION);
+        buffer.put((byte) size);
+        int bitmapSize = bitmapSize(size);
+        int directions = buffer.position();
+        int presence = directions + bitmapSize;
+        for (int i = 0; i < 2 * bitmapSize; i++) {
+            buffer.put((byte) 0);
+        }
+        for (int i = 0; i < size; i++) {
+            ComplementingHash complementingHash = complementingHashes.get(i);
+            byte[] hash = complementingHash.sha256();
+            if (complementingHash.left()) {
+                setBit(buffer, directions, i);
+            }
+            if (hash != null) {
+                setBit(buffer, presence, i);
+                buffer.put(hash);
+            }
+        }
+    }
+
+    /**
+     * Read a list of complementing hashes in the compact format.
+     *
+     * @param buffer The buffer to read from, positioned at the version byte. The
+     *               position is moved past the list.
+     * @return The list.
+     * @throws IOException If the list is malformed.
+     * @see #writeCompact(List, ByteBuffer)
+     */
+    public static List<ComplementingHash> readCompact(ByteBuffer buffer) throws IOException {
+        try {
+            byte version = buffer.get();
+            if (version != COMPACT_VERSION) {
+                throw new IOException("Unsupported proof version " + version);
+            }
+            int size = Byte.toUnsignedInt(buffer.get());
+            if (size > MAX_COMPACT_SIZE) {
+                throw new IOException("Too many complementing hashes: " + size);
+            }
+            int bitmapSize = bitmapSize(size);
+            int directions = buffer.position();
+            int presence = directions + bitmapSize;
+            buffer.position(presence + bitmapSize);
+            for (int i = size; i < bitmapSize * 8; i++) {
+                if (getBit(buffer, directions, i) || getBit(buffer, presence, i)) {
+                    throw new IOException("Invalid proof bitmap");
+                }
+            }
+            List<ComplementingHash> complementingHashes = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                byte[] hash = null;
+                if (getBit(buffer, presence, i)) {
+                    hash = new byte[HASH_SIZE];
+                    buffer.get(hash);
+                }
+                complementingHashes.add(new ComplementingHash(getBit(buffer, directions, i), hash));
+            }
+            return complementingHashes;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated proof", e);
+        }
+    }
+
+    /**
+     * Read a list of complementing hashes in the compact format from a stream.
+     * The bitmaps are read first to know the size of the list, and the whole list
+     * is then decoded from one buffer.
+     *
+     * @param dataInput The data input to read from.
+     * @return The list.
+     * @throws IOException If an I/O error occurs or the list is malformed.
+     * @see #writeCompact(List, ByteBuffer)
+     */
+    public static List<ComplementingHash> readCompact(DataInputStream dataInput) throws IOException {
+        byte version = dataInput.readByte();
+        int size = dataInput.readUnsignedByte();
+        if (version != COMPACT_VERSION || size > MAX_COMPACT_SIZE) {
+            throw new IOException("Invalid proof");
+        }
+        int bitmapSize = bitmapSize(size);
+        int present = 0;
+        byte[] head = new byte[COMPACT_HEADER_SIZE + 2 * bitmapSize];
+        head[0] = version;
+        head[1] = (byte) size;
+        dataInput.readFully(head, COMPACT_HEADER_SIZE, 2 * bitmapSize);
+        for (int i = COMPACT_HEADER_SIZE + bitmapSize; i < head.length; i++) {
+            present += Integer.bitCount(head[i] & 0xff);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(head.length + present * HASH_SIZE);
+        buffer.put(head);
+        dataInput.readFully(buffer.array(), head.length, present * HASH_SIZE);
+        buffer.rewind();
+        return readCompact(buffer);
+    }
+
+    private static int bitmapSize(int size) {
+        return (size + 7) / 8;
+    }
+
+    private static void setBit(ByteBuffer buffer, int bitmap, int index) {
+        int position = bitmap + index / 8;
+        buffer.put(position, (byte) (buffer.get(position) | 1 << (index % 8)));
+    }
+
+    private static boolean getBit(ByteBuffer buffer, int bitmap, int index) {
+        return (buffer.get(bitmap + index / 8) & 1 << (index % 8)) != 0;
+    }
 }
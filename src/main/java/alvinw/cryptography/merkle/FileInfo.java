@@ -1,18 +1,59 @@
 package alvinw.cryptography.merkle;
 
-import alvinw.cryptography.CryptoUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Comparator;
 
 /**
  * Information about a file. Primarily the file's SHA-256 hash, and the
  * file id.
+ * <p>
+ * The hash of a file is the root of its {@link ChunkTree}, which covers both the
+ * size and the content of the file.
  */
 public class FileInfo {
+    /**
+     * Orders files by their file id, which is the order of the leaves in a
+     * {@link MerkleTree}.
+     */
+    static final Comparator<FileInfo> FILE_ID_ORDER =
+        (o1, o2) -> compareByteArrays(o1.getFileId(), o2.getFileId());
+
     private final byte[] sha256;
     private final byte[] fileId;
 
     public FileInfo(byte[] fileId, byte[] content) {
         this.fileId = fileId;
-        this.sha256 = CryptoUtils.sha256(content);
+        this.sha256 = ChunkTree.of(content).getRootHash();
+    }
+
+    private FileInfo(byte[] fileId, byte[] sha256, Void hashed) {
+        this.fileId = fileId;
+        this.sha256 = sha256;
+    }
+
+    /**
+     * Create file info from a hash that has already been calculated.
+     *
+     * @param fileId The file id.
+     * @param sha256 The hash of the file content.
+     * @return The file info.
+     */
+    public static FileInfo ofHash(byte[] fileId, byte[] sha256) {
+        return new FileInfo(fileId, sha256, null);
+    }
+
+    /**
+     * Create file info by hashing the content of a file as it is read, without
+     * keeping the whole file in memory.
+     *
+     * @param fileId The file id.
+     * @param content The stream of file content.
+     * @return The file info.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static FileInfo read(byte[] fileId, InputStream content) throws IOException {
+        return ofHash(fileId, ChunkTree.read(content).getRootHash());
     }
 
     public byte[] getSha256() {
@@ -22,4 +63,16 @@ public class FileInfo {
     public byte[] getFileId() {
         return fileId;
     }
+
+    static int compareByteArrays(byte[] left, byte[] right) {
+        // https://stackoverflow.com/a/5108711
+        for (int i = 0, j = 0; i < left.length && j < right.length; i++, j++) {
+            int a = (left[i] & 0xff);
+            int b = (right[j] & 0xff);
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return left.length - right.length;
+    }
 }
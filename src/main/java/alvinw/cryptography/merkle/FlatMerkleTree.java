@@ -0,0 +1,544 @@
+package alvinw.cryptography.merkle;
+
+import alvinw.cryptography.CryptoContext;
+import alvinw.cryptography.CryptoUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * A {@link MerkleTree} that stores the hashes of all layers as 32 byte slots in
+ * one contiguous buffer, optionally outside the Java heap.
+ * <p>
+ * The leaves are stored first, followed by each layer above them and finally the
+ * top hash. Parents and siblings are found by index arithmetic instead of by
+ * following references, so the tree only consists of a few objects no matter how
+ * many files it contains. The file ids are stored the same way, together with an
+ * open addressing table from file id to leaf position.
+ * <p>
+ * A {@link #snapshot() snapshot} shares the buffers with the tree. The tree
+ * never writes to buffers that a snapshot reads: inserting files already moves
+ * everything to new buffers, and replacing a file copies the hashes first if
+ * they are still shared.
+ * <p>
+ * File ids must be 32 bytes long (SHA-256 hashes).
+ */
+public class FlatMerkleTree implements MerkleTree {
+    private static final int HASH_SIZE = 256 / 8;
+
+    private final boolean direct;
+    private final boolean parallel;
+    private final boolean readOnly;
+
+    private int size;
+    /**
+     * The file ids sorted, one slot per file.
+     */
+    private ByteBuffer fileIds;
+    /**
+     * The hashes of all layers, one slot per node.
+     */
+    private ByteBuffer hashes;
+    /**
+     * The slot of the first node in each layer, where layer 0 are the leaves.
+     */
+    private int[] layerOffsets;
+    private int[] layerSizes;
+    /**
+     * Open addressing table from file id to leaf position. Positions are stored
+     * plus one so that 0 means an empty bucket.
+     */
+    private int[] positions;
+    /**
+     * Whether a snapshot reads the current hashes buffer.
+     */
+    private boolean shared;
+
+    private FlatMerkleTree(boolean direct, boolean parallel, boolean readOnly) {
+        this.direct = direct;
+        this.parallel = parallel;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Create a flat Merkle tree from a set of files. The tree is identical to the
+     * one created by {@link MerkleTree#fromFiles(Set)}.
+     *
+     * @param files The files.
+     * @param direct Whether to store the hashes in direct buffers outside the heap.
+     * @return The Merkle tree.
+     */
+    public static FlatMerkleTree fromFiles(Set<FileInfo> files, boolean direct) {
+        return fromFiles(files, direct, false);
+    }
+
+    /**
+     * Create a flat Merkle tree from a set of files. The tree is identical to the
+     * one created by {@link MerkleTree#fromFiles(Set)}.
+     * <p>
+     * When built in parallel, each layer is split into chunks that are hashed on
+     * the common fork/join pool, and the layer is completed before the next one
+     * is started. Nodes that are hashed again after adding a file are also
+     * hashed in parallel.
+     *
+     * @param files The files.
+     * @param direct Whether to store the hashes in direct buffers outside the heap.
+     * @param parallel Whether to hash the layers in parallel.
+     * @return The Merkle tree.
+     */
+    public static FlatMerkleTree fromFiles(Set<FileInfo> files, boolean direct, boolean parallel) {
+        Stream<FileInfo> stream = parallel ? files.parallelStream() : files.stream();
+        List<FileInfo> sortedFiles = stream
+            .sorted(FileInfo.FILE_ID_ORDER)
+            .toList();
+
+        FlatMerkleTree tree = new FlatMerkleTree(direct, parallel, false);
+        tree.size = sortedFiles.size();
+        tree.fileIds = tree.allocate(sortedFiles.size());
+        tree.layout(sortedFiles.size());
+        for (int i = 0; i < sortedFiles.size(); i++) {
+            FileInfo file = sortedFiles.get(i);
+            tree.fileIds.put(i * HASH_SIZE, checkFileId(file.getFileId()));
+            tree.hashes.put(i * HASH_SIZE, file.getSha256());
+        }
+        tree.duplicateLastLeaf();
+        tree.hashLayers(0);
+        tree.index();
+        return tree;
+    }
+
+    /**
+     * Create a read-only tree from hashes that are already calculated.
+     *
+     * @param sortedFiles The files, sorted by file id.
+     * @param layers The nodes of each layer, from the leaves to the top node, in
+     *               the same layout as this tree.
+     * @return The Merkle tree.
+     */
+    static FlatMerkleTree copyOf(List<FileInfo> sortedFiles, List<? extends List<? extends Node>> layers) {
+        FlatMerkleTree tree = new FlatMerkleTree(false, false, true);
+        tree.size = sortedFiles.size();
+        tree.fileIds = tree.allocate(sortedFiles.size());
+        tree.layout(sortedFiles.size());
+        if (layers.size() != tree.layerSizes.length) {
+            throw new IllegalArgumentException("Expected " + tree.layerSizes.length + " layers, got " + layers.size());
+        }
+        for (int i = 0; i < sortedFiles.size(); i++) {
+            tree.fileIds.put(i * HASH_SIZE, checkFileId(sortedFiles.get(i).getFileId()));
+        }
+        for (int layer = 0; layer < tree.layerSizes.length; layer++) {
+            List<? extends Node> nodes = layers.get(layer);
+            if (nodes.size() != tree.layerSizes[layer]) {
+                throw new IllegalArgumentException("Expected " + tree.layerSizes[layer] + " nodes in layer " + layer + ", got " + nodes.size());
+            }
+            for (int index = 0; index < nodes.size(); index++) {
+                tree.hashes.put((tree.layerOffsets[layer] + index) * HASH_SIZE, nodes.get(index).hash());
+            }
+        }
+        tree.index();
+        return tree;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The snapshot shares the buffers with this tree, so taking it does not copy
+     * anything. The next file that is replaced in this tree copies the hashes
+     * once, and files that are inserted are moved to new buffers anyway.
+     */
+    @Override
+    public MerkleTree snapshot() {
+        if (this.readOnly) {
+            return this;
+        }
+        FlatMerkleTree snapshot = new FlatMerkleTree(this.direct, this.parallel, true);
+        snapshot.size = this.size;
+        snapshot.fileIds = this.fileIds;
+        snapshot.hashes = this.hashes;
+        snapshot.layerOffsets = this.layerOffsets;
+        snapshot.layerSizes = this.layerSizes;
+        snapshot.positions = this.positions;
+        this.shared = true;
+        return snapshot;
+    }
+
+    @Override
+    public byte[] getTopHash() {
+        if (this.layerSizes.length == 0) {
+            return new byte[HASH_SIZE];
+        }
+        return this.getHash(this.layerSizes.length - 1, 0);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Replacing a file hashes the path to the root again. Adding a new file
+     * shifts the positions of all files after it, so the layers are copied to a
+     * new buffer and only the nodes to the right of the new leaf are hashed again.
+     */
+    @Override
+    public void put(FileInfo file) {
+        this.checkWritable();
+        byte[] fileId = checkFileId(file.getFileId());
+        int position = this.find(fileId);
+        if (position < 0) {
+            this.insert(this.insertionPoint(fileId), file);
+            return;
+        }
+        this.unshare();
+        this.hashes.put(position * HASH_SIZE, file.getSha256());
+        this.duplicateLastLeaf();
+        for (int layer = 1; layer < this.layerSizes.length; layer++) {
+            this.hashNode(CryptoContext.get(), layer, position >> layer);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * New files are merged into the leaves in one pass, together with the new
+     * hashes of replaced files, and every node that covers a changed leaf is
+     * hashed once, instead of once per file.
+     */
+    @Override
+    public void putAll(Collection<FileInfo> files) {
+        this.checkWritable();
+        Map<ByteBuffer, FileInfo> added = new LinkedHashMap<>();
+        Map<Integer, byte[]> replaced = new HashMap<>();
+        for (FileInfo file : files) {
+            byte[] fileId = checkFileId(file.getFileId());
+            int position = this.find(fileId);
+            if (position < 0) {
+                added.put(ByteBuffer.wrap(fileId), file);
+            } else {
+                replaced.put(position, file.getSha256());
+            }
+        }
+        if (added.isEmpty()) {
+            if (replaced.isEmpty()) {
+                return;
+            }
+            this.unshare();
+            for (Map.Entry<Integer, byte[]> entry : replaced.entrySet()) {
+                this.hashes.put(entry.getKey() * HASH_SIZE, entry.getValue());
+            }
+            this.duplicateLastLeaf();
+            this.hashPaths(replaced.keySet());
+            return;
+        }
+        List<FileInfo> sortedAdded = new ArrayList<>(added.values());
+        sortedAdded.sort(FileInfo.FILE_ID_ORDER);
+        this.insertAll(sortedAdded, replaced);
+    }
+
+    private void checkWritable() {
+        if (this.readOnly) {
+            throw new UnsupportedOperationException("The tree is a read-only snapshot");
+        }
+    }
+
+    /**
+     * Copy the hashes before they are changed in place, if a snapshot still reads
+     * them.
+     */
+    private void unshare() {
+        if (this.shared) {
+            ByteBuffer hashes = this.allocate(this.hashes.capacity() / HASH_SIZE);
+            hashes.put(0, this.hashes, 0, this.hashes.capacity());
+            this.hashes = hashes;
+            this.shared = false;
+        }
+    }
+
+    /**
+     * Hash the nodes on the paths from some leaves to the root, each node once.
+     */
+    private void hashPaths(Collection<Integer> positions) {
+        int[] indices = positions.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+        for (int layer = 1; layer < this.layerSizes.length; layer++) {
+            int previous = -1;
+            for (int position : indices) {
+                int index = position >> layer;
+                if (index != previous) {
+                    this.hashNode(CryptoContext.get(), layer, index);
+                    previous = index;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge new files, sorted by file id, into the leaves.
+     *
+     * @param added The new files.
+     * @param replaced The new hashes of replaced files, keyed by their positions
+     *                 before the new files are merged.
+     */
+    private void insertAll(List<FileInfo> added, Map<Integer, byte[]> replaced) {
+        int oldSize = this.size;
+        ByteBuffer oldFileIds = this.fileIds;
+        ByteBuffer oldHashes = this.hashes;
+        int[] oldLayerOffsets = this.layerOffsets;
+
+        this.size = oldSize + added.size();
+        this.fileIds = this.allocate(this.size);
+        this.layout(this.size);
+        int oldPosition = 0;
+        int addedIndex = 0;
+        int firstChanged = Integer.MAX_VALUE;
+        for (int position = 0; position < this.size; position++) {
+            if (addedIndex < added.size()
+                && (oldPosition >= oldSize || compareFileId(oldFileIds, oldPosition, added.get(addedIndex).getFileId()) > 0)) {
+                FileInfo file = added.get(addedIndex++);
+                this.fileIds.put(position * HASH_SIZE, file.getFileId());
+                this.hashes.put(position * HASH_SIZE, file.getSha256());
+                firstChanged = Math.min(firstChanged, position);
+            } else {
+                this.fileIds.put(position * HASH_SIZE, oldFileIds, oldPosition * HASH_SIZE, HASH_SIZE);
+                byte[] replacedHash = replaced.get(oldPosition);
+                if (replacedHash != null) {
+                    this.hashes.put(position * HASH_SIZE, replacedHash);
+                    firstChanged = Math.min(firstChanged, position);
+                } else {
+                    this.hashes.put(position * HASH_SIZE, oldHashes, oldPosition * HASH_SIZE, HASH_SIZE);
+                }
+                oldPosition++;
+            }
+        }
+        this.duplicateLastLeaf();
+
+        // Nodes that only cover leaves before the first changed leaf keep their hashes
+        for (int layer = 1; layer < this.layerSizes.length && layer < oldLayerOffsets.length; layer++) {
+            int unchanged = firstChanged >> layer;
+            this.hashes.put(this.layerOffsets[layer] * HASH_SIZE, oldHashes, oldLayerOffsets[layer] * HASH_SIZE, unchanged * HASH_SIZE);
+        }
+        this.hashLayers(firstChanged);
+        this.index();
+    }
+
+    private void insert(int position, FileInfo file) {
+        int oldSize = this.size;
+        ByteBuffer oldFileIds = this.fileIds;
+        ByteBuffer oldHashes = this.hashes;
+        int[] oldLayerOffsets = this.layerOffsets;
+
+        this.size = oldSize + 1;
+        this.fileIds = this.allocate(this.size);
+        this.fileIds.put(0, oldFileIds, 0, position * HASH_SIZE);
+        this.fileIds.put(position * HASH_SIZE, file.getFileId());
+        this.fileIds.put((position + 1) * HASH_SIZE, oldFileIds, position * HASH_SIZE, (oldSize - position) * HASH_SIZE);
+
+        this.layout(this.size);
+        this.hashes.put(0, oldHashes, 0, position * HASH_SIZE);
+        this.hashes.put(position * HASH_SIZE, file.getSha256());
+        this.hashes.put((position + 1) * HASH_SIZE, oldHashes, position * HASH_SIZE, (oldSize - position) * HASH_SIZE);
+        this.duplicateLastLeaf();
+
+        // Nodes that only cover leaves before the new leaf keep their hashes
+        for (int layer = 1; layer < this.layerSizes.length && layer < oldLayerOffsets.length; layer++) {
+            int unchanged = position >> layer;
+            this.hashes.put(this.layerOffsets[layer] * HASH_SIZE, oldHashes, oldLayerOffsets[layer] * HASH_SIZE, unchanged * HASH_SIZE);
+        }
+        this.hashLayers(position);
+        this.index();
+    }
+
+    @Override
+    public int indexOf(byte[] fileId) {
+        return this.find(fileId);
+    }
+
+    @Override
+    public @Nullable List<ComplementingHash> getComplementingHashes(byte[] fileId) {
+        int position = this.find(fileId);
+        if (position < 0) {
+            return null;
+        }
+        List<ComplementingHash> complementingHashes = new ArrayList<>(this.layerSizes.length - 1);
+        for (int layer = 0; layer < this.layerSizes.length - 1; layer++) {
+            int index = position >> layer;
+            int sibling = index ^ 1;
+            if (sibling < this.layerSizes[layer]) {
+                complementingHashes.add(new ComplementingHash(sibling < index, this.getHash(layer, sibling)));
+            } else {
+                complementingHashes.add(new ComplementingHash(false, null));
+            }
+        }
+        return complementingHashes;
+    }
+
+    /**
+     * Calculate the sizes and offsets of the layers for an amount of files and
+     * allocate a buffer for them.
+     */
+    private void layout(int files) {
+        List<Integer> sizes = new ArrayList<>();
+        int layerSize = files + files % 2;
+        if (layerSize > 0) {
+            sizes.add(layerSize);
+            while (layerSize > 1) {
+                layerSize = (layerSize + 1) / 2;
+                sizes.add(layerSize);
+            }
+        }
+        this.layerSizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+        this.layerOffsets = new int[this.layerSizes.length];
+        int slots = 0;
+        for (int layer = 0; layer < this.layerSizes.length; layer++) {
+            this.layerOffsets[layer] = slots;
+            slots += this.layerSizes[layer];
+        }
+        this.hashes = this.allocate(slots);
+        this.shared = false;
+    }
+
+    private ByteBuffer allocate(int slots) {
+        if (slots > Integer.MAX_VALUE / HASH_SIZE) {
+            throw new IllegalStateException("Too many files for a flat Merkle tree: " + this.size);
+        }
+        return this.direct
+            ? ByteBuffer.allocateDirect(slots * HASH_SIZE)
+            : ByteBuffer.allocate(slots * HASH_SIZE);
+    }
+
+    private void duplicateLastLeaf() {
+        // If odd amount of files copy last file
+        if (this.size % 2 == 1) {
+            this.hashes.put(this.size * HASH_SIZE, this.hashes, (this.size - 1) * HASH_SIZE, HASH_SIZE);
+        }
+    }
+
+    /**
+     * Hash all nodes above the leaves that cover a leaf at or after a position.
+     */
+    private void hashLayers(int fromPosition) {
+        for (int layer = 1; layer < this.layerSizes.length; layer++) {
+            int from = fromPosition >> layer;
+            int to = this.layerSizes[layer];
+            if (this.parallel && to - from > RangeTask.CHUNK_SIZE) {
+                int hashLayer = layer;
+                ForkJoinPool.commonPool().invoke(new RangeTask(from, to, (chunkFrom, chunkTo) -> {
+                    CryptoContext context = CryptoContext.get();
+                    for (int index = chunkFrom; index < chunkTo; index++) {
+                        this.hashNode(context, hashLayer, index);
+                    }
+                }));
+            } else {
+                for (int index = from; index < to; index++) {
+                    this.hashNode(CryptoContext.get(), layer, index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate the hash of a node from its children, which are stored next to
+     * each other in the layer below.
+     */
+    private void hashNode(CryptoContext context, int layer, int index) {
+        int firstChild = index * 2;
+        int children = firstChild + 1 < this.layerSizes[layer - 1] ? 2 : 1;
+        int childOffset = (this.layerOffsets[layer - 1] + firstChild) * HASH_SIZE;
+        int offset = (this.layerOffsets[layer] + index) * HASH_SIZE;
+        context.sha256(this.hashes.slice(childOffset, children * HASH_SIZE), this.hashes.slice(offset, HASH_SIZE));
+    }
+
+    private byte[] getHash(int layer, int index) {
+        byte[] hash = new byte[HASH_SIZE];
+        this.hashes.get((this.layerOffsets[layer] + index) * HASH_SIZE, hash);
+        return hash;
+    }
+
+    private void index() {
+        int capacity = Integer.highestOneBit(Math.max(16, this.size * 2) - 1) << 1;
+        this.positions = new int[capacity];
+        for (int position = 0; position < this.size; position++) {
+            int bucket = this.bucket(this.fileIds.getInt(position * HASH_SIZE));
+            while (this.positions[bucket] != 0) {
+                bucket = (bucket + 1) & (capacity - 1);
+            }
+            this.positions[bucket] = position + 1;
+        }
+    }
+
+    private int bucket(int fileIdPrefix) {
+        return (fileIdPrefix * 0x9E3779B9) >>> 1 & (this.positions.length - 1);
+    }
+
+    /**
+     * Find the leaf position of a file.
+     *
+     * @return The position, or -1 if the file is not in the tree.
+     */
+    private int find(byte[] fileId) {
+        if (fileId.length != HASH_SIZE) {
+            return -1;
+        }
+        int bucket = this.bucket(ByteBuffer.wrap(fileId).getInt(0));
+        while (this.positions[bucket] != 0) {
+            int position = this.positions[bucket] - 1;
+            if (this.compareFileId(position, fileId) == 0) {
+                return position;
+            }
+            bucket = (bucket + 1) & (this.positions.length - 1);
+        }
+        return -1;
+    }
+
+    private int insertionPoint(byte[] fileId) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.compareFileId(middle, fileId) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int compareFileId(int position, byte[] fileId) {
+        return compareFileId(this.fileIds, position, fileId);
+    }
+
+    private static int compareFileId(ByteBuffer fileIds, int position, byte[] fileId) {
+        int offset = position * HASH_SIZE;
+        for (int i = 0; i < HASH_SIZE; i++) {
+            int a = fileIds.get(offset + i) & 0xff;
+            int b = fileId[i] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    private static byte[] checkFileId(byte[] fileId) {
+        if (fileId.length != HASH_SIZE) {
+            throw new IllegalArgumentException("File ids must be " + HASH_SIZE + " bytes, got " + fileId.length);
+        }
+        return fileId;
+    }
+
+    @Override
+    public String toString() {
+        return "FlatMerkleTree, root hash: " + CryptoUtils.hexString(this.getTopHash()) + ", files: " + this.size;
+    }
+}
@@ -1,9 +1,9 @@
 package alvinw.cryptography.merkle;
 
+import alvinw.cryptography.CryptoContext;
 import alvinw.cryptography.CryptoUtils;
 import org.jetbrains.annotations.Nullable;
 
-import java.nio.ByteBuffer;
 import java.util.stream.Collectors;
 
 /**
@@ -13,6 +13,11 @@ public class InnerNode implements Node {
     private InnerNode parent;
     private final Node a;
     private final @Nullable Node b;
+    /**
+     * The cached hash of this node, or null if it has to be calculated. When a
+     * node has no cached hash, neither does any of its ancestors.
+     */
+    private byte @Nullable [] hash;
 
     public InnerNode(Node a, @Nullable Node b) {
         this.a = a;
@@ -25,11 +30,27 @@ public class InnerNode implements Node {
 
     @Override
     public byte[] hash() {
+        byte[] hash = this.hash;
+        if (hash != null) {
+            return hash;
+        }
         byte[] aHash = this.a.hash();
-        byte[] bHash = this.b != null ? this.b.hash() : new byte[0];
-        byte[] both = new byte[aHash.length + bHash.length];
-        ByteBuffer.wrap(both).put(aHash).put(bHash);
-        return CryptoUtils.sha256(both);
+        byte[] bHash = this.b != null ? this.b.hash() : null;
+        hash = CryptoContext.get().sha256(aHash, bHash);
+        this.hash = hash;
+        return hash;
+    }
+
+    /**
+     * Clear the cached hash of this node and all of its ancestors. Must be called
+     * when the hash of a child node changes.
+     */
+    public void invalidate() {
+        InnerNode node = this;
+        while (node != null && node.hash != null) {
+            node.hash = null;
+            node = node.parent;
+        }
     }
 
     @Override
@@ -11,7 +11,7 @@ import java.util.List;
  */
 public final class LeafNode implements Node {
     private InnerNode parent;
-    private final byte[] hash;
+    private byte[] hash;
 
     public LeafNode(byte @NotNull [] hash) {
         this.hash = hash;
@@ -32,6 +32,19 @@ public final class LeafNode implements Node {
         return hash;
     }
 
+    /**
+     * Set the hash of this leaf, for example when the file it represents has
+     * been replaced. The cached hashes of all ancestors are cleared.
+     *
+     * @param hash The new SHA-256 hash.
+     */
+    public void setHash(byte @NotNull [] hash) {
+        this.hash = hash;
+        if (this.parent != null) {
+            this.parent.invalidate();
+        }
+    }
+
     @Override
     public String toString() {
         return CryptoUtils.hexString(this.hash);
@@ -1,54 +1,93 @@
 package alvinw.cryptography.merkle;
 
-import alvinw.cryptography.CryptoUtils;
+import alvinw.cryptography.CryptoContext;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 /**
  * A Merkle tree.
+ * <p>
+ * The leaves are the hashes of files sorted by their file id. If there is an odd
+ * amount of files the last file is duplicated. A layer with an odd amount of nodes
+ * hashes its last node alone.
  */
-public class MerkleTree {
-    private final Node rootNode;
+public interface MerkleTree {
+    /**
+     * Get the top hash of the tree. An empty tree has a top hash of only zeros.
+     *
+     * @return The top hash.
+     */
+    byte[] getTopHash();
 
-    public MerkleTree(Node rootNode) {
-        this.rootNode = rootNode;
-    }
+    /**
+     * Get the amount of files in the tree.
+     *
+     * @return The amount of files.
+     */
+    int size();
 
-    public byte[] getTopHash() {
-        return this.rootNode.hash();
-    }
+    /**
+     * Add a file to the tree, or replace the file with the same file id.
+     *
+     * @param file The file.
+     */
+    void put(FileInfo file);
 
     /**
-     * Find a node by recurring down the tree and testing against a predicate. The
-     * first node to match is returned.
+     * Add or replace several files at once. If the same file id occurs more than
+     * once, the last file is used.
+     * <p>
+     * The default implementation puts the files one at a time. Implementations
+     * override it to update the tree once for all files.
      *
-     * @param predicate The predicate to test on nodes.
-     * @return The found node, or null.
+     * @param files The files.
      */
-    public Node find(Predicate<Node> predicate) {
-        Queue<Node> queue = new LinkedList<>();
-        queue.add(this.rootNode);
-        while (!queue.isEmpty()) {
-            Node current = queue.poll();
-            if (predicate.test(current)) {
-                return current;
-            }
-            if (current instanceof InnerNode innerNode) {
-                queue.add(innerNode.getA());
-                Node b = innerNode.getB();
-                if (b != null) {
-                    queue.add(b);
-                }
-            }
+    default void putAll(Collection<FileInfo> files) {
+        for (FileInfo file : files) {
+            this.put(file);
         }
-        return null;
+    }
+
+    /**
+     * Get the complementing hashes needed to calculate the top hash from the hash
+     * of a file.
+     *
+     * @param fileId The file id.
+     * @return The complementing hashes, or null if the file is not in the tree.
+     */
+    @Nullable List<ComplementingHash> getComplementingHashes(byte[] fileId);
+
+    /**
+     * Get the position of the leaf of a file, counted from the left.
+     *
+     * @param fileId The file id.
+     * @return The position, or -1 if the file is not in the tree.
+     */
+    int indexOf(byte[] fileId);
+
+    /**
+     * Get a read-only view of the tree as it is now. Files that are put in the
+     * tree later do not change the snapshot, so it can be read by several
+     * threads while the tree is updated.
+     *
+     * @return The snapshot.
+     * @throws UnsupportedOperationException If the tree does not support
+     * snapshots.
+     */
+    MerkleTree snapshot();
+
+    /**
+     * Get a proof that several files are in the tree.
+     *
+     * @param fileIds The file ids, without duplicates.
+     * @return The multiproof, or null if a file is not in the tree.
+     */
+    default @Nullable MultiProof getMultiProof(List<byte[]> fileIds) {
+        return MultiProof.create(this, fileIds);
     }
 
     /**
@@ -60,51 +99,23 @@ public class MerkleTree {
      * @param files The files.
      * @return The Merkle tree.
      */
-    public static MerkleTree fromFiles(Set<FileInfo> files) {
-        List<FileInfo> sortedFiles = files.stream()
-            .sorted((o1, o2) -> compareByteArrays(o1.getFileId(), o2.getFileId()))
-            .collect(Collectors.toList());
-
-        // If odd amount of files copy last file
-        if (sortedFiles.size() % 2 == 1) {
-            FileInfo lastFile = sortedFiles.get(sortedFiles.size() - 1);
-            sortedFiles.add(lastFile);
-        }
-        List<Node> leafNodes = sortedFiles.stream()
-            .map(file -> (Node) new LeafNode(file.getSha256()))
-            .toList();
-
-        List<Node> layerNodes = leafNodes;
-        while (layerNodes.size() > 1) {
-            List<Node> newLayerNodes = new ArrayList<>();
-            for (int i = 0; i < layerNodes.size(); i += 2) {
-                Node a = layerNodes.get(i);
-                Node b =
-                    i + 1 < layerNodes.size()
-                    ? layerNodes.get(i + 1)
-                    : null;
-                InnerNode newNode = new InnerNode(a, b);
-                newLayerNodes.add(newNode);
-            }
-            layerNodes = newLayerNodes;
-        }
-        return new MerkleTree(layerNodes.get(0));
+    static MerkleTree fromFiles(Set<FileInfo> files) {
+        return NodeMerkleTree.fromFiles(files);
     }
 
-    private static int compareByteArrays(byte[] left, byte[] right) {
-        // https://stackoverflow.com/a/5108711
-        for (int i = 0, j = 0; i < left.length && j < right.length; i++, j++) {
-            int a = (left[i] & 0xff);
-            int b = (right[j] & 0xff);
-            if (a != b) {
-                return a - b;
-            }
-        }
-        return left.length - right.length;
+    /**
+     * Create a Merkle tree from a set of files, hashing each layer in parallel.
+     * The tree is identical to the one created by {@link #fromFiles(Set)}.
+     *
+     * @param files The files.
+     * @return The Merkle tree.
+     */
+    static MerkleTree fromFilesParallel(Set<FileInfo> files) {
+        return NodeMerkleTree.fromFiles(files, true);
     }
 
     /**
-     * Verify a file by recreating the Merkle tree from complementing hashes and
+     * Verify a file by calculating the top hash from the complementing hashes and
      * comparing it to the expected top hash.
      *
      * @param fileNode The file to verify.
@@ -112,27 +123,21 @@ public class MerkleTree {
      * @param complementingHashes The complementing hashes to the top.
      * @return Whether verification was successful.
      */
-    public static boolean verifyFile(LeafNode fileNode, byte[] topHash, List<ComplementingHash> complementingHashes) {
-        Node current = fileNode;
+    static boolean verifyFile(LeafNode fileNode, byte[] topHash, List<ComplementingHash> complementingHashes) {
+        CryptoContext context = CryptoContext.get();
+        byte[] current = fileNode.hash();
 
         for (ComplementingHash complementingHash : complementingHashes) {
             byte[] hash = complementingHash.sha256();
-            LeafNode complementingNode = hash != null ? new LeafNode(hash) : null;
-            Node a;
-            Node b;
             if (complementingHash.left()) {
-                a = complementingNode;
-                b = current;
+                current = context.sha256(hash, current);
             } else {
-                a = current;
-                b = complementingNode;
+                current = context.sha256(current, hash);
             }
-            current = new InnerNode(a, b);
         }
 
-        // Current is now top node
-        byte[] calculatedTopHash = current.hash();
-        return Arrays.equals(calculatedTopHash, topHash);
+        // Current is now the top hash
+        return Arrays.equals(current, topHash);
     }
 
     /**
@@ -145,7 +150,7 @@ public class MerkleTree {
      * @return The Merkle tree.
      */
     // https://i.imgur.com/6c5HsdB.png
-    public static MerkleTree reconstruct(byte[] dataHash, List<ComplementingHash> hashes) {
+    static MerkleTree reconstruct(byte[] dataHash, List<ComplementingHash> hashes) {
         Node current = new LeafNode(dataHash);
         for (ComplementingHash complementingHash : hashes) {
             Node a;
@@ -164,11 +169,6 @@ public class MerkleTree {
             if (b != null) b.setParent(parent);
             current = parent;
         }
-        return new MerkleTree(current);
-    }
-
-    @Override
-    public String toString() {
-        return "MerkleTree, root hash: " + CryptoUtils.hexString(this.rootNode.hash()) + ":\n" + this.rootNode;
+        return new NodeMerkleTree(current);
     }
 }
@@ -0,0 +1,195 @@
+package alvinw.cryptography.merkle;
+
+import alvinw.cryptography.CryptoContext;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A proof that several files are in a {@link MerkleTree}.
+ * <p>
+ * Instead of one list of complementing hashes per file, a multiproof contains
+ * every hash that is needed to calculate the top hash from the hashes of the
+ * files exactly once. Hashes that can be calculated from the files themselves,
+ * such as the parent of two of the files, are left out. The proof therefore
+ * grows with about k * log2(n/k) hashes for k of n files, instead of k * log2(n).
+ * <p>
+ * The hashes are ordered layer by layer from the leaves up, and by position
+ * within each layer. The verifier knows from the amount of files in the tree
+ * and the positions of the proven files which hashes it is missing, so no
+ * directions have to be sent.
+ *
+ * @param fileCount The amount of files in the tree.
+ * @param positions The positions of the leaves of the proven files.
+ * @param hashes The hashes needed to calculate the top hash.
+ */
+public record MultiProof(int fileCount, int[] positions, List<byte[]> hashes) {
+    private static final int HASH_SIZE = 256 / 8;
+
+    /**
+     * Create a multiproof for some files in a tree.
+     *
+     * @param tree The tree.
+     * @param fileIds The file ids of the files to prove, without duplicates.
+     * @return The multiproof, or null if a file is not in the tree.
+     */
+    static @Nullable MultiProof create(MerkleTree tree, List<byte[]> fileIds) {
+        int[] positions = new int[fileIds.size()];
+        // The complementing hashes of one file below each known node
+        Map<Integer, List<ComplementingHash>> known = new TreeMap<>();
+        for (int i = 0; i < fileIds.size(); i++) {
+            positions[i] = tree.indexOf(fileIds.get(i));
+            if (positions[i] < 0) {
+                return null;
+            }
+            List<ComplementingHash> complementingHashes = tree.getComplementingHashes(fileIds.get(i));
+            if (known.put(positions[i], complementingHashes) != null) {
+                throw new IllegalArgumentException("Duplicate file id");
+            }
+        }
+        int fileCount = tree.size();
+        if (fileCount % 2 == 1 && known.containsKey(fileCount - 1)) {
+            // The duplicate of the last leaf is known when the last file is
+            known.put(fileCount, known.get(fileCount - 1));
+        }
+
+        List<byte[]> hashes = new ArrayList<>();
+        int layer = 0;
+        int layerSize = fileCount + fileCount % 2;
+        while (layerSize > 1) {
+            Map<Integer, List<ComplementingHash>> parents = new TreeMap<>();
+            for (Map.Entry<Integer, List<ComplementingHash>> entry : known.entrySet()) {
+                int index = entry.getKey();
+                int sibling = index ^ 1;
+                if (sibling < layerSize && !known.containsKey(sibling)) {
+                    hashes.add(entry.getValue().get(layer).sha256());
+                }
+                parents.putIfAbsent(index / 2, entry.getValue());
+            }
+            known = parents;
+            layerSize = (layerSize + 1) / 2;
+            layer++;
+        }
+        return new MultiProof(fileCount, positions, hashes);
+    }
+
+    /**
+     * Calculate the top hash from the hashes of the proven files.
+     *
+     * @param fileHashes The hashes of the files, in the same order as
+     *                   {@link #positions()}.
+     * @return The top hash, which equals the top hash of the tree if the files and
+     * the proof are correct.
+     * @throws IllegalArgumentException If the proof does not fit the files.
+     */
+    public byte[] calculateTopHash(List<byte[]> fileHashes) {
+        if (fileHashes.size() != this.positions.length || this.positions.length == 0) {
+            throw new IllegalArgumentException("Expected " + this.positions.length + " file hashes");
+        }
+        TreeMap<Integer, byte[]> known = new TreeMap<>();
+        for (int i = 0; i < this.positions.length; i++) {
+            int position = this.positions[i];
+            if (position < 0 || position >= this.fileCount || known.put(position, fileHashes.get(i)) != null) {
+                throw new IllegalArgumentException("Invalid position " + position);
+            }
+        }
+        if (this.fileCount % 2 == 1 && known.containsKey(this.fileCount - 1)) {
+            known.put(this.fileCount, known.get(this.fileCount - 1));
+        }
+
+        CryptoContext context = CryptoContext.get();
+        int proofIndex = 0;
+        int layerSize = this.fileCount + this.fileCount % 2;
+        while (layerSize > 1) {
+            TreeMap<Integer, byte[]> parents = new TreeMap<>();
+            for (Map.Entry<Integer, byte[]> entry : known.entrySet()) {
+                int index = entry.getKey();
+                if (index % 2 == 1 && known.containsKey(index - 1)) {
+                    // Already hashed together with its left sibling
+                    continue;
+                }
+                byte[] parent;
+                if (index % 2 == 0 && index + 1 >= layerSize) {
+                    // The last node of a layer with an odd amount of nodes
+                    parent = context.sha256(entry.getValue(), null);
+                } else {
+                    byte[] sibling = index % 2 == 0 ? known.get(index + 1) : null;
+                    if (sibling == null) {
+                        if (proofIndex >= this.hashes.size()) {
+                            throw new IllegalArgumentException("Proof is too short");
+                        }
+                        sibling = this.hashes.get(proofIndex++);
+                    }
+                    if (index % 2 == 0) {
+                        parent = context.sha256(entry.getValue(), sibling);
+                    } else {
+                        parent = context.sha256(sibling, entry.getValue());
+                    }
+                }
+                parents.put(index / 2, parent);
+            }
+            known = parents;
+            layerSize = (layerSize + 1) / 2;
+        }
+        if (proofIndex != this.hashes.size()) {
+            throw new IllegalArgumentException("Proof is too long");
+        }
+        return known.firstEntry().getValue();
+    }
+
+    /**
+     * Write the multiproof.
+     *
+     * @param dataOutput The output to write to.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void write(DataOutputStream dataOutput) throws IOException {
+        dataOutput.writeInt(this.fileCount);
+        dataOutput.writeInt(this.positions.length);
+        for (int position : this.positions) {
+            dataOutput.writeInt(position);
+        }
+        dataOutput.writeInt(this.hashes.size());
+        for (byte[] hash : this.hashes) {
+            dataOutput.write(hash);
+        }
+    }
+
+    /**
+     * Read a multiproof.
+     *
+     * @param dataInput The data input to read from.
+     * @param maxFiles The largest amount of proven files to accept.
+     * @return The multiproof.
+     * @throws IOException If an I/O error occurs or the proof is too large.
+     */
+    public static MultiProof read(DataInputStream dataInput, int maxFiles) throws IOException {
+        int fileCount = dataInput.readInt();
+        int positionCount = dataInput.readInt();
+        if (fileCount < 0 || positionCount < 0 || positionCount > maxFiles) {
+            throw new IOException("Invalid multiproof");
+        }
+        int[] positions = new int[positionCount];
+        for (int i = 0; i < positionCount; i++) {
+            positions[i] = dataInput.readInt();
+        }
+        int hashCount = dataInput.readInt();
+        // At most one hash per proven file and layer
+        if (hashCount < 0 || (long) hashCount > (long) positionCount * 32) {
+            throw new IOException("Invalid multiproof");
+        }
+        List<byte[]> hashes = new ArrayList<>(hashCount);
+        for (int i = 0; i < hashCount; i++) {
+            byte[] hash = new byte[HASH_SIZE];
+            dataInput.readFully(hash);
+            hashes.add(hash);
+        }
+        return new MultiProof(fileCount, positions, hashes);
+    }
+}
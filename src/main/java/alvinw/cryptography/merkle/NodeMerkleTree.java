@@ -0,0 +1,319 @@
+package alvinw.cryptography.merkle;
+
+import alvinw.cryptography.CryptoUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A {@link MerkleTree} made up of linked {@link Node} objects.
+ */
+public class NodeMerkleTree implements MerkleTree {
+    private @Nullable Node rootNode;
+    /**
+     * The files in the tree sorted by file id, or null if the tree was not
+     * created from files.
+     */
+    private final @Nullable List<FileInfo> files;
+    /**
+     * Whether to build and hash the layers in parallel.
+     */
+    private final boolean parallel;
+    private final List<LeafNode> leafNodes = new ArrayList<>();
+    /**
+     * The inner nodes of each layer above the leaves, from the bottom up.
+     */
+    private final List<List<InnerNode>> innerLayers = new ArrayList<>();
+    /**
+     * The position of each file's leaf, keyed by the file id.
+     */
+    private final Map<ByteBuffer, Integer> positions = new HashMap<>();
+
+    public NodeMerkleTree(@Nullable Node rootNode) {
+        this.rootNode = rootNode;
+        this.files = null;
+        this.parallel = false;
+    }
+
+    private NodeMerkleTree(List<FileInfo> sortedFiles, boolean parallel) {
+        this.files = sortedFiles;
+        this.parallel = parallel;
+        this.relink(0);
+    }
+
+    @Override
+    public byte[] getTopHash() {
+        if (this.rootNode == null) {
+            return new byte[256 / 8];
+        }
+        return this.rootNode.hash();
+    }
+
+    @Override
+    public int size() {
+        return this.files != null ? this.files.size() : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Replacing a file only changes the hash of its leaf, so only the hashes on
+     * the path to the root have to be calculated again. Adding a new file
+     * shifts the positions of all files after it, so the nodes that cover the new
+     * leaf or any leaf to the right of it are linked again, while the nodes to the
+     * left of it keep their cached hashes.
+     */
+    @Override
+    public void put(FileInfo file) {
+        if (this.files == null) {
+            throw new UnsupportedOperationException("Tree was not created from files");
+        }
+        Integer position = this.positions.get(ByteBuffer.wrap(file.getFileId()));
+        if (position == null) {
+            int index = -Collections.binarySearch(this.files, file, FileInfo.FILE_ID_ORDER) - 1;
+            this.files.add(index, file);
+            this.relink(index);
+            return;
+        }
+        this.files.set(position, file);
+        this.setLeafHash(position, file);
+    }
+
+    private void setLeafHash(int position, FileInfo file) {
+        this.leafNodes.get(position).setHash(file.getSha256());
+        if (position == this.files.size() - 1 && this.leafNodes.size() > this.files.size()) {
+            // The last file is duplicated when the amount of files is odd
+            this.leafNodes.get(position + 1).setHash(file.getSha256());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Replaced files only change the hashes of their leaves. If any file is new,
+     * the nodes from the leftmost new leaf and to the right are linked again once
+     * for all the files.
+     */
+    @Override
+    public void putAll(Collection<FileInfo> files) {
+        if (this.files == null) {
+            throw new UnsupportedOperationException("Tree was not created from files");
+        }
+        Map<ByteBuffer, FileInfo> added = new LinkedHashMap<>();
+        Map<Integer, FileInfo> replaced = new LinkedHashMap<>();
+        for (FileInfo file : files) {
+            ByteBuffer key = ByteBuffer.wrap(file.getFileId());
+            Integer position = this.positions.get(key);
+            if (position != null) {
+                replaced.put(position, file);
+            } else {
+                added.put(key, file);
+            }
+        }
+        if (added.isEmpty()) {
+            for (FileInfo file : replaced.values()) {
+                this.put(file);
+            }
+            return;
+        }
+        int firstAdded = this.files.size();
+        for (FileInfo file : added.values()) {
+            int index = -Collections.binarySearch(this.files, file, FileInfo.FILE_ID_ORDER) - 1;
+            firstAdded = Math.min(firstAdded, index);
+        }
+        for (Map.Entry<Integer, FileInfo> entry : replaced.entrySet()) {
+            this.files.set(entry.getKey(), entry.getValue());
+            if (entry.getKey() < firstAdded) {
+                // Leaves from the first new leaf are created again anyway
+                this.setLeafHash(entry.getKey(), entry.getValue());
+            }
+        }
+        this.files.addAll(added.values());
+        this.files.sort(FileInfo.FILE_ID_ORDER);
+        this.relink(firstAdded);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The hashes of all nodes are copied to a read-only {@link FlatMerkleTree}.
+     */
+    @Override
+    public MerkleTree snapshot() {
+        if (this.files == null) {
+            throw new UnsupportedOperationException("Tree was not created from files");
+        }
+        List<List<? extends Node>> layers = new ArrayList<>();
+        if (!this.leafNodes.isEmpty()) {
+            layers.add(this.leafNodes);
+        }
+        layers.addAll(this.innerLayers);
+        return FlatMerkleTree.copyOf(this.files, layers);
+    }
+
+    /**
+     * Create the leaves from a position and link the nodes above them again. The
+     * nodes that only cover leaves before the position are kept together with
+     * their cached hashes.
+     *
+     * @param from The first position whose file has changed since the tree was
+     *             last linked.
+     */
+    private void relink(int from) {
+        List<FileInfo> files = this.files;
+        this.leafNodes.subList(from, this.leafNodes.size()).clear();
+        for (int i = from; i < files.size(); i++) {
+            this.leafNodes.add(new LeafNode(files.get(i).getSha256()));
+            this.positions.put(ByteBuffer.wrap(files.get(i).getFileId()), i);
+        }
+        // If odd amount of files copy last file
+        if (files.size() % 2 == 1) {
+            this.leafNodes.add(new LeafNode(files.get(files.size() - 1).getSha256()));
+        }
+
+        List<? extends Node> layerNodes = this.leafNodes;
+        int layerIndex = 0;
+        while (layerNodes.size() > 1) {
+            if (layerIndex == this.innerLayers.size()) {
+                this.innerLayers.add(new ArrayList<>());
+            }
+            List<? extends Node> layer = layerNodes;
+            List<InnerNode> innerLayer = this.innerLayers.get(layerIndex);
+            int kept = Math.min(from >> (layerIndex + 1), innerLayer.size());
+            innerLayer.subList(kept, innerLayer.size()).clear();
+            InnerNode[] newLayerNodes = new InnerNode[(layer.size() + 1) / 2 - kept];
+            RangeTask.Chunk chunk = (chunkFrom, chunkTo) -> {
+                for (int i = chunkFrom; i < chunkTo; i++) {
+                    int index = kept + i;
+                    Node a = layer.get(index * 2);
+                    Node b =
+                        index * 2 + 1 < layer.size()
+                        ? layer.get(index * 2 + 1)
+                        : null;
+                    InnerNode newNode = new InnerNode(a, b);
+                    if (this.parallel) {
+                        // The layer below is already hashed, so this only hashes the new node
+                        newNode.hash();
+                    }
+                    newLayerNodes[i] = newNode;
+                }
+            };
+            if (this.parallel) {
+                ForkJoinPool.commonPool().invoke(new RangeTask(0, newLayerNodes.length, chunk));
+            } else {
+                chunk.process(0, newLayerNodes.length);
+            }
+            innerLayer.addAll(Arrays.asList(newLayerNodes));
+            layerNodes = innerLayer;
+            layerIndex++;
+        }
+        this.innerLayers.subList(layerIndex, this.innerLayers.size()).clear();
+        this.rootNode = layerNodes.isEmpty() ? null : layerNodes.get(0);
+    }
+
+    /**
+     * Get the leaf of a file.
+     *
+     * @param fileId The file id.
+     * @return The leaf node, or null if the file is not in the tree.
+     */
+    public @Nullable LeafNode getLeaf(byte[] fileId) {
+        Integer position = this.positions.get(ByteBuffer.wrap(fileId));
+        return position != null ? this.leafNodes.get(position) : null;
+    }
+
+    @Override
+    public int indexOf(byte[] fileId) {
+        Integer position = this.positions.get(ByteBuffer.wrap(fileId));
+        return position != null ? position : -1;
+    }
+
+    @Override
+    public @Nullable List<ComplementingHash> getComplementingHashes(byte[] fileId) {
+        LeafNode leaf = this.getLeaf(fileId);
+        return leaf != null ? leaf.getComplementingHashes() : null;
+    }
+
+    /**
+     * Find a node by recurring down the tree and testing against a predicate. The
+     * first node to match is returned.
+     *
+     * @param predicate The predicate to test on nodes.
+     * @return The found node, or null.
+     */
+    public Node find(Predicate<Node> predicate) {
+        if (this.rootNode == null) {
+            return null;
+        }
+        Queue<Node> queue = new LinkedList<>();
+        queue.add(this.rootNode);
+        while (!queue.isEmpty()) {
+            Node current = queue.poll();
+            if (predicate.test(current)) {
+                return current;
+            }
+            if (current instanceof InnerNode innerNode) {
+                queue.add(innerNode.getA());
+                Node b = innerNode.getB();
+                if (b != null) {
+                    queue.add(b);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Create a Merkle tree from a set of files.
+     * <p>
+     * The same set of files will always produce the same Merkle tree, as files are
+     * sorted by their file id.
+     *
+     * @param files The files.
+     * @return The Merkle tree.
+     */
+    public static NodeMerkleTree fromFiles(Set<FileInfo> files) {
+        return fromFiles(files, false);
+    }
+
+    /**
+     * Create a Merkle tree from a set of files.
+     * <p>
+     * When built in parallel, each layer is split into chunks that are linked and
+     * hashed on the common fork/join pool, and the layer is completed before the
+     * next one is started. This produces the same tree as building it on one
+     * thread. Files that are added later are also linked in parallel.
+     *
+     * @param files The files.
+     * @param parallel Whether to build the tree in parallel.
+     * @return The Merkle tree.
+     */
+    public static NodeMerkleTree fromFiles(Set<FileInfo> files, boolean parallel) {
+        Stream<FileInfo> stream = parallel ? files.parallelStream() : files.stream();
+        List<FileInfo> sortedFiles = stream
+            .sorted(FileInfo.FILE_ID_ORDER)
+            .collect(Collectors.toList());
+        return new NodeMerkleTree(sortedFiles, parallel);
+    }
+
+
+    @Override
+    public String toString() {
+        return "MerkleTree, root hash: " + CryptoUtils.hexString(this.getTopHash()) + ":\n" + this.rootNode;
+    }
+}
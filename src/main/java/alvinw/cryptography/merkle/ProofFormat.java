@@ -0,0 +1,112 @@
+package alvinw.cryptography.merkle;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The wire format of a list of {@link ComplementingHash complementing hashes}.
+ * <p>
+ * The client lists the formats it accepts in the {@value #ACCEPT_HEADER} request
+ * header, and the server names the format it used in the {@value #HEADER}
+ * response header. A client that sends no header, or a server that does not send
+ * one back, uses {@link #LEGACY}.
+ */
+public enum ProofFormat {
+    /**
+     * The original format, with the amount of hashes as an int and two booleans
+     * before each hash.
+     */
+    LEGACY,
+    /**
+     * A version byte and the amount of hashes, followed by a bitmap of the
+     * directions, a bitmap of which hashes are present and the present hashes.
+     */
+    COMPACT;
+
+    public static final String ACCEPT_HEADER = "Accept-Proof-Format";
+    public static final String HEADER = "Proof-Format";
+
+    /**
+     * Get the value of this format in the headers.
+     *
+     * @return The value.
+     */
+    public String headerValue() {
+        return this.name().toLowerCase();
+    }
+
+    /**
+     * Choose the format to reply with.
+     *
+     * @param accept The value of the {@value #ACCEPT_HEADER} request header, a
+     *               comma separated list of formats, or null if not present.
+     * @return The most compact format that the client accepts.
+     */
+    public static ProofFormat negotiate(@Nullable String accept) {
+        if (accept != null) {
+            for (String value : accept.split(",")) {
+                if (COMPACT.headerValue().equalsIgnoreCase(value.trim())) {
+                    return COMPACT;
+                }
+            }
+        }
+        return LEGACY;
+    }
+
+    /**
+     * Get the format that a reply was sent in.
+     *
+     * @param value The value of the {@value #HEADER} response header, or null if
+     *              not present.
+     * @return The format.
+     * @throws IOException If the format is unknown.
+     */
+    public static ProofFormat fromHeader(@Nullable String value) throws IOException {
+        if (value == null) {
+            return LEGACY;
+        }
+        for (ProofFormat format : values()) {
+            if (format.headerValue().equalsIgnoreCase(value.trim())) {
+                return format;
+            }
+        }
+        throw new IOException("Unknown proof format " + value);
+    }
+
+    /**
+     * Write a list of complementing hashes in this format.
+     *
+     * @param complementingHashes The list.
+     * @param dataOutput The output to write to.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void write(List<ComplementingHash> complementingHashes, DataOutputStream dataOutput) throws IOException {
+        switch (this) {
+            case LEGACY -> ComplementingHash.write(complementingHashes, dataOutput);
+            case COMPACT -> {
+                ByteBuffer buffer = ByteBuffer.allocate(ComplementingHash.compactSize(complementingHashes));
+                ComplementingHash.writeCompact(complementingHashes, buffer);
+                dataOutput.write(buffer.array());
+            }
+        }
+    }
+
+    /**
+     * Read a list of complementing hashes in this format.
+     *
+     * @param dataInput The data input to read from.
+     * @return The list.
+     * @throws IOException If an I/O error occurs or the list is malformed.
+     */
+    public List<ComplementingHash> read(DataInputStream dataInput) throws IOException {
+        return switch (this) {
+            case LEGACY -> ComplementingHash.read(dataInput);
+            case COMPACT -> ComplementingHash.readCompact(dataInput);
+        };
+    }
+}
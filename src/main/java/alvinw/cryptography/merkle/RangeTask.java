@@ -0,0 +1,60 @@
+package alvinw.cryptography.merkle;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A fork/join task that splits a range of indices into chunks and processes the
+ * chunks in parallel.
+ */
+class RangeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The amount of indices below which a range is processed on one thread.
+     */
+    static final int CHUNK_SIZE = 1024;
+
+    private final int from;
+    private final int to;
+    private final Chunk chunk;
+
+    /**
+     * Create a task.
+     *
+     * @param from The first index, inclusive.
+     * @param to The last index, exclusive.
+     * @param chunk The action to run for each chunk.
+     */
+    RangeTask(int from, int to, Chunk chunk) {
+        this.from = from;
+        this.to = to;
+        this.chunk = chunk;
+    }
+
+    @Override
+    protected void compute() {
+        if (this.to - this.from <= CHUNK_SIZE) {
+            this.chunk.process(this.from, this.to);
+            return;
+        }
+        int middle = (this.from + this.to) >>> 1;
+        invokeAll(
+            new RangeTask(this.from, middle, this.chunk),
+            new RangeTask(middle, this.to, this.chunk)
+        );
+    }
+
+    /**
+     * Processes a chunk of indices.
+     */
+    @FunctionalInterface
+    interface Chunk {
+        /**
+         * Process the indices in a chunk.
+         *
+         * @param from The first index, inclusive.
+         * @param to The last index, exclusive.
+         */
+        void process(int from, int to);
+    }
+}
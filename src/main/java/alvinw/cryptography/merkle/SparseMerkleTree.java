@@ -0,0 +1,460 @@
+package alvinw.cryptography.merkle;
+
+import alvinw.cryptography.CryptoContext;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A sparse Merkle tree with one leaf for every possible file id.
+ * <p>
+ * Unlike a {@link MerkleTree}, where the leaves are the files sorted by file id,
+ * the tree always has a depth of 256 and the position of a file is its file id
+ * read as a 256 bit number, most significant bit first. Storing a file therefore
+ * only changes the hashes on the path from its leaf to the top, and a proof stays
+ * valid for as long as no file on the path to the top changes.
+ * <p>
+ * The leaf of a file is the hash of the file, and the leaf of a file id that is
+ * not stored is 32 zero bytes. A parent is the SHA-256 hash of its two children,
+ * so the hash of an empty subtree only depends on its height and is calculated
+ * once. Only the subtrees that contain files are kept, with chains of nodes that
+ * have a single child collapsed into one edge, so the tree has at most two nodes
+ * per file.
+ * <p>
+ * A {@link Proof} of a file id contains the siblings of the path from the leaf to
+ * the top, leaving out the siblings that are empty subtrees. The same proof shows
+ * that a file is stored with a certain hash, or that no file is stored with that
+ * file id.
+ * <p>
+ * File ids must be 32 bytes long (SHA-256 hashes). The tree is not thread safe.
+ */
+public class SparseMerkleTree {
+    /**
+     * The amount of layers below the top, one per bit of a file id.
+     */
+    public static final int DEPTH = 256;
+    private static final int HASH_SIZE = 256 / 8;
+    /**
+     * The hashes of empty subtrees by their height, where height 0 is a leaf.
+     */
+    private static final byte[][] EMPTY_HASHES = new byte[DEPTH + 1][];
+
+    static {
+        CryptoContext context = CryptoContext.get();
+        EMPTY_HASHES[0] = new byte[HASH_SIZE];
+        for (int height = 1; height <= DEPTH; height++) {
+            EMPTY_HASHES[height] = context.sha256(EMPTY_HASHES[height - 1], EMPTY_HASHES[height - 1]);
+        }
+    }
+
+    private @Nullable Node root;
+    private int size;
+
+    /**
+     * Create a sparse Merkle tree from a collection of files. If the same file id
+     * occurs more than once, the last file is used.
+     *
+     * @param files The files.
+     * @return The sparse Merkle tree.
+     */
+    public static SparseMerkleTree fromFiles(Collection<FileInfo> files) {
+        SparseMerkleTree tree = new SparseMerkleTree();
+        tree.putAll(files);
+        return tree;
+    }
+
+    /**
+     * Get the hash of an empty subtree.
+     *
+     * @param height The height of the subtree, where 0 is a single leaf.
+     * @return The hash, which must not be modified.
+     */
+    static byte[] emptyHash(int height) {
+        return EMPTY_HASHES[height];
+    }
+
+    /**
+     * Get the top hash of the tree. The top hash of an empty tree is the hash of
+     * an empty subtree of height {@link #DEPTH}.
+     *
+     * @return The top hash.
+     */
+    public byte[] getTopHash() {
+        return (this.root == null ? EMPTY_HASHES[DEPTH] : this.root.hashAt(DEPTH)).clone();
+    }
+
+    /**
+     * Get the amount of files in the tree.
+     *
+     * @return The amount of files.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Add a file to the tree, or replace the file with the same file id.
+     *
+     * @param file The file.
+     */
+    public void put(FileInfo file) {
+        byte[] fileId = file.getFileId();
+        if (fileId.length != HASH_SIZE) {
+            throw new IllegalArgumentException("File ids must be " + HASH_SIZE + " bytes");
+        }
+        if (Arrays.equals(file.getSha256(), EMPTY_HASHES[0])) {
+            throw new IllegalArgumentException("The hash of a file can not be the hash of an empty leaf");
+        }
+        this.root = this.insert(this.root, DEPTH, new Leaf(fileId, file.getSha256()));
+    }
+
+    /**
+     * Add or replace several files. If the same file id occurs more than once, the
+     * last file is used.
+     *
+     * @param files The files.
+     */
+    public void putAll(Collection<FileInfo> files) {
+        for (FileInfo file : files) {
+            this.put(file);
+        }
+    }
+
+    /**
+     * Insert a leaf into a subtree.
+     *
+     * @param node The node of the subtree, or null if it is empty.
+     * @param height The height of the subtree, which may be above the node if the
+     *               path down to it has no other files.
+     * @param leaf The leaf.
+     * @return The new node of the subtree.
+     */
+    private Node insert(@Nullable Node node, int height, Leaf leaf) {
+        if (node == null) {
+            this.size++;
+            return leaf;
+        }
+        if (node instanceof Leaf existing && Arrays.equals(existing.fileId, leaf.fileId)) {
+            return leaf;
+        }
+        // The first bit where the new file leaves the path to the node
+        int bit = firstDifferentBit(leaf.fileId, node.fileId());
+        int splitHeight = DEPTH - bit;
+        if (splitHeight > node.height) {
+            this.size++;
+            return getBit(leaf.fileId, bit) ? new Branch(splitHeight, node, leaf) : new Branch(splitHeight, leaf, node);
+        }
+        // The file is below the branch
+        Branch branch = (Branch) node;
+        if (getBit(leaf.fileId, DEPTH - branch.height)) {
+            return new Branch(branch.height, branch.left, this.insert(branch.right, branch.height - 1, leaf));
+        } else {
+            return new Branch(branch.height, this.insert(branch.left, branch.height - 1, leaf), branch.right);
+        }
+    }
+
+    /**
+     * Get the hash of a stored file.
+     *
+     * @param fileId The file id.
+     * @return The hash, or null if the file is not in the tree.
+     */
+    public byte @Nullable [] get(byte[] fileId) {
+        if (fileId.length != HASH_SIZE) {
+            throw new IllegalArgumentException("File ids must be " + HASH_SIZE + " bytes");
+        }
+        Node node = this.root;
+        while (node instanceof Branch branch) {
+            node = getBit(fileId, DEPTH - branch.height) ? branch.right : branch.left;
+        }
+        if (node instanceof Leaf leaf && Arrays.equals(leaf.fileId, fileId)) {
+            return leaf.sha256.clone();
+        }
+        return null;
+    }
+
+    /**
+     * Get the proof of a file id, which shows either that a file with that id is
+     * in the tree, or that none is.
+     *
+     * @param fileId The file id.
+     * @return The proof.
+     */
+    public Proof getProof(byte[] fileId) {
+        if (fileId.length != HASH_SIZE) {
+            throw new IllegalArgumentException("File ids must be " + HASH_SIZE + " bytes");
+        }
+        byte[][] siblings = new byte[DEPTH][];
+        Node node = this.root;
+        // Walk down from the top, where the node is somewhere below the current height
+        for (int height = DEPTH; height > 0 && node != null; height--) {
+            boolean right = getBit(fileId, DEPTH - height);
+            if (node instanceof Branch branch && branch.height == height) {
+                siblings[height - 1] = (right ? branch.left : branch.right).hashAt(height - 1);
+                node = right ? branch.right : branch.left;
+            } else if (getBit(node.fileId(), DEPTH - height) != right) {
+                // The path leaves the only files in this subtree, so the file is not stored
+                siblings[height - 1] = node.hashAt(height - 1);
+                node = null;
+            }
+        }
+        byte[] bitmap = new byte[DEPTH / 8];
+        List<byte[]> hashes = new ArrayList<>();
+        for (int height = 0; height < DEPTH; height++) {
+            if (siblings[height] != null) {
+                bitmap[height / 8] |= (byte) (1 << (height % 8));
+                hashes.add(siblings[height]);
+            }
+        }
+        return new Proof(bitmap, hashes);
+    }
+
+    /**
+     * Verify a file, or that a file is not stored, by calculating the top hash
+     * from a proof and comparing it to the expected top hash.
+     *
+     * @param topHash The expected top hash.
+     * @param fileId The file id.
+     * @param sha256 The hash of the file, or null to verify that no file with the
+     *               file id is stored.
+     * @param proof The proof of the file id.
+     * @return Whether verification was successful.
+     */
+    public static boolean verify(byte[] topHash, byte[] fileId, byte @Nullable [] sha256, Proof proof) {
+        try {
+            return Arrays.equals(topHash, proof.calculateTopHash(fileId, sha256));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get bit {@code index} of a file id, where bit 0 is the most significant bit
+     * of the first byte. A set bit means the right child.
+     */
+    private static boolean getBit(byte[] fileId, int index) {
+        return (fileId[index / 8] & (0x80 >>> (index % 8))) != 0;
+    }
+
+    private static int firstDifferentBit(byte[] a, byte[] b) {
+        int index = Arrays.mismatch(a, b);
+        if (index == -1) {
+            return DEPTH;
+        }
+        return index * 8 + Integer.numberOfLeadingZeros((a[index] ^ b[index]) & 0xff) - 24;
+    }
+
+    /**
+     * Calculate the hash of the parent of a node whose sibling is an empty
+     * subtree.
+     *
+     * @param context The context to hash with.
+     * @param fileId A file id on the path to the node.
+     * @param height The height of the node.
+     * @param hash The hash of the node.
+     * @return The hash of the parent.
+     */
+    private static byte[] hashWithEmptySibling(CryptoContext context, byte[] fileId, int height, byte[] hash) {
+        if (getBit(fileId, DEPTH - 1 - height)) {
+            return context.sha256(EMPTY_HASHES[height], hash);
+        }
+        return context.sha256(hash, EMPTY_HASHES[height]);
+    }
+
+    /**
+     * A subtree that contains at least one file.
+     */
+    private abstract static sealed class Node permits Leaf, Branch {
+        /**
+         * The height of the node, below which the files split up.
+         */
+        final int height;
+        /**
+         * The hash of the node at a height above its own, when it is the only
+         * node in a subtree of that height, which is kept since the parent of a
+         * node rarely changes height.
+         */
+        private int liftedHeight = -1;
+        private byte @Nullable [] lifted;
+
+        Node(int height) {
+            this.height = height;
+        }
+
+        /**
+         * Get the file id of one of the files in the subtree, which is on the path
+         * from the top to the node.
+         */
+        abstract byte[] fileId();
+
+        abstract byte[] hash();
+
+        /**
+         * Get the hash of the subtree of a height at or above the node, which
+         * contains no other files than the ones in the node.
+         *
+         * @param height The height of the subtree.
+         * @return The hash.
+         */
+        byte[] hashAt(int height) {
+            if (height == this.height) {
+                return this.hash();
+            }
+            if (height != this.liftedHeight) {
+                CryptoContext context = CryptoContext.get();
+                byte[] hash = this.hash();
+                for (int h = this.height; h < height; h++) {
+                    hash = hashWithEmptySibling(context, this.fileId(), h, hash);
+                }
+                this.lifted = hash;
+                this.liftedHeight = height;
+            }
+            return this.lifted;
+        }
+    }
+
+    private static final class Leaf extends Node {
+        private final byte[] fileId;
+        private final byte[] sha256;
+
+        Leaf(byte[] fileId, byte[] sha256) {
+            super(0);
+            this.fileId = fileId;
+            this.sha256 = sha256;
+        }
+
+        @Override
+        byte[] fileId() {
+            return this.fileId;
+        }
+
+        @Override
+        byte[] hash() {
+            return this.sha256;
+        }
+    }
+
+    /**
+     * A node where the files split up into both children. The children may be
+     * further down, with only empty subtrees next to the path down to them.
+     */
+    private static final class Branch extends Node {
+        private final Node left;
+        private final Node right;
+        private final byte[] hash;
+
+        Branch(int height, Node left, Node right) {
+            super(height);
+            this.left = left;
+            this.right = right;
+            this.hash = CryptoContext.get().sha256(left.hashAt(height - 1), right.hashAt(height - 1));
+        }
+
+        @Override
+        byte[] fileId() {
+            return this.left.fileId();
+        }
+
+        @Override
+        byte[] hash() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * A proof of a file id in a {@link SparseMerkleTree}.
+     * <p>
+     * The proof contains the siblings of the path from the leaf of the file id to
+     * the top that are not empty subtrees, from the leaf up. The bitmap tells which
+     * siblings are included, so the proof of a file in a tree of n files has about
+     * log2(n) hashes instead of {@link #DEPTH}.
+     *
+     * @param bitmap Bit {@code i % 8} of byte {@code i / 8} is set if the sibling of
+     *               height {@code i} is included.
+     * @param hashes The included siblings, by height.
+     */
+    public record Proof(byte[] bitmap, List<byte[]> hashes) {
+        public Proof {
+            if (bitmap.length != DEPTH / 8) {
+                throw new IllegalArgumentException("The bitmap must be " + DEPTH / 8 + " bytes");
+            }
+            int included = 0;
+            for (byte b : bitmap) {
+                included += Integer.bitCount(b & 0xff);
+            }
+            if (included != hashes.size()) {
+                throw new IllegalArgumentException("Expected " + included + " hashes");
+            }
+        }
+
+        /**
+         * Calculate the top hash from the leaf of a file id.
+         *
+         * @param fileId The file id.
+         * @param sha256 The hash of the file, or null if no file with the file id
+         *               is stored.
+         * @return The top hash, which equals the top hash of the tree if the file
+         * and the proof are correct.
+         */
+        public byte[] calculateTopHash(byte[] fileId, byte @Nullable [] sha256) {
+            if (fileId.length != HASH_SIZE) {
+                throw new IllegalArgumentException("File ids must be " + HASH_SIZE + " bytes");
+            }
+            CryptoContext context = CryptoContext.get();
+            byte[] current = sha256 != null ? sha256 : EMPTY_HASHES[0];
+            int hashIndex = 0;
+            for (int height = 0; height < DEPTH; height++) {
+                if ((this.bitmap[height / 8] & (1 << (height % 8))) == 0) {
+                    current = hashWithEmptySibling(context, fileId, height, current);
+                } else if (getBit(fileId, DEPTH - 1 - height)) {
+                    current = context.sha256(this.hashes.get(hashIndex++), current);
+                } else {
+                    current = context.sha256(current, this.hashes.get(hashIndex++));
+                }
+            }
+            return current;
+        }
+
+        /**
+         * Write the proof as the bitmap followed by the included hashes.
+         *
+         * @param dataOutput The output to write to.
+         * @throws IOException If an I/O error occurs.
+         */
+        public void write(DataOutputStream dataOutput) throws IOException {
+            dataOutput.write(this.bitmap);
+            for (byte[] hash : this.hashes) {
+                dataOutput.write(hash);
+            }
+        }
+
+        /**
+         * Read a proof that was written with {@link #write(DataOutputStream)}.
+         *
+         * @param dataInput The data input to read from.
+         * @return The proof.
+         * @throws IOException If an I/O error occurs.
+         */
+        public static Proof read(DataInputStream dataInput) throws IOException {
+            byte[] bitmap = new byte[DEPTH / 8];
+            dataInput.readFully(bitmap);
+            int included = 0;
+            for (byte b : bitmap) {
+                included += Integer.bitCount(b & 0xff);
+            }
+            List<byte[]> hashes = new ArrayList<>(included);
+            for (int i = 0; i < included; i++) {
+                byte[] hash = new byte[HASH_SIZE];
+                dataInput.readFully(hash);
+                hashes.add(hash);
+            }
+            return new Proof(bitmap, hashes);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package alvinw.cryptography.server;
+
+import alvinw.cryptography.BoundedInputStream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Http handler for the endpoint that uploads many files in one request.
+ * <p>
+ * The request body starts with the amount of files, followed by a frame for
+ * each file: the length of the file name, the file name in UTF-8, the length of
+ * the file and the file content. All files are added to the Merkle tree in one
+ * update, and a body that ends before all its files are sent is rejected. The
+ * response contains the new top hash followed by a
+ * {@link alvinw.cryptography.merkle.MultiProof} of the files, in the order the
+ * files were sent.
+ */
+public class BatchUploadEndpoint implements HttpHandler {
+    public static final int MAX_FILES = 10_000;
+    private static final int MAX_FILE_NAME_LENGTH = 1024;
+
+    private final FileStorage fileStorage;
+    private final Log log;
+
+    public BatchUploadEndpoint(FileStorage fileStorage, Log log) {
+        this.fileStorage = fileStorage;
+        this.log = log;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, 0);
+            exchange.getResponseBody().close();
+            return;
+        }
+        FileStorage.Commit commit;
+        try (InputStream requestBody = exchange.getRequestBody();
+             FileStorage.Batch batch = this.fileStorage.beginBatch()) {
+            DataInputStream input = new DataInputStream(requestBody);
+            try {
+                int count = input.readInt();
+                if (count <= 0 || count > MAX_FILES) {
+                    this.sendBadRequest(exchange);
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    int fileNameLength = input.readInt();
+                    if (fileNameLength <= 0 || fileNameLength > MAX_FILE_NAME_LENGTH) {
+                        this.sendBadRequest(exchange);
+                        return;
+                    }
+                    byte[] fileName = new byte[fileNameLength];
+                    input.readFully(fileName);
+                    long size = input.readLong();
+                    if (size < 0) {
+                        this.sendBadRequest(exchange);
+                        return;
+                    }
+                    try {
+                        batch.add(this.fileStorage.getFileId(new String(fileName, StandardCharsets.UTF_8)), new BoundedInputStream(input, size));
+                    } catch (IllegalArgumentException e) {
+                        // The same file was sent twice
+                        this.sendBadRequest(exchange);
+                        return;
+                    }
+                }
+            } catch (EOFException e) {
+                // The body ended before all the files it announced were sent
+                this.sendBadRequest(exchange);
+                return;
+            }
+            commit = batch.commit();
+        }
+        if (this.log.isEnabled()) {
+            this.log.log("stored_batch", "files", commit.files().size(), "version", commit.snapshot().version());
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DataOutputStream dataOutput = new DataOutputStream(output);
+        dataOutput.write(commit.snapshot().topHash());
+        commit.multiProof().write(dataOutput);
+        byte[] outputBytes = output.toByteArray();
+
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_CREATED, outputBytes.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(outputBytes);
+        }
+    }
+
+    private void sendBadRequest(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, -1);
+        exchange.getResponseBody().close();
+    }
+}
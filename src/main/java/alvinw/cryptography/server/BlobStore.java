@@ -0,0 +1,130 @@
+package alvinw.cryptography.server;
+
+import alvinw.cryptography.merkle.ChunkTree;
+import alvinw.cryptography.merkle.FileInfo;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Where a {@link FileStorage} keeps the content and the chunk tree of every
+ * stored file.
+ * <p>
+ * The file storage holds the lock of a file id while it opens or commits a blob
+ * with that id, so a blob store only has to handle concurrent calls for
+ * different file ids.
+ *
+ * @see FileBlobStore
+ * @see PackBlobStore
+ */
+public interface BlobStore extends Closeable {
+    /**
+     * Prepare the store for use and list the stored blobs. This is called once
+     * before any other method.
+     *
+     * @return The file id and hash of every stored blob.
+     * @throws IOException If an I/O error occurs.
+     */
+    List<FileInfo> load() throws IOException;
+
+    /**
+     * List the ids of all the stored blobs. The stream must be closed, and can be
+     * processed in parallel.
+     *
+     * @return The stream of file ids.
+     * @throws IOException If an I/O error occurs.
+     */
+    Stream<byte[]> listFiles() throws IOException;
+
+    /**
+     * Start writing a blob. The blob does not replace a stored blob with the same
+     * file id until it is committed.
+     *
+     * @param fileId The file id.
+     * @return The writer, which must be closed.
+     * @throws IOException If an I/O error occurs.
+     */
+    Writer create(byte[] fileId) throws IOException;
+
+    /**
+     * Open a stored blob for reading. The blob keeps the same content even if it
+     * is replaced while it is open.
+     *
+     * @param fileId The file id.
+     * @return The blob, which must be closed, or null if it is not stored.
+     * @throws IOException If an I/O error occurs.
+     */
+    @Nullable Blob open(byte[] fileId) throws IOException;
+
+    /**
+     * A blob that is being written.
+     */
+    interface Writer extends Closeable {
+        /**
+         * Get the stream to write the content of the blob to. It must be closed
+         * before {@link #finish(ChunkTree)} is called.
+         *
+         * @return The stream.
+         */
+        OutputStream output();
+
+        /**
+         * Finish writing the blob after all the content has been written.
+         *
+         * @param chunkTree The chunk tree of the content.
+         * @throws IOException If an I/O error occurs.
+         */
+        void finish(ChunkTree chunkTree) throws IOException;
+
+        /**
+         * Store the blob, replacing the blob with the same file id.
+         *
+         * @throws IOException If an I/O error occurs.
+         */
+        void commit() throws IOException;
+
+        /**
+         * Discard the blob if it was not committed.
+         *
+         * @throws IOException If an I/O error occurs.
+         */
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * A stored blob that is open for reading.
+     */
+    interface Blob extends Closeable {
+        /**
+         * Get the size of the content.
+         *
+         * @return The size in bytes.
+         * @throws IOException If an I/O error occurs.
+         */
+        long size() throws IOException;
+
+        /**
+         * Write a part of the content to a channel.
+         *
+         * @param position The position in the content to start at.
+         * @param count The amount of bytes to write.
+         * @param target The channel to write to.
+         * @throws IOException If an I/O error occurs.
+         */
+        void transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+        /**
+         * Read the chunk tree of the content.
+         *
+         * @return The chunk tree.
+         * @throws IOException If an I/O error occurs.
+         */
+        ChunkTree readChunkTree() throws IOException;
+    }
+}
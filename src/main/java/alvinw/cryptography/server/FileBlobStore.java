@@ -0,0 +1,626 @@
+package alvinw.cryptography.server;
+
+import alvinw.cryptography.CryptoUtils;
+import alvinw.cryptography.merkle.ChunkTree;
+import alvinw.cryptography.merkle.FileInfo;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * A blob store that keeps every blob in its own file, with its chunk tree in a
+ * file next to it.
+ * <p>
+ * Blobs are written to temporary files and moved into place when they are
+ * committed, so a partially written blob is never visible under its real name,
+ * and a blob that is open keeps reading the same version after it is replaced.
+ * <p>
+ * Files are spread over nested directories named after the first bytes of the
+ * file id in hex, one byte per level, so that no directory grows too large. A
+ * file with the id {@code abcd...} is stored as {@code ab/cd/abcd....bin} with a
+ * shard depth of 2. Storages from before the directories were introduced have
+ * all the files directly in the root directory. Those files are moved into their
+ * directories in the background after the store is loaded, while the store is in
+ * use.
+ * <p>
+ * Files of at least the map threshold are memory mapped when they are hashed, so
+ * their content is read straight from the page cache instead of being copied
+ * through buffers on the heap. A mapping is only released when its buffer is
+ * garbage collected, so smaller files are read with ordinary reads, and files are
+ * always sent with {@link FileChannel#transferTo} instead of being mapped for
+ * every request.
+ */
+public class FileBlobStore implements BlobStore {
+    /**
+     * The default amount of files that are read and hashed at the same time when
+     * the store is loaded.
+     */
+    public static final int DEFAULT_HASH_PARALLELISM = 4;
+
+    /**
+     * The default amount of directory levels that files are spread over. With
+     * 256 directories per level, a million files are about 15 per directory.
+     */
+    public static final int DEFAULT_SHARD_DEPTH = 2;
+
+    /**
+     * The largest supported shard depth.
+     */
+    public static final int MAX_SHARD_DEPTH = 4;
+
+    /**
+     * The default size from which files are memory mapped.
+     */
+    public static final long DEFAULT_MAP_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The size of the windows that large files are mapped in, since a mapping can
+     * not be larger than 2 GiB.
+     */
+    private static final long MAP_WINDOW_SIZE = 1024L * 1024 * 1024;
+
+    private static final String FILE_SUFFIX = ".bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String SHARD_DEPTH_FILE = "shard_depth";
+    private static final String CHUNK_TREE_SUFFIX = ".chunks";
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path root;
+    private final int hashParallelism;
+    private final int shardDepth;
+    private final long mapThreshold;
+    private final Manifest manifest;
+    private final Metrics metrics;
+    private final Log log;
+    private final Lock[] fileLocks = new Lock[LOCK_STRIPES];
+    private volatile boolean migrating;
+    private volatile boolean closed;
+    private @Nullable Thread migrationThread;
+
+    public FileBlobStore(Path root, int hashParallelism, int shardDepth, Metrics metrics) {
+        this(root, hashParallelism, shardDepth, DEFAULT_MAP_THRESHOLD, metrics);
+    }
+
+    public FileBlobStore(Path root, int hashParallelism, int shardDepth, long mapThreshold, Metrics metrics) {
+        this(root, hashParallelism, shardDepth, mapThreshold, metrics, Log.disabled());
+    }
+
+    /**
+     * Create a file blob store.
+     *
+     * @param root The directory to store files in.
+     * @param hashParallelism The amount of files that are read and hashed at the
+     *                        same time when the store is loaded.
+     * @param shardDepth The amount of directory levels that files are spread over,
+     *                   from 0 for all files in the root directory to
+     *                   {@link #MAX_SHARD_DEPTH}.
+     * @param mapThreshold The size from which files are memory mapped when they
+     *                     are hashed, or {@link Long#MAX_VALUE} to never
+     *                     map files.
+     * @param metrics The metrics to record the amount of hashed bytes and failed
+     *                migrations to.
+     * @param log The log to report files that could not be migrated to.
+     */
+    public FileBlobStore(Path root, int hashParallelism, int shardDepth, long mapThreshold, Metrics metrics, Log log) {
+        if (shardDepth < 0 || shardDepth > MAX_SHARD_DEPTH) {
+            throw new IllegalArgumentException("shardDepth must be between 0 and " + MAX_SHARD_DEPTH);
+        }
+        if (mapThreshold < 0) {
+            throw new IllegalArgumentException("mapThreshold must not be negative");
+        }
+        this.root = root;
+        this.hashParallelism = hashParallelism;
+        this.shardDepth = shardDepth;
+        this.mapThreshold = mapThreshold;
+        this.manifest = new Manifest(root.resolve("manifest.dat"));
+        this.metrics = metrics;
+        this.log = log;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.fileLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Get the lock that guards moving a file into place against the migration.
+     * The file storage has its own locks for the file ids, which are always
+     * taken before this one.
+     *
+     * @param fileId The file id.
+     * @return The lock.
+     */
+    private Lock getFileLock(byte[] fileId) {
+        return this.fileLocks[Arrays.hashCode(fileId) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Get the path that a file is stored at.
+     *
+     * @param fileId The file id.
+     * @return The path in the shard directory of the file.
+     */
+    private Path getPath(byte[] fileId) {
+        String hex = CryptoUtils.hexString(fileId);
+        Path directory = this.root;
+        for (int i = 0; i < this.shardDepth; i++) {
+            directory = directory.resolve(hex.substring(2 * i, 2 * i + 2));
+        }
+        return directory.resolve(hex + FILE_SUFFIX);
+    }
+
+    private Path getFlatPath(byte[] fileId) {
+        return this.root.resolve(CryptoUtils.hexString(fileId) + FILE_SUFFIX);
+    }
+
+    /**
+     * Get the path of the chunk tree of a file, which is stored next to the file.
+     *
+     * @param path The path of the file.
+     * @return The path of the chunk tree.
+     */
+    private static Path getChunkTreePath(Path path) {
+        String name = path.getFileName().toString();
+        return path.resolveSibling(name.substring(0, name.length() - FILE_SUFFIX.length()) + CHUNK_TREE_SUFFIX);
+    }
+
+    private static byte[] getFileId(Path path) {
+        String name = path.getFileName().toString();
+        return CryptoUtils.fromHex(name.substring(0, name.length() - FILE_SUFFIX.length()));
+    }
+
+    /**
+     * Find the path of a stored file. While files are being moved into their
+     * shard directories, the file may still be directly in the root directory.
+     * The lock of the file must be held.
+     *
+     * @param fileId The file id.
+     * @return The path, which does not exist if the file is not stored.
+     */
+    private Path locate(byte[] fileId) {
+        Path path = this.getPath(fileId);
+        if (this.migrating && Files.notExists(path)) {
+            Path flatPath = this.getFlatPath(fileId);
+            if (Files.exists(flatPath)) {
+                return flatPath;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Hashes are taken from the manifest written by the previous run when the
+     * size and modification time of a file have not changed and its chunk tree
+     * exists. The chunk trees of the remaining files are calculated in parallel
+     * on a fork/join pool that is limited to {@code hashParallelism} threads so
+     * that the disk is not flooded with reads.
+     */
+    @Override
+    public List<FileInfo> load() throws IOException {
+        Files.createDirectories(this.root);
+        this.checkShardDepth();
+        // Remove files from uploads that were interrupted by a crash
+        try (Stream<Path> paths = Files.list(this.root)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (path.toString().endsWith(TEMP_SUFFIX)) {
+                    Files.delete(path);
+                }
+            }
+        }
+
+        Map<ByteBuffer, Manifest.Entry> knownFiles = this.manifest.read();
+        ForkJoinPool pool = new ForkJoinPool(this.hashParallelism);
+        List<Manifest.Entry> entries;
+        try (Stream<Path> paths = this.listPaths()) {
+            // A parallel stream runs on the fork/join pool of the task that starts it
+            entries = pool.submit(() -> paths.parallel()
+                .map(path -> this.loadEntry(knownFiles, path))
+                .toList()
+            ).join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        this.manifest.rewrite(entries);
+        this.startMigration();
+        return entries.stream()
+            .map(entry -> FileInfo.ofHash(entry.fileId(), entry.sha256()))
+            .toList();
+    }
+
+    /**
+     * Get the manifest entry of a file, calculating its chunk tree if the file
+     * has changed since the manifest was written.
+     *
+     * @param knownFiles The entries of the manifest.
+     * @param path The path of the file.
+     * @return The entry.
+     */
+    private Manifest.Entry loadEntry(Map<ByteBuffer, Manifest.Entry> knownFiles, Path path) {
+        try {
+            byte[] fileId = getFileId(path);
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            Manifest.Entry entry = knownFiles.get(ByteBuffer.wrap(fileId));
+            Path chunkTreePath = getChunkTreePath(path);
+            if (entry != null && entry.matches(attributes) && Files.exists(chunkTreePath)) {
+                return entry;
+            }
+            ChunkTree chunkTree;
+            if (attributes.size() >= this.mapThreshold) {
+                ChunkTree.Hasher hasher = new ChunkTree.Hasher();
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    for (ByteBuffer window : map(channel)) {
+                        hasher.update(window);
+                    }
+                }
+                chunkTree = hasher.finish();
+            } else {
+                try (InputStream inputStream = Files.newInputStream(path)) {
+                    chunkTree = ChunkTree.read(inputStream);
+                }
+            }
+            Path tempPath = this.writeChunkTreeTemp(fileId, chunkTree);
+            try {
+                Files.move(tempPath, chunkTreePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+            this.metrics.recordBytesHashed(attributes.size());
+            return Manifest.Entry.of(fileId, attributes, chunkTree.getRootHash());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Check that the store was created with the same shard depth, and record the
+     * shard depth of a new store.
+     *
+     * @throws IOException If an I/O error occurs or the shard depth differs.
+     */
+    private void checkShardDepth() throws IOException {
+        Path path = this.root.resolve(SHARD_DEPTH_FILE);
+        if (Files.exists(path)) {
+            int shardDepth;
+            try {
+                shardDepth = Integer.parseInt(Files.readString(path).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid shard depth in " + path, e);
+            }
+            if (shardDepth != this.shardDepth) {
+                throw new IOException("The storage has a shard depth of " + shardDepth + ", not " + this.shardDepth);
+            }
+        } else {
+            Files.writeString(path, Integer.toString(this.shardDepth));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The ids are read lazily from the directories. Every shard directory is
+     * listed separately, so a {@link Stream#parallel() parallel} stream lists and
+     * processes several directories at the same time.
+     */
+    @Override
+    public Stream<byte[]> listFiles() throws IOException {
+        return this.listPaths().map(FileBlobStore::getFileId);
+    }
+
+    private Stream<Path> listPaths() throws IOException {
+        // Files from before the shard directories, or all files with a shard depth of 0
+        Stream<Path> flatPaths = Files.list(this.root)
+            .filter(path -> path.getFileName().toString().endsWith(FILE_SUFFIX));
+        if (this.shardDepth == 0) {
+            return flatPaths;
+        }
+        List<Path> shards;
+        try (Stream<Path> paths = Files.list(this.root)) {
+            shards = paths
+                .filter(path -> isShardDirectoryName(path.getFileName().toString()) && Files.isDirectory(path))
+                .toList();
+        } catch (IOException e) {
+            flatPaths.close();
+            throw e;
+        }
+        Stream<Path> shardPaths = shards.stream().flatMap(shard -> {
+            try {
+                return Files.find(shard, this.shardDepth,
+                    (path, attributes) -> attributes.isRegularFile() && path.getFileName().toString().endsWith(FILE_SUFFIX));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return Stream.concat(flatPaths, shardPaths);
+    }
+
+    private static boolean isShardDirectoryName(String name) {
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0 && Character.digit(name.charAt(1), 16) >= 0;
+    }
+
+    /**
+     * Start moving the files that are directly in the root directory into their
+     * shard directories, if there are any.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    private void startMigration() throws IOException {
+        if (this.shardDepth == 0) {
+            return;
+        }
+        boolean hasFlatFiles;
+        try (Stream<Path> paths = Files.list(this.root)) {
+            hasFlatFiles = paths.anyMatch(path -> path.getFileName().toString().endsWith(FILE_SUFFIX));
+        }
+        if (!hasFlatFiles) {
+            return;
+        }
+        this.migrating = true;
+        Thread thread = new Thread(() -> {
+            try {
+                this.migrate();
+            } catch (IOException | UncheckedIOException e) {
+                // The remaining files are moved the next time the store is loaded
+                this.metrics.recordMigrationFailure();
+                this.log.log("migration_failed", "error", e);
+            }
+        }, "storage-migration");
+        thread.setDaemon(true);
+        thread.start();
+        this.migrationThread = thread;
+    }
+
+    /**
+     * Move the files that are directly in the root directory into their shard
+     * directories, one at a time while holding the lock of the file. A file that
+     * can not be moved is logged and left in the root directory, where it is still
+     * found by {@link #locate(byte[])}.
+     *
+     * @throws IOException If an I/O error occurs when listing the files.
+     */
+    private void migrate() throws IOException {
+        boolean failed = false;
+        try (Stream<Path> paths = Files.list(this.root)) {
+            for (Path flatPath : (Iterable<Path>) paths::iterator) {
+                if (this.closed) {
+                    return;
+                }
+                if (!flatPath.getFileName().toString().endsWith(FILE_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    this.migrate(flatPath);
+                } catch (IOException e) {
+                    failed = true;
+                    this.metrics.recordMigrationFailure();
+                    this.log.log("migration_failed", "path", flatPath, "error", e);
+                }
+            }
+        }
+        // Keep looking for files in the root directory if some are left there
+        this.migrating = failed;
+    }
+
+    private void migrate(Path flatPath) throws IOException {
+        byte[] fileId = getFileId(flatPath);
+        Lock fileLock = this.getFileLock(fileId);
+        fileLock.lock();
+        try {
+            Path path = this.getPath(fileId);
+            if (Files.exists(path)) {
+                // The file was stored again since the store was loaded
+                Files.deleteIfExists(getChunkTreePath(flatPath));
+                Files.deleteIfExists(flatPath);
+                return;
+            }
+            Files.createDirectories(path.getParent());
+            // The chunk tree is moved first, if the file is left behind by a crash
+            // its chunk tree is calculated again when the store is loaded
+            Files.move(getChunkTreePath(flatPath), getChunkTreePath(path),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(flatPath, path, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Map a whole file into memory, in windows of at most
+     * {@link #MAP_WINDOW_SIZE}.
+     *
+     * @param channel The channel of the file.
+     * @return The read-only windows.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static List<ByteBuffer> map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<ByteBuffer> windows = new ArrayList<>((int) (size / MAP_WINDOW_SIZE) + 1);
+        for (long position = 0; position < size; position += MAP_WINDOW_SIZE) {
+            windows.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_SIZE, size - position)));
+        }
+        return windows;
+    }
+
+    private Path writeChunkTreeTemp(byte[] fileId, ChunkTree chunkTree) throws IOException {
+        Path tempPath = Files.createTempFile(this.root, CryptoUtils.hexString(fileId), TEMP_SUFFIX);
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(tempPath))) {
+            chunkTree.write(output);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        return tempPath;
+    }
+
+    @Override
+    public Writer create(byte[] fileId) throws IOException {
+        Path tempPath = Files.createTempFile(this.root, CryptoUtils.hexString(fileId), TEMP_SUFFIX);
+        try {
+            return new FileWriter(fileId, tempPath, Files.newOutputStream(tempPath));
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+    }
+
+    @Override
+    public @Nullable Blob open(byte[] fileId) throws IOException {
+        Lock fileLock = this.getFileLock(fileId);
+        fileLock.lock();
+        try {
+            Path path = this.locate(fileId);
+            if (Files.notExists(path)) {
+                return null;
+            }
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                FileChannel chunkTreeChannel = FileChannel.open(getChunkTreePath(path), StandardOpenOption.READ);
+                return new FileBlob(channel, chunkTreeChannel);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        if (this.migrationThread != null) {
+            try {
+                this.migrationThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.manifest.close();
+    }
+
+    /**
+     * A blob that is written to a temporary file, and whose chunk tree is written
+     * to another temporary file when it is finished.
+     */
+    private class FileWriter implements Writer {
+        private final byte[] fileId;
+        private final Path tempPath;
+        private final OutputStream output;
+        private @Nullable Path chunkTreeTempPath;
+        private byte @Nullable [] sha256;
+
+        private FileWriter(byte[] fileId, Path tempPath, OutputStream output) {
+            this.fileId = fileId;
+            this.tempPath = tempPath;
+            this.output = output;
+        }
+
+        @Override
+        public OutputStream output() {
+            return this.output;
+        }
+
+        @Override
+        public void finish(ChunkTree chunkTree) throws IOException {
+            this.chunkTreeTempPath = FileBlobStore.this.writeChunkTreeTemp(this.fileId, chunkTree);
+            this.sha256 = chunkTree.getRootHash();
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (this.chunkTreeTempPath == null || this.sha256 == null) {
+                throw new IllegalStateException("The blob is not finished");
+            }
+            Lock fileLock = FileBlobStore.this.getFileLock(this.fileId);
+            fileLock.lock();
+            try {
+                Path path = FileBlobStore.this.getPath(this.fileId);
+                Files.createDirectories(path.getParent());
+                Files.move(this.chunkTreeTempPath, getChunkTreePath(path),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(this.tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (FileBlobStore.this.migrating) {
+                    // The old version must not be moved over the new one
+                    Path flatPath = FileBlobStore.this.getFlatPath(this.fileId);
+                    Files.deleteIfExists(getChunkTreePath(flatPath));
+                    Files.deleteIfExists(flatPath);
+                }
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                FileBlobStore.this.manifest.append(List.of(Manifest.Entry.of(this.fileId, attributes, this.sha256)));
+            } finally {
+                fileLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.output.close();
+            // Files that were moved into place no longer exist under their temporary names
+            Files.deleteIfExists(this.tempPath);
+            if (this.chunkTreeTempPath != null) {
+                Files.deleteIfExists(this.chunkTreeTempPath);
+            }
+        }
+    }
+
+    /**
+     * A stored file and its chunk tree, opened together so that they belong to
+     * the same version.
+     *
+     * @param channel The channel of the file.
+     * @param chunkTreeChannel The channel of the chunk tree.
+     */
+    private record FileBlob(FileChannel channel, FileChannel chunkTreeChannel) implements Blob {
+        @Override
+        public long size() throws IOException {
+            return this.channel.size();
+        }
+
+        @Override
+        public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            long end = position + count;
+            while (position < end) {
+                long transferred = this.channel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("The file ended early");
+                }
+                position += transferred;
+            }
+        }
+
+        @Override
+        public ChunkTree readChunkTree() throws IOException {
+            return ChunkTree.read(this.chunkTreeChannel);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.channel.close();
+            } finally {
+                this.chunkTreeChannel.close();
+            }
+        }
+    }
+}
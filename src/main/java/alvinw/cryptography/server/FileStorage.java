@@ -1,77 +1,529 @@
 package alvinw.cryptography.server;
 
-import alvinw.cryptography.CryptoUtils;
+import alvinw.cryptography.CryptoContext;
+import alvinw.cryptography.merkle.ChunkTree;
+import alvinw.cryptography.merkle.ComplementingHash;
 import alvinw.cryptography.merkle.FileInfo;
+import alvinw.cryptography.merkle.FlatMerkleTree;
 import alvinw.cryptography.merkle.MerkleTree;
+import alvinw.cryptography.merkle.MultiProof;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * The server's file storage.
+ * <p>
+ * The content of the files is kept in a {@link BlobStore}, and the file storage
+ * keeps the Merkle tree of the files up to date as they are stored.
+ * <p>
+ * Files can be stored and read concurrently. Uploads are written to the blob
+ * store in parallel. Committing a blob and updating the Merkle tree is done
+ * while holding a lock for the file id, taken from a fixed set of striped locks,
+ * so uploads of different files rarely wait for each other while two uploads of
+ * the same file are applied one at a time. Opening a file for reading takes the
+ * same lock, so the file, its chunk tree and its proof always belong to the same
+ * version.
+ * <p>
+ * The Merkle tree itself is only changed by one writer at a time, while holding
+ * a lock that readers never take. After every update a new {@link Snapshot} is
+ * published with the top hash and a read-only {@link MerkleTree#snapshot() view}
+ * of the tree, and proofs are created from the latest snapshot without any
+ * locking.
  */
-public class FileStorage {
-    private final Path root;
+public class FileStorage implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int LOCK_STRIPES = 64;
+
+    private final BlobStore blobStore;
+    private final Function<Set<FileInfo>, MerkleTree> treeFactory;
+    private final Metrics metrics;
+    private final Lock[] fileLocks = new Lock[LOCK_STRIPES];
+    private final Lock treeLock = new ReentrantLock();
+    private MerkleTree merkleTree;
+    private volatile Snapshot snapshot;
 
     public FileStorage(Path root) {
-        this.root = root;
+        this(root, files -> FlatMerkleTree.fromFiles(files, false, true), FileBlobStore.DEFAULT_HASH_PARALLELISM);
+    }
+
+    /**
+     * Create a file storage that keeps every file in its own file.
+     *
+     * @param root The directory to store files in.
+     * @param treeFactory Creates the Merkle tree from the stored files, for example
+     *                    {@link MerkleTree#fromFiles(Set)}.
+     * @param hashParallelism The amount of files that are read and hashed at the
+     *                        same time when the storage is loaded.
+     */
+    public FileStorage(Path root, Function<Set<FileInfo>, MerkleTree> treeFactory, int hashParallelism) {
+        this(root, treeFactory, hashParallelism, new Metrics());
+    }
+
+    private FileStorage(Path root, Function<Set<FileInfo>, MerkleTree> treeFactory, int hashParallelism, Metrics metrics) {
+        this(new FileBlobStore(root, hashParallelism, FileBlobStore.DEFAULT_SHARD_DEPTH, metrics), treeFactory, metrics);
     }
 
-    private Path getPath(byte[] fileId) {
-        String hex = CryptoUtils.hexString(fileId);
-        return this.root.resolve(hex + ".bin");
+    /**
+     * Create a file storage.
+     *
+     * @param blobStore The store to keep the content of the files in, which is
+     *                  closed when the storage is closed.
+     * @param treeFactory Creates the Merkle tree from the stored files, for example
+     *                    {@link MerkleTree#fromFiles(Set)}.
+     * @param metrics The metrics to record the durations of tree updates and the
+     *                amount of hashed bytes to.
+     */
+    public FileStorage(BlobStore blobStore, Function<Set<FileInfo>, MerkleTree> treeFactory, Metrics metrics) {
+        this.blobStore = blobStore;
+        this.treeFactory = treeFactory;
+        this.metrics = metrics;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.fileLocks[i] = new ReentrantLock();
+        }
+    }
+
+    private Lock getFileLock(byte[] fileId) {
+        return this.fileLocks[getStripe(fileId)];
+    }
+
+    private static int getStripe(byte[] fileId) {
+        return Arrays.hashCode(fileId) & (LOCK_STRIPES - 1);
     }
 
     public byte[] getFileId(String fileName) {
-        return CryptoUtils.sha256(fileName.getBytes(StandardCharsets.UTF_8));
+        return CryptoContext.get().sha256(fileName.getBytes(StandardCharsets.UTF_8));
     }
 
-    public void store(byte[] fileId, byte[] fileContent) throws IOException {
-        Path path = this.getPath(fileId);
-        Files.write(path, fileContent);
+    /**
+     * Build the Merkle tree from all the files in the storage. This must be called
+     * once before the storage is used, after that the tree is kept up to date as
+     * files are stored.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public void load() throws IOException {
+        long start = System.nanoTime();
+        MerkleTree merkleTree = this.treeFactory.apply(new HashSet<>(this.blobStore.load()));
+        this.treeLock.lock();
+        try {
+            this.merkleTree = merkleTree;
+            this.snapshot = new Snapshot(0, merkleTree.getTopHash(), merkleTree.size(), merkleTree.snapshot());
+        } finally {
+            this.treeLock.unlock();
+        }
+        this.metrics.recordTreeRebuild(System.nanoTime() - start);
     }
 
-    public InputStream read(byte[] fileId) throws IOException {
-        Path path = this.getPath(fileId);
-        return Files.newInputStream(path);
+    /**
+     * List the ids of all the stored files.
+     * <p>
+     * The stream must be closed, and can be processed {@link Stream#parallel() in
+     * parallel}.
+     *
+     * @return The stream of file ids.
+     * @throws IOException If an I/O error occurs.
+     */
+    public Stream<byte[]> listFiles() throws IOException {
+        return this.blobStore.listFiles();
     }
 
     /**
-     * Get the set of file ids (SHA-256 hashes).
+     * Store a file, replacing the file with the same file id if present, and
+     * update the Merkle tree.
      *
-     * @return The set.
+     * @param fileId The file id.
+     * @param fileContent The file content.
+     * @return Information about the stored file.
      * @throws IOException If an I/O error occurs.
      */
-    public Set<byte[]> getFiles() throws IOException {
-        return Files.list(this.root)
-            .filter(path -> path.toString().endsWith(".bin"))
-            .map(path -> path.getFileName().toString())
-            .map(name -> name.substring(0, name.length() -  ".bin".length()))
-            .map(CryptoUtils::fromHex)
-            .collect(Collectors.toSet());
+    public FileInfo store(byte[] fileId, byte[] fileContent) throws IOException {
+        return this.store(fileId, new ByteArrayInputStream(fileContent));
     }
 
     /**
-     * Get the Merkle tree from all the files in the storage.
+     * Store a file, replacing the file with the same file id if present, and
+     * update the Merkle tree.
+     * <p>
+     * The content is streamed to the blob store in fixed size buffers and its
+     * chunk tree is calculated at the same time. A partially written file is
+     * never visible, since the blob is only committed once it is complete.
      *
-     * @return The Merkle tree.
+     * @param fileId The file id.
+     * @param content The stream of file content, which is read to the end.
+     * @return Information about the stored file.
      * @throws IOException If an I/O error occurs.
      */
-    public MerkleTree getMerkleTree() throws IOException {
-        Set<FileInfo> files = this.getFiles().stream()
-            .map(fileId -> {
-                try (InputStream inputStream = this.read(fileId)) {
-                    return new FileInfo(fileId, inputStream.readAllBytes());
+    public FileInfo store(byte[] fileId, InputStream content) throws IOException {
+        try (Batch batch = this.beginBatch()) {
+            FileInfo fileInfo = batch.add(fileId, content);
+            batch.commit();
+            return fileInfo;
+        }
+    }
+
+    /**
+     * Begin storing several files that are added to the Merkle tree at once.
+     *
+     * @return The batch, which must be closed.
+     */
+    public Batch beginBatch() {
+        return new Batch();
+    }
+
+    private Snapshot updateTree(List<FileInfo> files) {
+        this.treeLock.lock();
+        try {
+            long start = System.nanoTime();
+            this.merkleTree.putAll(files);
+            // Hash the tree right away, so that readers never have to
+            byte[] topHash = this.merkleTree.getTopHash();
+            MerkleTree tree = this.merkleTree.snapshot();
+            this.metrics.recordTreeUpdate(System.nanoTime() - start);
+            this.snapshot = new Snapshot(this.snapshot.version() + 1, topHash, this.merkleTree.size(), tree);
+            return this.snapshot;
+        } finally {
+            this.treeLock.unlock();
+        }
+    }
+
+    /**
+     * Open a file for reading together with its chunk tree and its complementing
+     * hashes. All of them belong to the same version of the file, even if the file
+     * is replaced while it is open.
+     *
+     * @param fileId The file id.
+     * @return The open file, which must be closed, or null if the file is not
+     * stored.
+     * @throws IOException If an I/O error occurs.
+     */
+    public @Nullable OpenFile openFile(byte[] fileId) throws IOException {
+        Lock fileLock = this.getFileLock(fileId);
+        fileLock.lock();
+        try {
+            // The snapshot already has the latest version of the file, since it is
+            // published before the lock of the file is released
+            List<ComplementingHash> complementingHashes = this.getComplementingHashes(fileId);
+            if (complementingHashes == null) {
+                return null;
+            }
+            BlobStore.Blob blob = this.blobStore.open(fileId);
+            if (blob == null) {
+                throw new IOException("The file is missing from the blob store");
+            }
+            return new OpenFile(complementingHashes, blob);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Open several files for reading together with their multiproof. The proof
+     * and the files belong to the same snapshot of the Merkle tree, even if files
+     * are stored while they are open.
+     *
+     * @param fileIds The file ids, without duplicates.
+     * @return The open files, which must be closed, or null if a file is not
+     * stored.
+     * @throws IOException If an I/O error occurs.
+     */
+    public @Nullable OpenFiles openFiles(List<byte[]> fileIds) throws IOException {
+        int[] stripes = this.lockFiles(fileIds);
+        try {
+            MultiProof multiProof = this.snapshot.tree().getMultiProof(fileIds);
+            if (multiProof == null) {
+                return null;
+            }
+            List<BlobStore.Blob> blobs = new ArrayList<>(fileIds.size());
+            OpenFiles openFiles = new OpenFiles(multiProof, blobs);
+            try {
+                for (byte[] fileId : fileIds) {
+                    BlobStore.Blob blob = this.blobStore.open(fileId);
+                    if (blob == null) {
+                        throw new IOException("The file is missing from the blob store");
+                    }
+                    blobs.add(blob);
+                }
+            } catch (IOException e) {
+                openFiles.close();
+                throw e;
+            }
+            return openFiles;
+        } finally {
+            this.unlockFiles(stripes);
+        }
+    }
+
+    /**
+     * Lock the stripes of some files. The stripes are locked in a fixed order,
+     * so callers with overlapping files can not deadlock.
+     *
+     * @param fileIds The file ids.
+     * @return The locked stripes, to pass to {@link #unlockFiles(int[])}.
+     */
+    private int[] lockFiles(List<byte[]> fileIds) {
+        int[] stripes = fileIds.stream()
+            .mapToInt(FileStorage::getStripe)
+            .sorted()
+            .distinct()
+            .toArray();
+        for (int stripe : stripes) {
+            this.fileLocks[stripe].lock();
+        }
+        return stripes;
+    }
+
+    private void unlockFiles(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            this.fileLocks[stripes[i]].unlock();
+        }
+    }
+
+    /**
+     * Get the Merkle tree of all the files in the storage, as of the latest
+     * {@link Snapshot}. The tree is read-only and is not changed when files are
+     * stored later.
+     *
+     * @return The Merkle tree.
+     */
+    public MerkleTree getMerkleTree() {
+        return this.snapshot.tree();
+    }
+
+    /**
+     * Get the complementing hashes of a file in the Merkle tree.
+     *
+     * @param fileId The file id.
+     * @return The complementing hashes, or null if the file is not stored.
+     */
+    public @Nullable List<ComplementingHash> getComplementingHashes(byte[] fileId) {
+        return this.snapshot.tree().getComplementingHashes(fileId);
+    }
+
+    /**
+     * Get the latest snapshot of the Merkle tree. This never waits for files that
+     * are being stored.
+     *
+     * @return The snapshot.
+     */
+    public Snapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Get the top hash of the Merkle tree.
+     *
+     * @return The top hash.
+     */
+    public byte[] getTopHash() {
+        return this.snapshot.topHash().clone();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.blobStore.close();
+    }
+
+    /**
+     * The state of the Merkle tree after an update.
+     *
+     * @param version The amount of updates since the storage was loaded.
+     * @param topHash The top hash, which must not be modified.
+     * @param size The amount of files.
+     * @param tree The read-only Merkle tree, which the top hash belongs to.
+     */
+    public record Snapshot(long version, byte[] topHash, int size, MerkleTree tree) {}
+
+    /**
+     * The result of committing a {@link Batch}. The proofs are created from the
+     * snapshot when they are asked for, without locking the tree, so only the
+     * proofs that are needed are created.
+     *
+     * @param snapshot The snapshot of the Merkle tree right after the files were
+     *                 added.
+     * @param files The files, in the order they were added.
+     */
+    public record Commit(Snapshot snapshot, List<FileInfo> files) {
+        /**
+         * Get the complementing hashes of a file in the snapshot.
+         *
+         * @param index The index of the file in the order the files were added.
+         * @return The complementing hashes.
+         */
+        public List<ComplementingHash> complementingHashes(int index) {
+            return this.snapshot.tree().getComplementingHashes(this.files.get(index).getFileId());
+        }
+
+        /**
+         * Get the multiproof of all the files in the snapshot.
+         *
+         * @return The multiproof, with the files in the order they were added.
+         */
+        public MultiProof multiProof() {
+            return this.snapshot.tree().getMultiProof(this.files.stream().map(FileInfo::getFileId).toList());
+        }
+    }
+
+    /**
+     * Several files that are open for reading together with their multiproof.
+     *
+     * @param multiProof The multiproof of the files, in the same order as the
+     *                   blobs.
+     * @param blobs The blobs to read the files from.
+     */
+    public record OpenFiles(MultiProof multiProof, List<BlobStore.Blob> blobs) implements Closeable {
+        @Override
+        public void close() throws IOException {
+            IOException exception = null;
+            for (BlobStore.Blob blob : this.blobs) {
+                try {
+                    blob.close();
+                } catch (IOException e) {
+                    if (exception == null) {
+                        exception = e;
+                    } else {
+                        exception.addSuppressed(e);
+                    }
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+
+    /**
+     * Files that are stored together. Each file is written to the blob store when
+     * it is added, and all of them are committed and added to the Merkle tree in
+     * one update when the batch is committed. Closing the batch without committing
+     * it discards the files.
+     */
+    public class Batch implements Closeable {
+        private final List<FileInfo> files = new ArrayList<>();
+        private final List<BlobStore.Writer> writers = new ArrayList<>();
+        private final Set<ByteBuffer> fileIds = new HashSet<>();
+
+        private Batch() {
+        }
+
+        /**
+         * Write a file to the blob store.
+         *
+         * @param fileId The file id, which must not already be in the batch.
+         * @param content The stream of file content, which is read to the end.
+         * @return Information about the file.
+         * @throws IOException If an I/O error occurs.
+         */
+        public FileInfo add(byte[] fileId, InputStream content) throws IOException {
+            if (!this.fileIds.add(ByteBuffer.wrap(fileId))) {
+                throw new IllegalArgumentException("The file is already in the batch");
+            }
+            BlobStore.Writer writer = FileStorage.this.blobStore.create(fileId);
+            this.writers.add(writer);
+            ChunkTree.Hasher hasher = new ChunkTree.Hasher();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (OutputStream output = new ChunkTree.HashingOutputStream(writer.output(), hasher)) {
+                int read;
+                while ((read = content.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                    FileStorage.this.metrics.recordBytesHashed(read);
+                }
+            }
+            ChunkTree chunkTree = hasher.finish();
+            writer.finish(chunkTree);
+            FileInfo fileInfo = FileInfo.ofHash(fileId, chunkTree.getRootHash());
+            this.files.add(fileInfo);
+            return fileInfo;
+        }
+
+        /**
+         * Commit the files to the blob store and add them to the Merkle tree.
+         * <p>
+         * The locks of all the files are taken in a fixed order, so batches with
+         * overlapping files can not deadlock. If a file fails to commit, the files
+         * that were already committed replace the old files on disk, so they are
+         * still added to the Merkle tree before the exception is thrown.
+         *
+         * @return The snapshot of the tree with the files, which their proofs are
+         * created from.
+         * @throws IOException If an I/O error occurs.
+         */
+        public Commit commit() throws IOException {
+            int[] stripes = FileStorage.this.lockFiles(this.files.stream().map(FileInfo::getFileId).toList());
+            try {
+                int committed = 0;
+                try {
+                    for (; committed < this.files.size(); committed++) {
+                        this.writers.get(committed).commit();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (committed > 0) {
+                        FileStorage.this.updateTree(this.files.subList(0, committed));
+                    }
+                    throw e;
+                }
+                return new Commit(FileStorage.this.updateTree(this.files), List.copyOf(this.files));
+            } finally {
+                FileStorage.this.unlockFiles(stripes);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException exception = null;
+            for (BlobStore.Writer writer : this.writers) {
+                try {
+                    writer.close();
                 } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    if (exception == null) {
+                        exception = e;
+                    } else {
+                        exception.addSuppressed(e);
+                    }
                 }
-            }).collect(Collectors.toSet());
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+
+    /**
+     * A file that is open for reading.
+     *
+     * @param complementingHashes The complementing hashes of the file.
+     * @param blob The blob to read the file and its chunk tree from.
+     */
+    public record OpenFile(List<ComplementingHash> complementingHashes, BlobStore.Blob blob) implements Closeable {
+        /**
+         * Read the chunk tree of the file.
+         *
+         * @return The chunk tree.
+         * @throws IOException If an I/O error occurs.
+         */
+        public ChunkTree readChunkTree() throws IOException {
+            return this.blob.readChunkTree();
+        }
 
-        return MerkleTree.fromFiles(files);
+        @Override
+        public void close() throws IOException {
+            this.blob.close();
+        }
     }
 }
@@ -0,0 +1,86 @@
+package alvinw.cryptography.server;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.PrintStream;
+import java.time.Instant;
+
+/**
+ * Structured logging of server events.
+ * <p>
+ * Every event is written as one line of {@code key=value} pairs, starting with
+ * the time and the name of the event, so that the log can be searched and parsed
+ * by tools. Logging is disabled by default, and is enabled with
+ * {@link ServerConfig#logging()}.
+ */
+public final class Log {
+    private static final Log DISABLED = new Log(null);
+
+    private final @Nullable PrintStream output;
+
+    private Log(@Nullable PrintStream output) {
+        this.output = output;
+    }
+
+    public static Log disabled() {
+        return DISABLED;
+    }
+
+    public static Log to(PrintStream output) {
+        return new Log(output);
+    }
+
+    /**
+     * Whether events are written. Callers should check this before formatting
+     * values that are expensive to create.
+     *
+     * @return Whether logging is enabled.
+     */
+    public boolean isEnabled() {
+        return this.output != null;
+    }
+
+    /**
+     * Log an event.
+     *
+     * @param event The name of the event.
+     * @param fields Pairs of field names and values.
+     */
+    public void log(String event, Object... fields) {
+        if (this.output == null) {
+            return;
+        }
+        if (fields.length % 2 != 0) {
+            throw new IllegalArgumentException("Fields must be pairs of names and values");
+        }
+        StringBuilder line = new StringBuilder();
+        line.append("time=").append(Instant.now()).append(" event=").append(event);
+        for (int i = 0; i < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=');
+            appendValue(line, String.valueOf(fields[i + 1]));
+        }
+        // A single call, so that lines from different threads are not mixed
+        this.output.println(line);
+    }
+
+    private static void appendValue(StringBuilder line, String value) {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=' || c == '\\';
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\');
+            }
+            line.append(c == '\n' ? ' ' : c);
+        }
+        line.append('"');
+    }
+}
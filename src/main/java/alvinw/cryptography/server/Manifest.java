@@ -0,0 +1,161 @@
+package alvinw.cryptography.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persisted list of the size, modification time and hash of every file
+ * in a {@link FileBlobStore}. Files whose size and modification time have not
+ * changed since the manifest was written don't have to be hashed again when the
+ * server starts.
+ * <p>
+ * The manifest starts with a magic number and a version, followed by fixed size
+ * entries. Entries are appended as files are stored, and a later entry replaces
+ * an earlier entry for the same file id. The manifest is rewritten without
+ * replaced entries every time the store is loaded.
+ */
+class Manifest implements Closeable {
+    private static final int MAGIC = 0x4d414e49; // "MANI"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 4 + 4;
+    private static final int ENTRY_SIZE = 32 + 8 + 8 + 32;
+
+    private final Path path;
+    private FileChannel appendChannel;
+
+    Manifest(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Read the entries of the manifest. A missing manifest, or one written in
+     * another version, has no entries. A partially written entry at the end is
+     * ignored.
+     *
+     * @return The entries keyed by the file id.
+     * @throws IOException If an I/O error occurs.
+     */
+    Map<ByteBuffer, Entry> read() throws IOException {
+        Map<ByteBuffer, Entry> entries = new HashMap<>();
+        if (Files.notExists(this.path)) {
+            return entries;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(this.path));
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return entries;
+        }
+        while (buffer.remaining() >= ENTRY_SIZE) {
+            byte[] fileId = new byte[32];
+            buffer.get(fileId);
+            long size = buffer.getLong();
+            long modifiedTime = buffer.getLong();
+            byte[] sha256 = new byte[32];
+            buffer.get(sha256);
+            entries.put(ByteBuffer.wrap(fileId), new Entry(fileId, size, modifiedTime, sha256));
+        }
+        return entries;
+    }
+
+    /**
+     * Replace the manifest with one that only contains the given entries, and
+     * prepare for appending more entries.
+     *
+     * @param entries The entries.
+     * @throws IOException If an I/O error occurs.
+     */
+    void rewrite(Collection<Entry> entries) throws IOException {
+        this.close();
+        Path tempPath = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + entries.size() * ENTRY_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            for (Entry entry : entries) {
+                entry.write(buffer);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tempPath, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.appendChannel = FileChannel.open(this.path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Append entries to the manifest. {@link #rewrite(Collection)} must have been
+     * called first. Entries can be appended from several threads at the same
+     * time.
+     *
+     * @param entries The entries.
+     * @throws IOException If an I/O error occurs.
+     */
+    synchronized void append(Collection<Entry> entries) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entries.size() * ENTRY_SIZE);
+        for (Entry entry : entries) {
+            entry.write(buffer);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            this.appendChannel.write(buffer);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.appendChannel != null) {
+            this.appendChannel.close();
+            this.appendChannel = null;
+        }
+    }
+
+    /**
+     * An entry in the manifest.
+     *
+     * @param fileId The file id.
+     * @param size The size of the file in bytes.
+     * @param modifiedTime The last modification time of the file in nanoseconds.
+     * @param sha256 The hash of the file content, the root of its chunk tree.
+     */
+    record Entry(byte[] fileId, long size, long modifiedTime, byte[] sha256) {
+        /**
+         * Create an entry for a file from its attributes.
+         *
+         * @param fileId The file id.
+         * @param attributes The attributes of the file.
+         * @param sha256 The hash of the file content.
+         * @return The entry.
+         */
+        static Entry of(byte[] fileId, BasicFileAttributes attributes, byte[] sha256) {
+            return new Entry(fileId, attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), sha256);
+        }
+
+        /**
+         * Check whether a file still has the same size and modification time as
+         * when this entry was written.
+         *
+         * @param attributes The current attributes of the file.
+         * @return Whether the hash of this entry can be used.
+         */
+        boolean matches(BasicFileAttributes attributes) {
+            return this.size == attributes.size()
+                && this.modifiedTime == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        }
+
+        private void write(ByteBuffer buffer) {
+            buffer.put(this.fileId).putLong(this.size).putLong(this.modifiedTime).put(this.sha256);
+        }
+    }
+}
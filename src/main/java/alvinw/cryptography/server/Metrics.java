@@ -0,0 +1,204 @@
+package alvinw.cryptography.server;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Operational metrics of a {@link Server}.
+ * <p>
+ * Recording never takes a lock. Counters are {@link LongAdder}s, which threads
+ * can update without contending with each other, and durations are counted in
+ * histograms with fixed buckets, so recording a duration is a single atomic
+ * increment. The values are only summed when the metrics are written.
+ * <p>
+ * The metrics are written in the Prometheus text format by the
+ * {@link MetricsEndpoint}.
+ */
+public class Metrics {
+    private final Map<String, Endpoint> endpoints = new ConcurrentSkipListMap<>();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder bytesHashed = new LongAdder();
+    private final LongAdder migrationFailures = new LongAdder();
+    private final Histogram treeRebuild = new Histogram();
+    private final Histogram treeUpdate = new Histogram();
+
+    /**
+     * Get the metrics of an endpoint, creating them the first time.
+     *
+     * @param name The name of the endpoint.
+     * @return The metrics of the endpoint.
+     */
+    public Endpoint endpoint(String name) {
+        return this.endpoints.computeIfAbsent(name, key -> new Endpoint());
+    }
+
+    /**
+     * Count a request that has started. Every call must be followed by a call
+     * to {@link #requestFinished()}.
+     */
+    public void requestStarted() {
+        this.inFlight.increment();
+    }
+
+    public void requestFinished() {
+        this.inFlight.decrement();
+    }
+
+    /**
+     * Count bytes that were read and hashed into chunk trees.
+     *
+     * @param bytes The amount of bytes.
+     */
+    public void recordBytesHashed(long bytes) {
+        this.bytesHashed.add(bytes);
+    }
+
+    /**
+     * Count a stored file that could not be moved into its shard directory. The
+     * file stays where it is and is moved the next time the storage is loaded.
+     */
+    public void recordMigrationFailure() {
+        this.migrationFailures.increment();
+    }
+
+    /**
+     * Record the time it took to load the storage and build the Merkle tree from
+     * all the stored files.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void recordTreeRebuild(long nanos) {
+        this.treeRebuild.record(nanos);
+    }
+
+    /**
+     * Record the time it took to add files to the Merkle tree and hash it.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void recordTreeUpdate(long nanos) {
+        this.treeUpdate.record(nanos);
+    }
+
+    /**
+     * Write the metrics in the Prometheus text format.
+     *
+     * @param output The output to write to.
+     * @param snapshot The current snapshot of the storage.
+     */
+    public void write(PrintWriter output, FileStorage.Snapshot snapshot) {
+        output.println("# TYPE server_requests_total counter");
+        for (Map.Entry<String, Endpoint> entry : this.endpoints.entrySet()) {
+            output.println("server_requests_total{endpoint=\"" + entry.getKey() + "\"} " + entry.getValue().requests.sum());
+        }
+        output.println("# TYPE server_request_errors_total counter");
+        for (Map.Entry<String, Endpoint> entry : this.endpoints.entrySet()) {
+            output.println("server_request_errors_total{endpoint=\"" + entry.getKey() + "\"} " + entry.getValue().errors.sum());
+        }
+        output.println("# TYPE server_received_bytes_total counter");
+        for (Map.Entry<String, Endpoint> entry : this.endpoints.entrySet()) {
+            output.println("server_received_bytes_total{endpoint=\"" + entry.getKey() + "\"} " + entry.getValue().bytesIn.sum());
+        }
+        output.println("# TYPE server_sent_bytes_total counter");
+        for (Map.Entry<String, Endpoint> entry : this.endpoints.entrySet()) {
+            output.println("server_sent_bytes_total{endpoint=\"" + entry.getKey() + "\"} " + entry.getValue().bytesOut.sum());
+        }
+        output.println("# TYPE server_request_duration_seconds histogram");
+        for (Map.Entry<String, Endpoint> entry : this.endpoints.entrySet()) {
+            entry.getValue().latency.write(output, "server_request_duration_seconds", "endpoint=\"" + entry.getKey() + "\",");
+        }
+        output.println("# TYPE server_requests_in_flight gauge");
+        output.println("server_requests_in_flight " + this.inFlight.sum());
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        output.println("# TYPE jvm_heap_used_bytes gauge");
+        output.println("jvm_heap_used_bytes " + heap.getUsed());
+        output.println("# TYPE jvm_heap_committed_bytes gauge");
+        output.println("jvm_heap_committed_bytes " + heap.getCommitted());
+
+        output.println("# TYPE storage_files gauge");
+        output.println("storage_files " + snapshot.size());
+        output.println("# TYPE storage_tree_version gauge");
+        output.println("storage_tree_version " + snapshot.version());
+        output.println("# TYPE storage_hashed_bytes_total counter");
+        output.println("storage_hashed_bytes_total " + this.bytesHashed.sum());
+        output.println("# TYPE storage_migration_failures_total counter");
+        output.println("storage_migration_failures_total " + this.migrationFailures.sum());
+        output.println("# TYPE storage_tree_rebuild_duration_seconds histogram");
+        this.treeRebuild.write(output, "storage_tree_rebuild_duration_seconds", "");
+        output.println("# TYPE storage_tree_update_duration_seconds histogram");
+        this.treeUpdate.write(output, "storage_tree_update_duration_seconds", "");
+    }
+
+    /**
+     * The metrics of one endpoint.
+     */
+    public static class Endpoint {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final Histogram latency = new Histogram();
+
+        private Endpoint() {
+        }
+
+        /**
+         * Record a finished request.
+         *
+         * @param nanos The time it took to handle the request, in nanoseconds.
+         * @param failed Whether the request failed, either with an error status or
+         *               with an exception.
+         * @param bytesIn The amount of bytes read from the request body.
+         * @param bytesOut The amount of bytes written to the response body.
+         */
+        public void record(long nanos, boolean failed, long bytesIn, long bytesOut) {
+            this.requests.increment();
+            if (failed) {
+                this.errors.increment();
+            }
+            this.bytesIn.add(bytesIn);
+            this.bytesOut.add(bytesOut);
+            this.latency.record(nanos);
+        }
+    }
+
+    /**
+     * A histogram of durations with buckets that are powers of two microseconds,
+     * from 1 microsecond to about 67 seconds, and a last bucket for anything
+     * longer.
+     */
+    private static class Histogram {
+        private static final int BUCKETS = 28;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sumNanos = new LongAdder();
+
+        private void record(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            // The bucket with the smallest power of two that is at least micros
+            int bucket = micros <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+            this.counts.incrementAndGet(bucket);
+            this.sumNanos.add(nanos);
+        }
+
+        private void write(PrintWriter output, String name, String labels) {
+            // Prometheus buckets are cumulative
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += this.counts.get(i);
+                String bound = i == BUCKETS - 1 ? "+Inf" : Double.toString((1L << i) / 1e6);
+                output.println(name + "_bucket{" + labels + "le=\"" + bound + "\"} " + count);
+            }
+            String suffix = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            output.println(name + "_sum" + suffix + " " + this.sumNanos.sum() / 1e9);
+            output.println(name + "_count" + suffix + " " + count);
+        }
+    }
+}
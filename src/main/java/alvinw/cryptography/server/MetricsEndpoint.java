@@ -0,0 +1,45 @@
+package alvinw.cryptography.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Http handler for the endpoint that exposes the server's {@link Metrics} in the
+ * Prometheus text format.
+ */
+public class MetricsEndpoint implements HttpHandler {
+    private final Metrics metrics;
+    private final FileStorage fileStorage;
+
+    public MetricsEndpoint(Metrics metrics, FileStorage fileStorage) {
+        this.metrics = metrics;
+        this.fileStorage = fileStorage;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, 0);
+            exchange.getResponseBody().close();
+            return;
+        }
+        StringWriter writer = new StringWriter();
+        try (PrintWriter output = new PrintWriter(writer)) {
+            this.metrics.write(output, this.fileStorage.getSnapshot());
+        }
+        byte[] outputBytes = writer.toString().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, outputBytes.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(outputBytes);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package alvinw.cryptography.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Filter that records the {@link Metrics} of every request to an endpoint, and
+ * logs the request.
+ * <p>
+ * The request and response bodies are wrapped in streams that count the bytes
+ * that pass through them.
+ */
+class MetricsFilter extends Filter {
+    private final String name;
+    private final Metrics metrics;
+    private final Metrics.Endpoint endpoint;
+    private final Log log;
+
+    MetricsFilter(String name, Metrics metrics, Log log) {
+        this.name = name;
+        this.metrics = metrics;
+        this.endpoint = metrics.endpoint(name);
+        this.log = log;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        long start = System.nanoTime();
+        this.metrics.requestStarted();
+        CountingInputStream input = new CountingInputStream(exchange.getRequestBody());
+        CountingOutputStream output = new CountingOutputStream(exchange.getResponseBody());
+        exchange.setStreams(input, output);
+        boolean completed = false;
+        try {
+            chain.doFilter(exchange);
+            completed = true;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            this.metrics.requestFinished();
+            int status = exchange.getResponseCode();
+            boolean failed = !completed || status >= HttpURLConnection.HTTP_BAD_REQUEST;
+            this.endpoint.record(nanos, failed, input.count, output.count);
+            if (this.log.isEnabled()) {
+                this.log.log("request",
+                    "endpoint", this.name,
+                    "method", exchange.getRequestMethod(),
+                    "path", exchange.getRequestURI().getRawPath(),
+                    "status", completed ? status : "exception",
+                    "micros", nanos / 1000,
+                    "bytes_in", input.count,
+                    "bytes_out", output.count
+                );
+            }
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Records metrics of the " + this.name + " endpoint";
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                this.count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                this.count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            this.count += skipped;
+            return skipped;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would write the bytes one at a time
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+}
@@ -0,0 +1,582 @@
+package alvinw.cryptography.server;
+
+import alvinw.cryptography.merkle.ChunkTree;
+import alvinw.cryptography.merkle.FileInfo;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * A blob store that appends blobs to large segment files, which suits many small
+ * blobs better than a file per blob.
+ * <p>
+ * Each blob is stored as a record with its content followed by its chunk tree.
+ * Records are appended to the active segment, and a new segment is started when
+ * the active one is full. The segment and offset of every blob are kept in memory
+ * and in a {@link PackIndex} next to the segments. Segments are preallocated and
+ * memory mapped, so records are read without system calls, and a read never
+ * takes a lock. A record is forced to the disk before its index entry is
+ * written, so after a crash the index never refers to a record that was lost.
+ * <p>
+ * Storing a blob again appends a new record, and the old record is left behind
+ * in its segment. Segments that are full and mostly made of such records are
+ * compacted in the background: the records that are still in use are appended
+ * to the active segment again and the old segment is deleted. A blob that is open
+ * while its segment is deleted can still be read, since the mapping stays valid.
+ * <p>
+ * A record must fit in one mapping, so blobs must be smaller than 2 GiB.
+ */
+public class PackBlobStore implements BlobStore {
+    /**
+     * The default size of a segment.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final long COMPACTION_INTERVAL_SECONDS = 10;
+    private static final int SPILL_THRESHOLD = 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".pack";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path root;
+    private final int segmentSize;
+    private final PackIndex index;
+    private final Log log;
+    private final Map<ByteBuffer, Location> locations = new ConcurrentHashMap<>();
+    /**
+     * Guards appending records, the index, the segments and their positions and
+     * live bytes.
+     */
+    private final Lock appendLock = new ReentrantLock();
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+    private int nextSegmentId;
+    private @Nullable ScheduledExecutorService compaction;
+    private volatile boolean closed;
+
+    public PackBlobStore(Path root) {
+        this(root, DEFAULT_SEGMENT_SIZE, Log.disabled());
+    }
+
+    /**
+     * Create a pack blob store.
+     *
+     * @param root The directory to store the segments and the index in.
+     * @param segmentSize The size of a segment. Blobs that are larger get a
+     *                    segment of their own.
+     * @param log The log to report failed compactions to.
+     */
+    public PackBlobStore(Path root, int segmentSize, Log log) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize must be positive");
+        }
+        this.root = root;
+        this.segmentSize = segmentSize;
+        this.index = new PackIndex(root.resolve("index.dat"));
+        this.log = log;
+    }
+
+    private Path getSegmentPath(int id) {
+        return this.root.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Open a segment and map all of it. A new segment is created with the given
+     * capacity.
+     *
+     * @param id The id of the segment.
+     * @param capacity The size of the segment.
+     * @return The segment.
+     * @throws IOException If an I/O error occurs.
+     */
+    private Segment openSegment(int id, long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("The segment " + id + " is too large");
+        }
+        Path path = this.getSegmentPath(id);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The index is read and rewritten without replaced entries, and the segments
+     * without any records in use are deleted. Blobs are not hashed again, their
+     * hashes are kept in the index.
+     */
+    @Override
+    public List<FileInfo> load() throws IOException {
+        Files.createDirectories(this.root);
+        Map<Integer, Segment> segmentsById = new TreeMap<>();
+        try (Stream<Path> paths = Files.list(this.root)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // Left by an upload that was interrupted by a crash
+                    Files.delete(path);
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segmentsById.put(id, this.openSegment(id, Files.size(path)));
+                }
+            }
+        }
+        if (!segmentsById.isEmpty() && !this.index.exists()) {
+            throw new IOException("The pack index is missing in " + this.root);
+        }
+
+        Map<ByteBuffer, PackIndex.Entry> entries = this.index.read();
+        boolean outdatedHashes = this.index.version() == PackIndex.UNSIZED_HASH_VERSION;
+        List<FileInfo> files = new ArrayList<>(entries.size());
+        this.appendLock.lock();
+        try {
+            for (Map.Entry<ByteBuffer, PackIndex.Entry> entry : entries.entrySet()) {
+                PackIndex.Entry indexEntry = entry.getValue();
+                Segment segment = segmentsById.get(indexEntry.segmentId());
+                long end = (long) indexEntry.offset() + indexEntry.dataLength() + indexEntry.chunkTreeLength();
+                if (segment == null || end > segment.buffer.capacity()) {
+                    throw new IOException("The pack index refers to a missing record in segment " + indexEntry.segmentId());
+                }
+                if (outdatedHashes) {
+                    // The chunk tree is unchanged, only the hash of the file is calculated differently
+                    ChunkTree chunkTree = ChunkTree.read(segment.buffer.slice(indexEntry.offset() + indexEntry.dataLength(),
+                        indexEntry.chunkTreeLength()));
+                    indexEntry = new PackIndex.Entry(indexEntry.fileId(), chunkTree.getRootHash(), indexEntry.segmentId(),
+                        indexEntry.offset(), indexEntry.dataLength(), indexEntry.chunkTreeLength());
+                    entry.setValue(indexEntry);
+                }
+                Location location = new Location(segment, indexEntry.offset(), indexEntry.dataLength(),
+                    indexEntry.chunkTreeLength(), indexEntry.sha256());
+                this.locations.put(entry.getKey(), location);
+                // Anything after the last record in use can be overwritten
+                segment.position = Math.max(segment.position, (int) end);
+                segment.liveBytes += location.length();
+                files.add(FileInfo.ofHash(indexEntry.fileId(), indexEntry.sha256()));
+            }
+            this.segments.addAll(segmentsById.values());
+            Segment last = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+            // Segments that were compacted right before the server stopped
+            for (Segment segment : List.copyOf(this.segments)) {
+                if (segment != last && segment.liveBytes == 0) {
+                    this.segments.remove(segment);
+                    Files.delete(segment.path);
+                }
+            }
+            if (last == null) {
+                last = this.openSegment(0, this.segmentSize);
+                this.segments.add(last);
+            }
+            this.active = last;
+            this.nextSegmentId = last.id + 1;
+            this.index.rewrite(entries.values());
+        } finally {
+            this.appendLock.unlock();
+        }
+
+        ScheduledExecutorService compaction = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pack-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compaction.scheduleWithFixedDelay(() -> {
+            try {
+                this.compact();
+            } catch (IOException e) {
+                // The segment is compacted again next time
+                this.log.log("compaction_failed", "error", e);
+            }
+        }, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        this.compaction = compaction;
+        return files;
+    }
+
+    @Override
+    public Stream<byte[]> listFiles() {
+        return this.locations.keySet().stream().map(fileId -> fileId.array().clone());
+    }
+
+    @Override
+    public Writer create(byte[] fileId) {
+        return new PackWriter(fileId);
+    }
+
+    @Override
+    public @Nullable Blob open(byte[] fileId) {
+        Location location = this.locations.get(ByteBuffer.wrap(fileId));
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer buffer = location.segment.buffer;
+        return new PackBlob(
+            buffer.slice(location.offset, location.dataLength),
+            buffer.slice(location.offset + location.dataLength, location.chunkTreeLength)
+        );
+    }
+
+    /**
+     * Append a record to the active segment and make it the stored version of
+     * the blob. A new segment is started if the record does not fit in the active
+     * segment. The append lock must be held.
+     *
+     * @param fileId The file id.
+     * @param sha256 The hash of the content.
+     * @param dataLength The size of the content.
+     * @param chunkTreeLength The size of the chunk tree.
+     * @param writer Writes the record to the buffer it is given, which has
+     *               exactly the size of the record.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void append(byte[] fileId, byte[] sha256, int dataLength, int chunkTreeLength, RecordWriter writer)
+        throws IOException {
+        int length = dataLength + chunkTreeLength;
+        Segment segment = this.active;
+        if (segment.buffer.capacity() - segment.position < length) {
+            // The full segment can be compacted from now on
+            segment = this.openSegment(this.nextSegmentId, Math.max(this.segmentSize, length));
+            this.nextSegmentId++;
+            this.segments.add(segment);
+            this.active = segment;
+        }
+        int offset = segment.position;
+        writer.write(segment.buffer.slice(offset, length));
+        // The record must be on the disk before the index refers to it
+        segment.buffer.force(offset, length);
+        segment.position += length;
+        this.index.append(new PackIndex.Entry(fileId, sha256, segment.id, offset, dataLength, chunkTreeLength));
+        segment.liveBytes += length;
+        Location previous = this.locations.put(ByteBuffer.wrap(fileId),
+            new Location(segment, offset, dataLength, chunkTreeLength, sha256));
+        if (previous != null) {
+            previous.segment.liveBytes -= previous.length();
+        }
+    }
+
+    /**
+     * Compact the full segments where less than half of the bytes belong to
+     * records that are in use. This is done every few seconds in the background.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public void compact() throws IOException {
+        Set<Segment> compacted = new HashSet<>();
+        this.appendLock.lock();
+        try {
+            for (Segment segment : this.segments) {
+                if (segment != this.active && (segment.liveBytes == 0 || segment.liveBytes * 2 < segment.position)) {
+                    compacted.add(segment);
+                }
+            }
+        } finally {
+            this.appendLock.unlock();
+        }
+
+        if (!compacted.isEmpty()) {
+            // Records can only be appended to the active segment, so no records are
+            // added to the compacted segments while they are moved out
+            for (Map.Entry<ByteBuffer, Location> entry : this.locations.entrySet()) {
+                if (this.closed) {
+                    return;
+                }
+                Location location = entry.getValue();
+                if (!compacted.contains(location.segment)) {
+                    continue;
+                }
+                this.appendLock.lock();
+                try {
+                    if (this.locations.get(entry.getKey()) != location) {
+                        // The blob was stored again
+                        continue;
+                    }
+                    ByteBuffer record = location.segment.buffer.slice(location.offset, location.length());
+                    this.append(entry.getKey().array(), location.sha256, location.dataLength,
+                        location.chunkTreeLength, target -> target.put(record));
+                } finally {
+                    this.appendLock.unlock();
+                }
+            }
+        }
+
+        this.appendLock.lock();
+        try {
+            if (this.closed) {
+                return;
+            }
+            if (!compacted.isEmpty()) {
+                // The new index entries must be on the disk before the old copies are deleted
+                this.index.force();
+            }
+            for (Segment segment : compacted) {
+                if (segment.liveBytes == 0) {
+                    this.segments.remove(segment);
+                    Files.delete(segment.path);
+                }
+            }
+            if (this.index.size() > 2 * this.locations.size() + 1024) {
+                List<PackIndex.Entry> entries = new ArrayList<>(this.locations.size());
+                for (Map.Entry<ByteBuffer, Location> entry : this.locations.entrySet()) {
+                    Location location = entry.getValue();
+                    entries.add(new PackIndex.Entry(entry.getKey().array(), location.sha256, location.segment.id,
+                        location.offset, location.dataLength, location.chunkTreeLength));
+                }
+                this.index.rewrite(entries);
+            }
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        if (this.compaction != null) {
+            this.compaction.shutdown();
+            try {
+                this.compaction.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.appendLock.lock();
+        try {
+            for (Segment segment : this.segments) {
+                segment.buffer.force();
+            }
+            this.index.close();
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    /**
+     * A segment file that is mapped into memory.
+     */
+    private static final class Segment {
+        private final int id;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        /**
+         * The end of the last record.
+         */
+        private int position;
+        /**
+         * The size of the records that are in use.
+         */
+        private long liveBytes;
+
+        private Segment(int id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Where the stored version of a blob is.
+     *
+     * @param segment The segment of the record.
+     * @param offset The offset of the record in the segment.
+     * @param dataLength The size of the content.
+     * @param chunkTreeLength The size of the chunk tree.
+     * @param sha256 The hash of the content.
+     */
+    private record Location(Segment segment, int offset, int dataLength, int chunkTreeLength, byte[] sha256) {
+        int length() {
+            return this.dataLength + this.chunkTreeLength;
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordWriter {
+        void write(ByteBuffer target) throws IOException;
+    }
+
+    /**
+     * A blob that is written to memory, or to a temporary file once it grows
+     * large, and appended to a segment when it is committed.
+     */
+    private class PackWriter implements Writer {
+        private final byte[] fileId;
+        private final StagingOutputStream output = new StagingOutputStream();
+        private byte @Nullable [] chunkTree;
+        private byte @Nullable [] sha256;
+
+        private PackWriter(byte[] fileId) {
+            this.fileId = fileId;
+        }
+
+        @Override
+        public OutputStream output() {
+            return this.output;
+        }
+
+        @Override
+        public void finish(ChunkTree chunkTree) throws IOException {
+            if (this.output.size + chunkTree.getSerializedSize() > Integer.MAX_VALUE) {
+                throw new IOException("The blob is too large to be stored in a pack");
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunkTree.getSerializedSize());
+            chunkTree.write(bytes);
+            this.chunkTree = bytes.toByteArray();
+            this.sha256 = chunkTree.getRootHash();
+        }
+
+        @Override
+        public void commit() throws IOException {
+            byte[] chunkTree = this.chunkTree;
+            if (chunkTree == null || this.sha256 == null) {
+                throw new IllegalStateException("The blob is not finished");
+            }
+            PackBlobStore.this.appendLock.lock();
+            try {
+                PackBlobStore.this.append(this.fileId, this.sha256, (int) this.output.size, chunkTree.length, target -> {
+                    this.output.writeTo(target);
+                    target.put(chunkTree);
+                });
+            } finally {
+                PackBlobStore.this.appendLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.output.discard();
+        }
+    }
+
+    /**
+     * Keeps the content of a blob in memory until it is larger than
+     * {@link #SPILL_THRESHOLD}, and in a temporary file after that.
+     */
+    private class StagingOutputStream extends OutputStream {
+        private @Nullable Buffer memory = new Buffer();
+        private @Nullable Path tempPath;
+        private @Nullable OutputStream file;
+        private long size;
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (this.size + len > Integer.MAX_VALUE) {
+                throw new IOException("The blob is too large to be stored in a pack");
+            }
+            if (this.memory != null && this.size + len > SPILL_THRESHOLD) {
+                this.tempPath = Files.createTempFile(PackBlobStore.this.root, "blob", TEMP_SUFFIX);
+                this.file = Files.newOutputStream(this.tempPath);
+                this.memory.writeTo(this.file);
+                this.memory = null;
+            }
+            if (this.memory != null) {
+                this.memory.write(b, off, len);
+            } else {
+                this.file.write(b, off, len);
+            }
+            this.size += len;
+        }
+
+        /**
+         * Copy the content to a buffer. The stream must be closed.
+         *
+         * @param target The buffer to copy to.
+         * @throws IOException If an I/O error occurs.
+         */
+        private void writeTo(ByteBuffer target) throws IOException {
+            if (this.memory != null) {
+                target.put(this.memory.contents());
+                return;
+            }
+            ByteBuffer data = target.slice(target.position(), (int) this.size);
+            try (FileChannel channel = FileChannel.open(this.tempPath, StandardOpenOption.READ)) {
+                while (data.hasRemaining()) {
+                    if (channel.read(data) == -1) {
+                        throw new IOException("The temporary file " + this.tempPath + " ended early");
+                    }
+                }
+            }
+            target.position(target.position() + (int) this.size);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.file != null) {
+                this.file.close();
+            }
+        }
+
+        private void discard() throws IOException {
+            this.close();
+            this.memory = null;
+            if (this.tempPath != null) {
+                Files.deleteIfExists(this.tempPath);
+            }
+        }
+    }
+
+    /**
+     * A byte array output stream whose content can be read without a copy.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        private ByteBuffer contents() {
+            return ByteBuffer.wrap(this.buf, 0, this.count);
+        }
+    }
+
+    /**
+     * A blob and its chunk tree in a mapped segment.
+     */
+    private record PackBlob(ByteBuffer data, ByteBuffer chunkTree) implements Blob {
+        @Override
+        public long size() {
+            return this.data.capacity();
+        }
+
+        @Override
+        public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (position < 0 || count < 0 || position + count > this.data.capacity()) {
+                throw new IndexOutOfBoundsException("Invalid range " + position + "+" + count);
+            }
+            ByteBuffer window = this.data.slice((int) position, (int) count);
+            while (window.hasRemaining()) {
+                target.write(window);
+            }
+        }
+
+        @Override
+        public ChunkTree readChunkTree() throws IOException {
+            return ChunkTree.read(this.chunkTree);
+        }
+
+        @Override
+        public void close() {
+            // The mapping is released once the segment is no longer used
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package alvinw.cryptography.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The persisted index of a {@link PackBlobStore}, with the segment and offset of
+ * every stored blob.
+ * <p>
+ * The index starts with a magic number and a version, followed by fixed size
+ * entries. Entries are appended as blobs are stored or moved, and a later entry
+ * replaces an earlier entry for the same file id. The index is rewritten without
+ * replaced entries when the store is loaded, and when it has grown much larger
+ * than the amount of stored blobs.
+ * <p>
+ * In version 1 the hash of a blob did not include its size, see
+ * {@link alvinw.cryptography.merkle.ChunkTree}. Those indexes are still read,
+ * and the store calculates the hashes again from the chunk trees in the segments.
+ */
+class PackIndex implements Closeable {
+    private static final int MAGIC = 0x5041434b; // "PACK"
+    private static final int VERSION = 2;
+    /**
+     * The version where the hashes of the blobs are outdated.
+     */
+    static final int UNSIZED_HASH_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4;
+    private static final int ENTRY_SIZE = 32 + 32 + 4 + 4 + 4 + 4;
+
+    private final Path path;
+    private FileChannel appendChannel;
+    private int entryCount;
+    private int version = VERSION;
+
+    PackIndex(Path path) {
+        this.path = path;
+    }
+
+    boolean exists() {
+        return Files.exists(this.path);
+    }
+
+    /**
+     * Read the entries of the index. A missing index has no entries. A partially
+     * written entry at the end is ignored.
+     *
+     * @return The entries keyed by the file id.
+     * @throws IOException If an I/O error occurs or the index is invalid.
+     */
+    Map<ByteBuffer, Entry> read() throws IOException {
+        Map<ByteBuffer, Entry> entries = new HashMap<>();
+        if (Files.notExists(this.path)) {
+            return entries;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(this.path));
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Invalid pack index " + this.path);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION && version != UNSIZED_HASH_VERSION) {
+            throw new IOException("Unsupported pack index version " + version);
+        }
+        this.version = version;
+        while (buffer.remaining() >= ENTRY_SIZE) {
+            byte[] fileId = new byte[32];
+            buffer.get(fileId);
+            byte[] sha256 = new byte[32];
+            buffer.get(sha256);
+            int segmentId = buffer.getInt();
+            int offset = buffer.getInt();
+            int dataLength = buffer.getInt();
+            int chunkTreeLength = buffer.getInt();
+            if (segmentId < 0 || offset < 0 || dataLength < 0 || chunkTreeLength < 0) {
+                throw new IOException("Invalid pack index entry");
+            }
+            entries.put(ByteBuffer.wrap(fileId), new Entry(fileId, sha256, segmentId, offset, dataLength, chunkTreeLength));
+        }
+        return entries;
+    }
+
+    /**
+     * Replace the index with one that only contains the given entries, and
+     * prepare for appending more entries.
+     *
+     * @param entries The entries.
+     * @throws IOException If an I/O error occurs.
+     */
+    void rewrite(Collection<Entry> entries) throws IOException {
+        this.close();
+        Path tempPath = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + entries.size() * ENTRY_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            for (Entry entry : entries) {
+                entry.write(buffer);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tempPath, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.appendChannel = FileChannel.open(this.path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.entryCount = entries.size();
+        this.version = VERSION;
+    }
+
+    /**
+     * Get the version of the index that was read, which is the current version
+     * once the index has been rewritten.
+     *
+     * @return The version.
+     */
+    int version() {
+        return this.version;
+    }
+
+    /**
+     * Append an entry to the index. {@link #rewrite(Collection)} must have been
+     * called first.
+     *
+     * @param entry The entry.
+     * @throws IOException If an I/O error occurs.
+     */
+    void append(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+        entry.write(buffer);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            this.appendChannel.write(buffer);
+        }
+        this.entryCount++;
+    }
+
+    /**
+     * Get the amount of entries in the index, including replaced entries.
+     *
+     * @return The amount of entries.
+     */
+    int size() {
+        return this.entryCount;
+    }
+
+    /**
+     * Write the appended entries to the disk.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    void force() throws IOException {
+        this.appendChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.appendChannel != null) {
+            this.appendChannel.close();
+            this.appendChannel = null;
+        }
+    }
+
+    /**
+     * An entry in the index. A record in a segment is the content of the blob
+     * followed by its chunk tree.
+     *
+     * @param fileId The file id.
+     * @param sha256 The hash of the content, the root of its chunk tree.
+     * @param segmentId The id of the segment that the record is in.
+     * @param offset The offset of the record in the segment.
+     * @param dataLength The size of the content.
+     * @param chunkTreeLength The size of the chunk tree.
+     */
+    record Entry(byte[] fileId, byte[] sha256, int segmentId, int offset, int dataLength, int chunkTreeLength) {
+        private void write(ByteBuffer buffer) {
+            buffer.put(this.fileId).put(this.sha256)
+                .putInt(this.segmentId).putInt(this.offset).putInt(this.dataLength).putInt(this.chunkTreeLength);
+        }
+    }
+}
@@ -1,24 +1,37 @@
 package alvinw.cryptography.server;
 
-import alvinw.cryptography.CryptoUtils;
-import alvinw.cryptography.merkle.ComplementingHash;
-import alvinw.cryptography.merkle.LeafNode;
-import alvinw.cryptography.merkle.MerkleTree;
+import alvinw.cryptography.merkle.ChunkTree;
+import alvinw.cryptography.merkle.ProofFormat;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
-import java.util.Arrays;
+import java.nio.channels.Channels;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Http handler for the endpoint that reads files.
+ * <p>
+ * A request with a {@code Range} header of a single byte range is answered with
+ * {@code 206 Partial Content}. The range is extended to whole chunks of the
+ * file's {@link ChunkTree}, and the {@code Content-Range} header tells which
+ * bytes were sent. The body contains the complementing hashes of the file,
+ * followed by the proof for the chunk range and the bytes of the chunks.
+ * <p>
+ * The complementing hashes are sent in the {@link ProofFormat} negotiated with
+ * the client.
  */
 public class ReadEndpoint implements HttpHandler {
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
     private final FileStorage fileStorage;
 
     public ReadEndpoint(FileStorage fileStorage) {
@@ -35,25 +48,91 @@ public class ReadEndpoint implements HttpHandler {
         String fileName = exchange.getRequestURI().getPath().substring("/read/".length());
         byte[] fileId = this.fileStorage.getFileId(fileName);
 
-        byte[] fileContent;
-        try (InputStream stream = this.fileStorage.read(fileId)) {
-            fileContent = stream.readAllBytes();
+        FileStorage.OpenFile file = this.fileStorage.openFile(fileId);
+        if (file == null) {
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+            exchange.getResponseBody().close();
+            return;
+        }
+
+        // Send the proof followed by the file straight from the blob store, so the
+        // file content is never copied onto the heap as a whole.
+        try (file) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            DataOutputStream dataOutput = new DataOutputStream(output);
+            ProofFormat proofFormat = ProofFormat.negotiate(exchange.getRequestHeaders().getFirst(ProofFormat.ACCEPT_HEADER));
+            proofFormat.write(file.complementingHashes(), dataOutput);
+            exchange.getResponseHeaders().set(ProofFormat.HEADER, proofFormat.headerValue());
+
+            long size = file.blob().size();
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            long start = 0;
+            long end = size;
+            int status = HttpURLConnection.HTTP_OK;
+            if (range != null) {
+                Matcher matcher = RANGE_PATTERN.matcher(range.trim());
+                // Anything but a single byte range is ignored, and the whole file is sent
+                if (matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+                    long[] bounds = parseRange(matcher.group(1), matcher.group(2), size);
+                    if (bounds == null) {
+                        exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                        exchange.sendResponseHeaders(416, -1); // Range Not Satisfiable
+                        exchange.getResponseBody().close();
+                        return;
+                    }
+                    ChunkTree chunkTree = file.readChunkTree();
+                    int firstChunk = (int) (bounds[0] / ChunkTree.CHUNK_SIZE);
+                    int lastChunk = (int) (bounds[1] / ChunkTree.CHUNK_SIZE);
+                    List<byte[]> rangeProof;
+                    try {
+                        rangeProof = chunkTree.getRangeProof(firstChunk, lastChunk);
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                    ChunkTree.writeRangeProof(rangeProof, dataOutput);
+                    start = (long) firstChunk * ChunkTree.CHUNK_SIZE;
+                    end = Math.min(size, (long) (lastChunk + 1) * ChunkTree.CHUNK_SIZE);
+                    status = HttpURLConnection.HTTP_PARTIAL;
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + size);
+                }
+            }
+            byte[] proofBytes = output.toByteArray();
+
+            exchange.sendResponseHeaders(status, proofBytes.length + (end - start));
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(proofBytes);
+                file.blob().transferTo(start, end - start, Channels.newChannel(responseBody));
+            }
+        }
+    }
+
+    /**
+     * Parse the first and last byte of a byte range.
+     *
+     * @param first The first byte, or empty for a suffix range.
+     * @param last The last byte, or empty for a range to the end of the file.
+     * @param size The size of the file.
+     * @return The first and last byte, inclusive, or null if the range is not
+     * satisfiable.
+     */
+    private static long @Nullable [] parseRange(String first, String last, long size) {
+        try {
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // The last bytes of the file
+                start = Math.max(0, size - Long.parseLong(last));
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            }
+            if (start > end || start >= size) {
+                return null;
+            }
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return null;
         }
-        byte[] sha256 = CryptoUtils.sha256(fileContent);
-
-        MerkleTree merkleTree = this.fileStorage.getMerkleTree();
-        LeafNode node = (LeafNode) merkleTree.find(
-            n -> n instanceof LeafNode leafNode && Arrays.equals(leafNode.hash(), sha256)
-        );
-        List<ComplementingHash> complementingHashes = node.getComplementingHashes();
-
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        DataOutputStream dataOutput = new DataOutputStream(output);
-        ComplementingHash.write(complementingHashes, dataOutput);
-        dataOutput.write(fileContent);
-        byte[] outputBytes = output.toByteArray();
-        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, outputBytes.length);
-        exchange.getResponseBody().write(outputBytes);
-        exchange.getResponseBody().close();
     }
 }
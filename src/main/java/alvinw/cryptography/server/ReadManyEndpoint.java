@@ -0,0 +1,118 @@
+package alvinw.cryptography.server;
+
+import alvinw.cryptography.merkle.MultiProof;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Http handler for the endpoint that reads many files in one request.
+ * <p>
+ * The request body starts with the amount of files, followed by the length of
+ * each file name and the file name in UTF-8. The response contains a
+ * {@link MultiProof} of the files, followed by the length and the content of
+ * each file, in the order the files were requested.
+ */
+public class ReadManyEndpoint implements HttpHandler {
+    public static final int MAX_FILES = BatchUploadEndpoint.MAX_FILES;
+    private static final int MAX_FILE_NAME_LENGTH = 1024;
+
+    private final FileStorage fileStorage;
+
+    public ReadManyEndpoint(FileStorage fileStorage) {
+        this.fileStorage = fileStorage;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, 0);
+            exchange.getResponseBody().close();
+            return;
+        }
+        List<byte[]> fileIds = new ArrayList<>();
+        try (InputStream requestBody = exchange.getRequestBody()) {
+            DataInputStream input = new DataInputStream(requestBody);
+            try {
+                int count = input.readInt();
+                if (count <= 0 || count > MAX_FILES) {
+                    this.sendError(exchange, HttpURLConnection.HTTP_BAD_REQUEST);
+                    return;
+                }
+                Set<ByteBuffer> seen = new HashSet<>();
+                for (int i = 0; i < count; i++) {
+                    int fileNameLength = input.readInt();
+                    if (fileNameLength <= 0 || fileNameLength > MAX_FILE_NAME_LENGTH) {
+                        this.sendError(exchange, HttpURLConnection.HTTP_BAD_REQUEST);
+                        return;
+                    }
+                    byte[] fileName = new byte[fileNameLength];
+                    input.readFully(fileName);
+                    byte[] fileId = this.fileStorage.getFileId(new String(fileName, StandardCharsets.UTF_8));
+                    if (!seen.add(ByteBuffer.wrap(fileId))) {
+                        // The same file was requested twice
+                        this.sendError(exchange, HttpURLConnection.HTTP_BAD_REQUEST);
+                        return;
+                    }
+                    fileIds.add(fileId);
+                }
+            } catch (EOFException e) {
+                // The body ended before all the file names it announced were sent
+                this.sendError(exchange, HttpURLConnection.HTTP_BAD_REQUEST);
+                return;
+            }
+        }
+
+        FileStorage.OpenFiles files = this.fileStorage.openFiles(fileIds);
+        if (files == null) {
+            this.sendError(exchange, HttpURLConnection.HTTP_NOT_FOUND);
+            return;
+        }
+
+        try (files) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            DataOutputStream dataOutput = new DataOutputStream(output);
+            files.multiProof().write(dataOutput);
+            byte[] proofBytes = output.toByteArray();
+
+            long length = proofBytes.length;
+            for (BlobStore.Blob blob : files.blobs()) {
+                length += Long.BYTES + blob.size();
+            }
+
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(proofBytes);
+                DataOutputStream dataResponse = new DataOutputStream(responseBody);
+                WritableByteChannel target = Channels.newChannel(responseBody);
+                for (BlobStore.Blob blob : files.blobs()) {
+                    long size = blob.size();
+                    dataResponse.writeLong(size);
+                    dataResponse.flush();
+                    blob.transferTo(0, size, target);
+                }
+            }
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+        exchange.getResponseBody().close();
+    }
+}
@@ -1,40 +1,126 @@
 package alvinw.cryptography.server;
 
+import alvinw.cryptography.merkle.FlatMerkleTree;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A server capable of handling requests to upload, read, and verify a file storage.
+ * <p>
+ * Requests are handled concurrently on the executor from the {@link ServerConfig}.
+ * The {@link Metrics} of every endpoint are recorded, and can be read from
+ * {@code /metrics}.
  */
 public class Server {
     public static final int PORT = 4146;
 
     private final Path root;
+    private final ServerConfig config;
+    private final Metrics metrics = new Metrics();
+    private final Log log;
+    private @Nullable HttpServer httpServer;
+    private @Nullable ExecutorService executor;
+    private @Nullable FileStorage fileStorage;
 
     public Server(Path root) {
+        this(root, ServerConfig.defaults());
+    }
+
+    public Server(Path root, ServerConfig config) {
         this.root = root;
+        this.config = config;
+        this.log = config.logging() ? Log.to(System.err) : Log.disabled();
     }
 
     public static void main(String[] args) throws IOException {
-        new Server(Path.of("run/server")).start();
+        Server server = new Server(Path.of("run/server"), ServerConfig.fromSystemProperties());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.stop();
+            } catch (IOException e) {
+                server.log.log("stop_failed", "error", e);
+            }
+        }));
+        server.start();
     }
 
-    public void start() throws IOException {
-        Path storagePath = this.root.resolve("storage");
-        Files.createDirectories(storagePath);
-        FileStorage fileStorage = new FileStorage(storagePath);
+    public synchronized void start() throws IOException {
+        if (this.httpServer != null) {
+            throw new IllegalStateException("The server is already running");
+        }
+        BlobStore blobStore = switch (this.config.storage()) {
+            case FILES -> new FileBlobStore(this.root.resolve("storage"), FileBlobStore.DEFAULT_HASH_PARALLELISM,
+                this.config.shardDepth(), this.config.mapThreshold(), this.metrics, this.log);
+            case PACK -> new PackBlobStore(this.root.resolve("packs"), PackBlobStore.DEFAULT_SEGMENT_SIZE, this.log);
+        };
+        FileStorage fileStorage = new FileStorage(blobStore, files -> FlatMerkleTree.fromFiles(files, false, true), this.metrics);
+        fileStorage.load();
 
-        HttpServer httpServer = HttpServer.create(new InetSocketAddress(PORT), 0);
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(this.config.port()), this.config.backlog());
 
-        httpServer.createContext("/upload/", new UploadEndpoint(fileStorage));
-        httpServer.createContext("/read/", new ReadEndpoint(fileStorage));
-        httpServer.createContext("/verify", new VerifyEndpoint(fileStorage));
+        this.createContext(httpServer, "/upload/", "upload", new UploadEndpoint(fileStorage, this.log));
+        this.createContext(httpServer, "/batch-upload", "batch_upload", new BatchUploadEndpoint(fileStorage, this.log));
+        this.createContext(httpServer, "/read/", "read", new ReadEndpoint(fileStorage));
+        this.createContext(httpServer, "/read-many", "read_many", new ReadManyEndpoint(fileStorage));
+        this.createContext(httpServer, "/verify", "verify", new VerifyEndpoint(fileStorage, this.log));
+        this.createContext(httpServer, "/metrics", "metrics", new MetricsEndpoint(this.metrics, fileStorage));
 
+        ExecutorService executor = this.config.createExecutor(this.log);
+        httpServer.setExecutor(executor);
         httpServer.start();
-        System.out.println("Running on port " + PORT);
+        this.fileStorage = fileStorage;
+        this.httpServer = httpServer;
+        this.executor = executor;
+        System.out.println("Running on port " + this.config.port());
+    }
+
+    private void createContext(HttpServer httpServer, String path, String name, HttpHandler handler) {
+        HttpContext context = httpServer.createContext(path, handler);
+        context.getFilters().add(new MetricsFilter(name, this.metrics, this.log));
+    }
+
+    /**
+     * Get the metrics of the server. They are kept when the server is stopped and
+     * started again.
+     *
+     * @return The metrics.
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Stop the server. New connections are refused right away, and requests in
+     * progress are given {@link ServerConfig#stopDelaySeconds()} to finish before
+     * the storage is closed.
+     *
+     * @throws IOException If an I/O error occurs when closing the storage.
+     */
+    public synchronized void stop() throws IOException {
+        if (this.httpServer == null) {
+            return;
+        }
+        this.httpServer.stop(this.config.stopDelaySeconds());
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(this.config.stopDelaySeconds(), TimeUnit.SECONDS)) {
+                this.executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        this.fileStorage.close();
+        this.httpServer = null;
+        this.executor = null;
+        this.fileStorage = null;
     }
 }
@@ -0,0 +1,171 @@
+package alvinw.cryptography.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The configuration of a {@link Server}.
+ *
+ * @param port The port to listen on.
+ * @param backlog The maximum amount of connections waiting to be accepted, or 0
+ *                for the system default.
+ * @param execution How requests are executed.
+ * @param threads The amount of threads when requests are executed on a pool of
+ *                platform threads.
+ * @param stopDelaySeconds The maximum time to wait for requests in progress to
+ *                         finish when the server is stopped.
+ * @param logging Whether events such as requests and stored files are logged to
+ *                standard error, see {@link Log}.
+ * @param storage How the content of stored files is kept on disk.
+ * @param shardDepth The amount of directory levels that stored files are spread
+ *                   over with the {@link Storage#FILES} storage, see
+ *                   {@link FileBlobStore}.
+ * @param mapThreshold The size from which stored files are memory mapped when
+ *                     they are hashed with the {@link Storage#FILES} storage.
+ */
+public record ServerConfig(int port, int backlog, Execution execution, int threads, int stopDelaySeconds,
+                           boolean logging, Storage storage, int shardDepth, long mapThreshold) {
+    public ServerConfig {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        if (shardDepth < 0 || shardDepth > FileBlobStore.MAX_SHARD_DEPTH) {
+            throw new IllegalArgumentException("shardDepth must be between 0 and " + FileBlobStore.MAX_SHARD_DEPTH);
+        }
+        if (mapThreshold < 0) {
+            throw new IllegalArgumentException("mapThreshold must not be negative");
+        }
+    }
+
+    /**
+     * The default configuration, where every request runs on its own virtual
+     * thread.
+     *
+     * @return The configuration.
+     */
+    public static ServerConfig defaults() {
+        int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        return new ServerConfig(Server.PORT, 0, Execution.VIRTUAL_THREADS, threads, 5, false, Storage.FILES,
+            FileBlobStore.DEFAULT_SHARD_DEPTH, FileBlobStore.DEFAULT_MAP_THRESHOLD);
+    }
+
+    /**
+     * The default configuration, overridden by the system properties
+     * {@code server.port}, {@code server.backlog}, {@code server.execution}
+     * ({@code virtual_threads} or {@code platform_pool}), {@code server.threads},
+     * {@code server.log}, {@code server.storage} ({@code files} or {@code pack}),
+     * {@code server.shardDepth} and {@code server.mapThreshold} (in bytes).
+     *
+     * @return The configuration.
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig defaults = defaults();
+        String execution = System.getProperty("server.execution");
+        String storage = System.getProperty("server.storage");
+        return new ServerConfig(
+            Integer.getInteger("server.port", defaults.port()),
+            Integer.getInteger("server.backlog", defaults.backlog()),
+            execution != null ? Execution.valueOf(execution.toUpperCase()) : defaults.execution(),
+            Integer.getInteger("server.threads", defaults.threads()),
+            defaults.stopDelaySeconds(),
+            Boolean.parseBoolean(System.getProperty("server.log", String.valueOf(defaults.logging()))),
+            storage != null ? Storage.valueOf(storage.toUpperCase()) : defaults.storage(),
+            Integer.getInteger("server.shardDepth", defaults.shardDepth()),
+            Long.getLong("server.mapThreshold", defaults.mapThreshold())
+        );
+    }
+
+    public ServerConfig withPort(int port) {
+        return new ServerConfig(port, this.backlog, this.execution, this.threads, this.stopDelaySeconds, this.logging, this.storage,
+            this.shardDepth, this.mapThreshold);
+    }
+
+    public ServerConfig withBacklog(int backlog) {
+        return new ServerConfig(this.port, backlog, this.execution, this.threads, this.stopDelaySeconds, this.logging, this.storage,
+            this.shardDepth, this.mapThreshold);
+    }
+
+    public ServerConfig withPlatformPool(int threads) {
+        return new ServerConfig(this.port, this.backlog, Execution.PLATFORM_POOL, threads, this.stopDelaySeconds, this.logging, this.storage,
+            this.shardDepth, this.mapThreshold);
+    }
+
+    public ServerConfig withLogging(boolean logging) {
+        return new ServerConfig(this.port, this.backlog, this.execution, this.threads, this.stopDelaySeconds, logging, this.storage,
+            this.shardDepth, this.mapThreshold);
+    }
+
+    public ServerConfig withStorage(Storage storage) {
+        return new ServerConfig(this.port, this.backlog, this.execution, this.threads, this.stopDelaySeconds, this.logging, storage,
+            this.shardDepth, this.mapThreshold);
+    }
+
+    public ServerConfig withShardDepth(int shardDepth) {
+        return new ServerConfig(this.port, this.backlog, this.execution, this.threads, this.stopDelaySeconds, this.logging, this.storage,
+            shardDepth, this.mapThreshold);
+    }
+
+    public ServerConfig withMapThreshold(long mapThreshold) {
+        return new ServerConfig(this.port, this.backlog, this.execution, this.threads, this.stopDelaySeconds, this.logging, this.storage,
+            this.shardDepth, mapThreshold);
+    }
+
+    /**
+     * Create the executor that requests are executed on.
+     * <p>
+     * Virtual threads require Java 21. On older versions a pool of platform
+     * threads is used instead, which is logged as a {@code virtual_threads_unavailable}
+     * event.
+     *
+     * @param log The log of the server.
+     * @return The executor.
+     */
+    ExecutorService createExecutor(Log log) {
+        if (this.execution == Execution.VIRTUAL_THREADS) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                log.log("virtual_threads_unavailable", "threads", this.threads);
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "server-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(this.threads, threadFactory);
+    }
+
+    /**
+     * How requests are executed.
+     */
+    public enum Execution {
+        /**
+         * Every request runs on a new virtual thread.
+         */
+        VIRTUAL_THREADS,
+        /**
+         * Requests run on a fixed size pool of platform threads.
+         */
+        PLATFORM_POOL
+    }
+
+    /**
+     * How the content of stored files is kept on disk.
+     */
+    public enum Storage {
+        /**
+         * Every file is kept in its own file, see {@link FileBlobStore}.
+         */
+        FILES,
+        /**
+         * Files are appended to large segment files, which suits many small files,
+         * see {@link PackBlobStore}.
+         */
+        PACK
+    }
+}
@@ -2,16 +2,16 @@ package alvinw.cryptography.server;
 
 import alvinw.cryptography.CryptoUtils;
 import alvinw.cryptography.merkle.ComplementingHash;
-import alvinw.cryptography.merkle.LeafNode;
-import alvinw.cryptography.merkle.MerkleTree;
+import alvinw.cryptography.merkle.FileInfo;
+import alvinw.cryptography.merkle.ProofFormat;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -19,9 +19,11 @@ import java.util.List;
  */
 public class UploadEndpoint implements HttpHandler {
     private final FileStorage fileStorage;
+    private final Log log;
 
-    public UploadEndpoint(FileStorage fileStorage) {
+    public UploadEndpoint(FileStorage fileStorage, Log log) {
         this.fileStorage = fileStorage;
+        this.log = log;
     }
 
     @Override
@@ -33,24 +35,30 @@ public class UploadEndpoint implements HttpHandler {
         }
         String fileName = exchange.getRequestURI().getPath().substring("/upload/".length());
         byte[] fileId = this.fileStorage.getFileId(fileName);
-        byte[] fileContent = exchange.getRequestBody().readAllBytes();
-        byte[] sha256 = CryptoUtils.sha256(fileContent);
-        this.fileStorage.store(fileId, fileContent);
-
-        System.out.println("fileContent.length = " + fileContent.length);
-        System.out.println("sha256 = " + CryptoUtils.hexString(sha256));
+        FileInfo fileInfo;
+        FileStorage.Commit commit;
+        try (InputStream requestBody = exchange.getRequestBody();
+             FileStorage.Batch batch = this.fileStorage.beginBatch()) {
+            fileInfo = batch.add(fileId, requestBody);
+            commit = batch.commit();
+        }
+        if (this.log.isEnabled()) {
+            this.log.log("stored",
+                "file_id", CryptoUtils.hexString(fileId),
+                "sha256", CryptoUtils.hexString(fileInfo.getSha256()),
+                "version", commit.snapshot().version()
+            );
+        }
 
-        MerkleTree merkleTree = this.fileStorage.getMerkleTree();
-        LeafNode leafNode = (LeafNode) merkleTree.find(
-            node -> node instanceof LeafNode ln && Arrays.equals(ln.hash(), sha256)
-        );
-        List<ComplementingHash> complementingHashes = leafNode.getComplementingHashes();
+        List<ComplementingHash> complementingHashes = commit.complementingHashes(0);
 
+        ProofFormat proofFormat = ProofFormat.negotiate(exchange.getRequestHeaders().getFirst(ProofFormat.ACCEPT_HEADER));
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         DataOutputStream dataOutput = new DataOutputStream(output);
-        ComplementingHash.write(complementingHashes, dataOutput);
+        proofFormat.write(complementingHashes, dataOutput);
         byte[] outputBytes = output.toByteArray();
 
+        exchange.getResponseHeaders().set(ProofFormat.HEADER, proofFormat.headerValue());
         exchange.sendResponseHeaders(HttpURLConnection.HTTP_CREATED, outputBytes.length);
         exchange.getResponseBody().write(outputBytes);
         exchange.getResponseBody().close();
@@ -1,6 +1,6 @@
 package alvinw.cryptography.server;
 
-import alvinw.cryptography.merkle.MerkleTree;
+import alvinw.cryptography.CryptoUtils;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
@@ -12,9 +12,11 @@ import java.net.HttpURLConnection;
  */
 public class VerifyEndpoint implements HttpHandler {
     private final FileStorage fileStorage;
+    private final Log log;
 
-    public VerifyEndpoint(FileStorage fileStorage) {
+    public VerifyEndpoint(FileStorage fileStorage, Log log) {
         this.fileStorage = fileStorage;
+        this.log = log;
     }
 
     @Override
@@ -24,10 +26,13 @@ public class VerifyEndpoint implements HttpHandler {
             exchange.getResponseBody().close();
             return;
         }
-        MerkleTree merkleTree = this.fileStorage.getMerkleTree();
-        System.out.println("merkleTree = " + merkleTree);
+        FileStorage.Snapshot snapshot = this.fileStorage.getSnapshot();
+        byte[] topHash = snapshot.topHash();
+        if (this.log.isEnabled()) {
+            this.log.log("verify", "version", snapshot.version(), "top_hash", CryptoUtils.hexString(topHash));
+        }
         exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 256 / 8);
-        exchange.getResponseBody().write(merkleTree.getTopHash());
+        exchange.getResponseBody().write(topHash);
         exchange.getResponseBody().close();
     }
 }
@@ -0,0 +1,110 @@
+package alvinw.cryptography.client;
+
+import alvinw.cryptography.CryptoUtils;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SegmentedEncryptionTest {
+    private static final int SEGMENT_SIZE = 1024;
+
+    private final SecretKey key = new SecretKeySpec(CryptoUtils.randomBytes(32), "AES");
+    private final byte[] fileNameHash = CryptoUtils.randomBytes(32);
+
+    /**
+     * Encrypt a plaintext and return the segments without the header.
+     */
+    private byte[] encrypt(SegmentedEncryption encryption, byte[] plainText) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        encryption.encrypt(new ByteArrayInputStream(plainText), output);
+        byte[] file = output.toByteArray();
+        return Arrays.copyOfRange(file, encryption.getHeader().size(), file.length);
+    }
+
+    private byte[] decrypt(SegmentedEncryption encryption, byte[] cipherText) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        encryption.decrypt(new ByteArrayInputStream(cipherText), output);
+        return output.toByteArray();
+    }
+
+    @Test
+    void encryptAndDecrypt() throws IOException, GeneralSecurityException {
+        for (int size : new int[] {0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 5 * SEGMENT_SIZE + 17}) {
+            byte[] plainText = CryptoUtils.randomBytes(size);
+            SegmentedEncryption.Header header = SegmentedEncryption.Header.random(CryptoUtils.randomBytes(16), SEGMENT_SIZE, size);
+            SegmentedEncryption encryption = new SegmentedEncryption(header, this.key, this.fileNameHash);
+            byte[] cipherText = this.encrypt(encryption, plainText);
+
+            assertArrayEquals(plainText, this.decrypt(new SegmentedEncryption(header, this.key, this.fileNameHash), cipherText));
+        }
+    }
+
+    @Test
+    void reorderedSegmentsAreRejected() throws IOException, GeneralSecurityException {
+        byte[] plainText = CryptoUtils.randomBytes(3 * SEGMENT_SIZE);
+        SegmentedEncryption.Header header = SegmentedEncryption.Header.random(CryptoUtils.randomBytes(16), SEGMENT_SIZE, plainText.length);
+        SegmentedEncryption encryption = new SegmentedEncryption(header, this.key, this.fileNameHash);
+        byte[] cipherText = this.encrypt(encryption, plainText);
+
+        // Swap the first two segments
+        int segmentLength = SEGMENT_SIZE + SegmentedEncryption.TAG_SIZE;
+        byte[] reordered = cipherText.clone();
+        System.arraycopy(cipherText, 0, reordered, segmentLength, segmentLength);
+        System.arraycopy(cipherText, segmentLength, reordered, 0, segmentLength);
+        assertThrows(GeneralSecurityException.class, () -> this.decrypt(encryption, reordered));
+    }
+
+    @Test
+    void truncatedFileIsRejected() throws IOException, GeneralSecurityException {
+        byte[] plainText = CryptoUtils.randomBytes(3 * SEGMENT_SIZE);
+        SegmentedEncryption.Header header = SegmentedEncryption.Header.random(CryptoUtils.randomBytes(16), SEGMENT_SIZE, plainText.length);
+        SegmentedEncryption encryption = new SegmentedEncryption(header, this.key, this.fileNameHash);
+        byte[] cipherText = this.encrypt(encryption, plainText);
+        int segmentLength = SEGMENT_SIZE + SegmentedEncryption.TAG_SIZE;
+        byte[] truncated = Arrays.copyOf(cipherText, 2 * segmentLength);
+
+        assertThrows(EOFException.class, () -> this.decrypt(encryption, truncated));
+
+        // A header that claims the file ends after the second segment
+        SegmentedEncryption.Header truncatedHeader = new SegmentedEncryption.Header(header.salt(), header.nonce(),
+            header.ivPrefix(), header.timestamp(), SEGMENT_SIZE, 2L * SEGMENT_SIZE);
+        SegmentedEncryption truncatedEncryption = new SegmentedEncryption(truncatedHeader, this.key, this.fileNameHash);
+        assertThrows(GeneralSecurityException.class, () -> this.decrypt(truncatedEncryption, truncated));
+    }
+
+    @Test
+    void otherFileIdIsRejected() throws IOException, GeneralSecurityException {
+        byte[] plainText = CryptoUtils.randomBytes(SEGMENT_SIZE);
+        SegmentedEncryption.Header header = SegmentedEncryption.Header.random(CryptoUtils.randomBytes(16), SEGMENT_SIZE, plainText.length);
+        byte[] cipherText = this.encrypt(new SegmentedEncryption(header, this.key, this.fileNameHash), plainText);
+
+        SegmentedEncryption other = new SegmentedEncryption(header, this.key, CryptoUtils.randomBytes(32));
+        assertThrows(GeneralSecurityException.class, () -> this.decrypt(other, cipherText));
+    }
+
+    @Test
+    void oversizedHeaderIsRejected() {
+        byte[] salt = CryptoUtils.randomBytes(16);
+        for (long[] sizes : new long[][] {
+            {Integer.MAX_VALUE, 1},
+            {SegmentedEncryption.MAX_SEGMENT_SIZE + 1, 1},
+            {SEGMENT_SIZE, Long.MAX_VALUE},
+            {1, (long) Integer.MAX_VALUE + 1},
+        }) {
+            byte[] header = SegmentedEncryption.Header.random(salt, (int) sizes[0], sizes[1]).toBytes();
+            assertThrows(IOException.class, () -> SegmentedEncryption.Header.read(
+                new DataInputStream(new ByteArrayInputStream(header)), SegmentedEncryption.VERSION));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package alvinw.cryptography.merkle;
+
+import alvinw.cryptography.CryptoContext;
+import alvinw.cryptography.CryptoUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChunkTreeTest {
+    private static final int CHUNK_SIZE = ChunkTree.CHUNK_SIZE;
+    private static final int[] SIZES = {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 2 * CHUNK_SIZE,
+        3 * CHUNK_SIZE, 5 * CHUNK_SIZE + 7};
+
+    @TempDir
+    Path root;
+
+    private static List<byte[]> chunkHashes(byte[] content, int first, int last) {
+        List<byte[]> hashes = new ArrayList<>();
+        for (int chunk = first; chunk <= last; chunk++) {
+            int start = chunk * CHUNK_SIZE;
+            hashes.add(CryptoContext.get().sha256(content, start, Math.min(CHUNK_SIZE, content.length - start)));
+        }
+        return hashes;
+    }
+
+    @Test
+    void everyRangeCalculatesRoot() {
+        for (int size : SIZES) {
+            byte[] content = CryptoUtils.randomBytes(size);
+            ChunkTree chunkTree = ChunkTree.of(content);
+            assertEquals(ChunkTree.chunkCount(size), chunkTree.getChunkCount());
+            for (int first = 0; first < chunkTree.getChunkCount(); first++) {
+                for (int last = first; last < chunkTree.getChunkCount(); last++) {
+                    List<byte[]> proof = chunkTree.getRangeProof(first, last);
+                    byte[] root = ChunkTree.calculateRoot(size, first, chunkHashes(content, first, last), proof);
+                    assertArrayEquals(chunkTree.getRootHash(), root);
+                }
+            }
+        }
+    }
+
+    @Test
+    void sizeIsPartOfRoot() {
+        byte[] content = CryptoUtils.randomBytes(100);
+        ChunkTree chunkTree = ChunkTree.of(content);
+        assertFalse(Arrays.equals(CryptoContext.get().sha256(content), chunkTree.getRootHash()));
+
+        List<byte[]> chunk = chunkHashes(content, 0, 0);
+        assertFalse(Arrays.equals(chunkTree.getRootHash(), ChunkTree.calculateRoot(101, 0, chunk, List.of())));
+    }
+
+    @Test
+    void wrongProofIsRejected() {
+        byte[] content = CryptoUtils.randomBytes(3 * CHUNK_SIZE);
+        ChunkTree chunkTree = ChunkTree.of(content);
+        List<byte[]> proof = chunkTree.getRangeProof(1, 1);
+        List<byte[]> chunk = chunkHashes(content, 1, 1);
+
+        assertThrows(IllegalArgumentException.class,
+            () -> ChunkTree.calculateRoot(content.length, 1, chunk, proof.subList(0, proof.size() - 1)));
+        List<byte[]> longProof = new ArrayList<>(proof);
+        longProof.add(new byte[32]);
+        assertThrows(IllegalArgumentException.class, () -> ChunkTree.calculateRoot(content.length, 1, chunk, longProof));
+        assertThrows(IllegalArgumentException.class, () -> ChunkTree.calculateRoot(content.length, 3, chunk, proof));
+    }
+
+    @Test
+    void hashingOneByteAtATime() throws IOException {
+        byte[] content = CryptoUtils.randomBytes(CHUNK_SIZE + 10);
+        ChunkTree.Hasher hasher = new ChunkTree.Hasher();
+        try (OutputStream output = new ChunkTree.HashingOutputStream(OutputStream.nullOutputStream(), hasher)) {
+            for (byte b : content) {
+                output.write(b);
+            }
+        }
+        assertArrayEquals(ChunkTree.of(content).getRootHash(), hasher.finish().getRootHash());
+    }
+
+    @Test
+    void writeAndRead() throws IOException {
+        for (int size : SIZES) {
+            byte[] content = CryptoUtils.randomBytes(size);
+            ChunkTree chunkTree = ChunkTree.of(content);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            chunkTree.write(output);
+            byte[] bytes = output.toByteArray();
+            assertEquals(chunkTree.getSerializedSize(), bytes.length);
+
+            Path path = this.root.resolve("tree" + size + ".chunks");
+            Files.write(path, bytes);
+            try (FileChannel channel = FileChannel.open(path)) {
+                ChunkTree fromChannel = ChunkTree.read(channel);
+                ChunkTree fromBuffer = ChunkTree.read(ByteBuffer.wrap(bytes));
+                for (ChunkTree read : List.of(fromChannel, fromBuffer)) {
+                    assertEquals(size, read.getFileSize());
+                    assertArrayEquals(chunkTree.getRootHash(), read.getRootHash());
+                    int last = read.getChunkCount() - 1;
+                    assertArrayEquals(chunkTree.getRangeProof(last / 2, last).toArray(), read.getRangeProof(last / 2, last).toArray());
+                }
+                ByteArrayOutputStream written = new ByteArrayOutputStream();
+                fromChannel.write(written);
+                assertArrayEquals(bytes, written.toByteArray());
+            }
+
+            Files.write(path, Arrays.copyOf(bytes, bytes.length - 1));
+            try (FileChannel channel = FileChannel.open(path)) {
+                assertThrows(IOException.class, () -> ChunkTree.read(channel));
+            }
+        }
+    }
+}
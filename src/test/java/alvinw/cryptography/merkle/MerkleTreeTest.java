@@ -0,0 +1,145 @@
+package alvinw.cryptography.merkle;
+
+import alvinw.cryptography.CryptoUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MerkleTreeTest {
+    private static final List<Function<Set<FileInfo>, MerkleTree>> FACTORIES = List.of(
+        NodeMerkleTree::fromFiles,
+        files -> NodeMerkleTree.fromFiles(files, true),
+        files -> FlatMerkleTree.fromFiles(files, false),
+        files -> FlatMerkleTree.fromFiles(files, true, true)
+    );
+
+    private static FileInfo randomFile(Random random, byte[] fileId) {
+        byte[] content = new byte[16];
+        random.nextBytes(content);
+        return new FileInfo(fileId, content);
+    }
+
+    private static void assertSameTree(Map<ByteBuffer, FileInfo> files, MerkleTree tree) {
+        MerkleTree expected = NodeMerkleTree.fromFiles(new HashSet<>(files.values()));
+        assertEquals(files.size(), tree.size());
+        assertArrayEquals(expected.getTopHash(), tree.getTopHash());
+        for (FileInfo file : files.values()) {
+            assertEquals(expected.indexOf(file.getFileId()), tree.indexOf(file.getFileId()));
+            assertTrue(MerkleTree.verifyFile(new LeafNode(file.getSha256()), tree.getTopHash(),
+                tree.getComplementingHashes(file.getFileId())));
+        }
+    }
+
+    @Test
+    void emptyTree() {
+        for (Function<Set<FileInfo>, MerkleTree> factory : FACTORIES) {
+            MerkleTree tree = factory.apply(Set.of());
+            assertArrayEquals(new byte[32], tree.getTopHash());
+            assertEquals(-1, tree.indexOf(new byte[32]));
+            assertNull(tree.getComplementingHashes(new byte[32]));
+        }
+    }
+
+    @Test
+    void putAndPutAllMatchFromFiles() {
+        Random random = new Random(1);
+        for (Function<Set<FileInfo>, MerkleTree> factory : FACTORIES) {
+            for (int round = 0; round < 30; round++) {
+                Map<ByteBuffer, FileInfo> files = new HashMap<>();
+                MerkleTree tree = factory.apply(Set.of());
+                for (int update = 0; update < 20; update++) {
+                    List<FileInfo> batch = new ArrayList<>();
+                    int batchSize = 1 + random.nextInt(4);
+                    for (int i = 0; i < batchSize; i++) {
+                        // Replace a stored file about half of the time
+                        byte[] fileId = !files.isEmpty() && random.nextBoolean()
+                            ? new ArrayList<>(files.values()).get(random.nextInt(files.size())).getFileId()
+                            : CryptoUtils.randomBytes(32);
+                        batch.add(randomFile(random, fileId));
+                    }
+                    if (random.nextBoolean()) {
+                        batch.forEach(tree::put);
+                    } else {
+                        tree.putAll(batch);
+                    }
+                    for (FileInfo file : batch) {
+                        files.put(ByteBuffer.wrap(file.getFileId()), file);
+                    }
+                    if (random.nextBoolean()) {
+                        // Hashes that are cached before the next update must be invalidated by it
+                        tree.getTopHash();
+                    }
+                    assertSameTree(files, tree);
+                }
+            }
+        }
+    }
+
+    @Test
+    void insertBeforeEveryPosition() {
+        for (Function<Set<FileInfo>, MerkleTree> factory : FACTORIES) {
+            Random random = new Random(2);
+            Map<ByteBuffer, FileInfo> files = new HashMap<>();
+            for (int i = 0; i < 17; i++) {
+                byte[] fileId = new byte[32];
+                fileId[0] = (byte) (i * 2 + 1);
+                FileInfo file = randomFile(random, fileId);
+                files.put(ByteBuffer.wrap(fileId), file);
+            }
+            for (int position = 0; position <= 17; position++) {
+                MerkleTree tree = factory.apply(new HashSet<>(files.values()));
+                tree.getTopHash();
+                byte[] fileId = new byte[32];
+                fileId[0] = (byte) (position * 2);
+                FileInfo file = randomFile(random, fileId);
+                tree.put(file);
+
+                Map<ByteBuffer, FileInfo> expected = new HashMap<>(files);
+                expected.put(ByteBuffer.wrap(fileId), file);
+                assertEquals(position, tree.indexOf(fileId));
+                assertSameTree(expected, tree);
+            }
+        }
+    }
+
+    @Test
+    void snapshotIsNotChangedByUpdates() {
+        Random random = new Random(3);
+        for (Function<Set<FileInfo>, MerkleTree> factory : FACTORIES) {
+            Map<ByteBuffer, FileInfo> files = new HashMap<>();
+            MerkleTree tree = factory.apply(Set.of());
+            List<MerkleTree> snapshots = new ArrayList<>();
+            List<Map<ByteBuffer, FileInfo>> snapshotFiles = new ArrayList<>();
+            for (int update = 0; update < 30; update++) {
+                // Replace a stored file every other update, which writes to the hashes in place
+                byte[] fileId = !files.isEmpty() && update % 2 == 1
+                    ? new ArrayList<>(files.values()).get(random.nextInt(files.size())).getFileId()
+                    : CryptoUtils.randomBytes(32);
+                FileInfo file = randomFile(random, fileId);
+                tree.put(file);
+                files.put(ByteBuffer.wrap(fileId), file);
+                snapshots.add(tree.snapshot());
+                snapshotFiles.add(new HashMap<>(files));
+            }
+            for (int i = 0; i < snapshots.size(); i++) {
+                assertSameTree(snapshotFiles.get(i), snapshots.get(i));
+            }
+            MerkleTree snapshot = snapshots.get(0);
+            assertThrows(UnsupportedOperationException.class, () -> snapshot.put(randomFile(random, new byte[32])));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package alvinw.cryptography.merkle;
+
+import alvinw.cryptography.CryptoUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MultiProofTest {
+    private static List<FileInfo> randomFiles(int count) {
+        List<FileInfo> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            files.add(new FileInfo(CryptoUtils.randomBytes(32), CryptoUtils.randomBytes(16)));
+        }
+        return files;
+    }
+
+    @Test
+    void randomSubsetsCalculateTopHash() {
+        Random random = new Random(1);
+        for (int fileCount : new int[] {1, 2, 3, 7, 8, 33, 100}) {
+            List<FileInfo> files = randomFiles(fileCount);
+            MerkleTree tree = MerkleTree.fromFiles(new HashSet<>(files));
+            for (int round = 0; round < 20; round++) {
+                List<FileInfo> subset = new ArrayList<>(files);
+                Collections.shuffle(subset, random);
+                subset = subset.subList(0, 1 + random.nextInt(fileCount));
+
+                MultiProof multiProof = tree.getMultiProof(subset.stream().map(FileInfo::getFileId).toList());
+                assertNotNull(multiProof);
+                assertArrayEquals(tree.getTopHash(), multiProof.calculateTopHash(subset.stream().map(FileInfo::getSha256).toList()));
+            }
+        }
+    }
+
+    @Test
+    void sameProofFromEveryTree() {
+        Set<FileInfo> files = new HashSet<>(randomFiles(50));
+        List<byte[]> fileIds = files.stream().limit(10).map(FileInfo::getFileId).toList();
+        MultiProof nodeProof = MerkleTree.fromFiles(files).getMultiProof(fileIds);
+        MultiProof flatProof = FlatMerkleTree.fromFiles(files, false).getMultiProof(fileIds);
+        assertNotNull(nodeProof);
+        assertNotNull(flatProof);
+        assertArrayEquals(nodeProof.positions(), flatProof.positions());
+        assertArrayEquals(nodeProof.hashes().toArray(), flatProof.hashes().toArray());
+    }
+
+    @Test
+    void writeAndRead() throws IOException {
+        List<FileInfo> files = randomFiles(40);
+        MerkleTree tree = MerkleTree.fromFiles(new HashSet<>(files));
+        List<FileInfo> subset = files.subList(5, 15);
+        MultiProof multiProof = tree.getMultiProof(subset.stream().map(FileInfo::getFileId).toList());
+        assertNotNull(multiProof);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        multiProof.write(new DataOutputStream(output));
+        MultiProof read = MultiProof.read(new DataInputStream(new ByteArrayInputStream(output.toByteArray())), subset.size());
+        assertArrayEquals(tree.getTopHash(), read.calculateTopHash(subset.stream().map(FileInfo::getSha256).toList()));
+
+        assertThrows(IOException.class,
+            () -> MultiProof.read(new DataInputStream(new ByteArrayInputStream(output.toByteArray())), subset.size() - 1));
+    }
+
+    @Test
+    void wrongFileHashIsNotVerified() {
+        List<FileInfo> files = randomFiles(20);
+        MerkleTree tree = MerkleTree.fromFiles(new HashSet<>(files));
+        List<FileInfo> subset = files.subList(0, 4);
+        MultiProof multiProof = tree.getMultiProof(subset.stream().map(FileInfo::getFileId).toList());
+        assertNotNull(multiProof);
+
+        List<byte[]> fileHashes = new ArrayList<>(subset.stream().map(FileInfo::getSha256).toList());
+        fileHashes.set(2, CryptoUtils.randomBytes(32));
+        assertFalse(Arrays.equals(tree.getTopHash(), multiProof.calculateTopHash(fileHashes)));
+    }
+
+    @Test
+    void missingFileHasNoProof() {
+        MerkleTree tree = MerkleTree.fromFiles(new HashSet<>(randomFiles(10)));
+        assertNull(tree.getMultiProof(List.of(CryptoUtils.randomBytes(32))));
+    }
+}
@@ -0,0 +1,84 @@
+package alvinw.cryptography.merkle;
+
+import alvinw.cryptography.CryptoUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProofFormatTest {
+    private static Set<FileInfo> randomFiles(int count) {
+        return IntStream.range(0, count)
+            .mapToObj(i -> new FileInfo(CryptoUtils.randomBytes(32), CryptoUtils.randomBytes(8)))
+            .collect(Collectors.toSet());
+    }
+
+    private static byte[] encode(ProofFormat format, List<ComplementingHash> complementingHashes) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        format.write(complementingHashes, new DataOutputStream(output));
+        return output.toByteArray();
+    }
+
+    private static List<ComplementingHash> decode(ProofFormat format, byte[] bytes) throws IOException {
+        return format.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    void encodeAndDecode() throws IOException {
+        // An odd amount of files, so some layers have a node without a sibling
+        Set<FileInfo> files = randomFiles(37);
+        MerkleTree tree = MerkleTree.fromFiles(files);
+        for (ProofFormat format : ProofFormat.values()) {
+            for (FileInfo file : files) {
+                List<ComplementingHash> complementingHashes = tree.getComplementingHashes(file.getFileId());
+                List<ComplementingHash> decoded = decode(format, encode(format, complementingHashes));
+
+                assertEquals(complementingHashes.size(), decoded.size());
+                for (int i = 0; i < complementingHashes.size(); i++) {
+                    assertEquals(complementingHashes.get(i).left(), decoded.get(i).left());
+                    assertArrayEquals(complementingHashes.get(i).sha256(), decoded.get(i).sha256());
+                }
+                assertTrue(MerkleTree.verifyFile(new LeafNode(file.getSha256()), tree.getTopHash(), decoded));
+            }
+        }
+    }
+
+    @Test
+    void compactIsSmaller() throws IOException {
+        Set<FileInfo> files = randomFiles(16);
+        MerkleTree tree = MerkleTree.fromFiles(files);
+        List<ComplementingHash> complementingHashes = tree.getComplementingHashes(files.iterator().next().getFileId());
+        assertTrue(encode(ProofFormat.COMPACT, complementingHashes).length < encode(ProofFormat.LEGACY, complementingHashes).length);
+    }
+
+    @Test
+    void truncatedCompactIsRejected() throws IOException {
+        Set<FileInfo> files = randomFiles(16);
+        MerkleTree tree = MerkleTree.fromFiles(files);
+        byte[] bytes = encode(ProofFormat.COMPACT, tree.getComplementingHashes(files.iterator().next().getFileId()));
+        assertThrows(IOException.class, () -> decode(ProofFormat.COMPACT, Arrays.copyOf(bytes, bytes.length - 1)));
+    }
+
+    @Test
+    void negotiate() throws IOException {
+        assertEquals(ProofFormat.LEGACY, ProofFormat.negotiate(null));
+        assertEquals(ProofFormat.COMPACT, ProofFormat.negotiate(ProofFormat.COMPACT.headerValue()));
+        assertEquals(ProofFormat.LEGACY, ProofFormat.fromHeader(null));
+        assertEquals(ProofFormat.COMPACT, ProofFormat.fromHeader(ProofFormat.COMPACT.headerValue()));
+        assertThrows(IOException.class, () -> ProofFormat.fromHeader("unknown"));
+    }
+}
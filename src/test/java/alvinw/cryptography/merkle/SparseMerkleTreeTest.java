@@ -0,0 +1,98 @@
+package alvinw.cryptography.merkle;
+
+import alvinw.cryptography.CryptoUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SparseMerkleTreeTest {
+    private static List<FileInfo> randomFiles(int count) {
+        List<FileInfo> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            files.add(new FileInfo(CryptoUtils.randomBytes(32), CryptoUtils.randomBytes(16)));
+        }
+        return files;
+    }
+
+    @Test
+    void membership() {
+        List<FileInfo> files = randomFiles(100);
+        SparseMerkleTree tree = SparseMerkleTree.fromFiles(files);
+        for (FileInfo file : files) {
+            SparseMerkleTree.Proof proof = tree.getProof(file.getFileId());
+            assertTrue(SparseMerkleTree.verify(tree.getTopHash(), file.getFileId(), file.getSha256(), proof));
+            assertFalse(SparseMerkleTree.verify(tree.getTopHash(), file.getFileId(), null, proof));
+            assertFalse(SparseMerkleTree.verify(tree.getTopHash(), file.getFileId(), CryptoUtils.randomBytes(32), proof));
+        }
+    }
+
+    @Test
+    void nonMembership() {
+        SparseMerkleTree tree = SparseMerkleTree.fromFiles(randomFiles(100));
+        for (int i = 0; i < 100; i++) {
+            byte[] fileId = CryptoUtils.randomBytes(32);
+            assertNull(tree.get(fileId));
+            SparseMerkleTree.Proof proof = tree.getProof(fileId);
+            assertTrue(SparseMerkleTree.verify(tree.getTopHash(), fileId, null, proof));
+            assertFalse(SparseMerkleTree.verify(tree.getTopHash(), fileId, CryptoUtils.randomBytes(32), proof));
+        }
+    }
+
+    @Test
+    void nonMembershipNextToStoredFile() {
+        FileInfo file = new FileInfo(CryptoUtils.randomBytes(32), CryptoUtils.randomBytes(16));
+        SparseMerkleTree tree = SparseMerkleTree.fromFiles(List.of(file));
+        // Differs from the stored file id only in the last bit
+        byte[] fileId = file.getFileId().clone();
+        fileId[31] ^= 1;
+        SparseMerkleTree.Proof proof = tree.getProof(fileId);
+        assertTrue(SparseMerkleTree.verify(tree.getTopHash(), fileId, null, proof));
+        assertFalse(SparseMerkleTree.verify(tree.getTopHash(), file.getFileId(), null, tree.getProof(file.getFileId())));
+    }
+
+    @Test
+    void emptyTree() {
+        SparseMerkleTree tree = SparseMerkleTree.fromFiles(List.of());
+        byte[] fileId = CryptoUtils.randomBytes(32);
+        assertTrue(SparseMerkleTree.verify(tree.getTopHash(), fileId, null, tree.getProof(fileId)));
+    }
+
+    @Test
+    void putMatchesFromFiles() {
+        List<FileInfo> files = randomFiles(50);
+        SparseMerkleTree tree = SparseMerkleTree.fromFiles(List.of());
+        for (FileInfo file : files) {
+            tree.put(file);
+        }
+        assertArrayEquals(SparseMerkleTree.fromFiles(files).getTopHash(), tree.getTopHash());
+
+        FileInfo replaced = new FileInfo(files.get(0).getFileId(), CryptoUtils.randomBytes(16));
+        tree.put(replaced);
+        assertArrayEquals(replaced.getSha256(), tree.get(replaced.getFileId()));
+        assertTrue(SparseMerkleTree.verify(tree.getTopHash(), replaced.getFileId(), replaced.getSha256(),
+            tree.getProof(replaced.getFileId())));
+    }
+
+    @Test
+    void writeAndRead() throws IOException {
+        List<FileInfo> files = randomFiles(20);
+        SparseMerkleTree tree = SparseMerkleTree.fromFiles(files);
+        FileInfo file = files.get(3);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        tree.getProof(file.getFileId()).write(new DataOutputStream(output));
+        SparseMerkleTree.Proof proof = SparseMerkleTree.Proof.read(new DataInputStream(new ByteArrayInputStream(output.toByteArray())));
+        assertTrue(SparseMerkleTree.verify(tree.getTopHash(), file.getFileId(), file.getSha256(), proof));
+    }
+}
@@ -0,0 +1,100 @@
+package alvinw.cryptography.server;
+
+import alvinw.cryptography.CryptoUtils;
+import alvinw.cryptography.merkle.FlatMerkleTree;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileBlobStoreTest {
+    private static final int FILES = 100;
+
+    @TempDir
+    Path root;
+
+    private FileStorage open(int shardDepth) throws IOException {
+        FileBlobStore blobStore = new FileBlobStore(this.root, 1, shardDepth, new Metrics());
+        FileStorage fileStorage = new FileStorage(blobStore, files -> FlatMerkleTree.fromFiles(files, false), new Metrics());
+        fileStorage.load();
+        return fileStorage;
+    }
+
+    private boolean hasFlatFiles() throws IOException {
+        try (Stream<Path> paths = Files.list(this.root)) {
+            return paths.map(path -> path.getFileName().toString())
+                .anyMatch(name -> name.endsWith(".bin") || name.endsWith(".chunks"));
+        }
+    }
+
+    private static byte[] read(FileStorage fileStorage, byte[] fileId) throws IOException {
+        try (FileStorage.OpenFile file = fileStorage.openFile(fileId)) {
+            assertNotNull(file);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            file.blob().transferTo(0, file.blob().size(), Channels.newChannel(output));
+            return output.toByteArray();
+        }
+    }
+
+    @Test
+    void migrateFlatStorageToShards() throws IOException, InterruptedException {
+        // A storage from before sharding keeps its files in the root directory
+        FileStorage flat = this.open(0);
+        Map<String, byte[]> contents = new HashMap<>();
+        for (int i = 0; i < FILES; i++) {
+            byte[] content = CryptoUtils.randomBytes(i * 37);
+            flat.store(flat.getFileId("file" + i), content);
+            contents.put("file" + i, content);
+        }
+        byte[] topHash = flat.getTopHash();
+        flat.close();
+        Files.delete(this.root.resolve("shard_depth"));
+        assertTrue(this.hasFlatFiles());
+
+        FileStorage sharded = this.open(FileBlobStore.DEFAULT_SHARD_DEPTH);
+        assertArrayEquals(topHash, sharded.getTopHash());
+        // Files can be read and replaced while they are moved
+        for (int i = 0; i < FILES; i += 2) {
+            String fileName = "file" + i;
+            assertArrayEquals(contents.get(fileName), read(sharded, sharded.getFileId(fileName)));
+            byte[] content = CryptoUtils.randomBytes(10);
+            sharded.store(sharded.getFileId(fileName), content);
+            contents.put(fileName, content);
+        }
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (this.hasFlatFiles() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(this.hasFlatFiles());
+        topHash = sharded.getTopHash();
+        sharded.close();
+
+        FileStorage reloaded = this.open(FileBlobStore.DEFAULT_SHARD_DEPTH);
+        assertArrayEquals(topHash, reloaded.getTopHash());
+        assertEquals(FILES, reloaded.getMerkleTree().size());
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            assertArrayEquals(entry.getValue(), read(reloaded, reloaded.getFileId(entry.getKey())));
+        }
+        reloaded.close();
+    }
+
+    @Test
+    void otherShardDepthIsRejected() throws IOException {
+        this.open(FileBlobStore.DEFAULT_SHARD_DEPTH).close();
+        assertThrows(IOException.class, () -> this.open(1));
+    }
+}
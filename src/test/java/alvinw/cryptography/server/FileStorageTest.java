@@ -0,0 +1,201 @@
+package alvinw.cryptography.server;
+
+import alvinw.cryptography.CryptoUtils;
+import alvinw.cryptography.merkle.ChunkTree;
+import alvinw.cryptography.merkle.ComplementingHash;
+import alvinw.cryptography.merkle.FileInfo;
+import alvinw.cryptography.merkle.FlatMerkleTree;
+import alvinw.cryptography.merkle.LeafNode;
+import alvinw.cryptography.merkle.MerkleTree;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileStorageTest {
+    private static final int FILES = 20;
+    private static final int THREADS = 8;
+
+    @TempDir
+    Path root;
+
+    @Test
+    void concurrentStoresAndReadsSeeConsistentSnapshots() throws IOException, InterruptedException, ExecutionException {
+        FileStorage fileStorage = new FileStorage(this.root);
+        fileStorage.load();
+        // Every top hash that was ever published, since a file may be read from a
+        // snapshot that is replaced before the reader checks it
+        Set<String> topHashes = ConcurrentHashMap.newKeySet();
+        topHashes.add(CryptoUtils.hexString(fileStorage.getTopHash()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                Random random = new Random(thread);
+                boolean writer = thread % 2 == 0;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        byte[] fileId = fileStorage.getFileId("file" + random.nextInt(FILES));
+                        if (writer) {
+                            try (FileStorage.Batch batch = fileStorage.beginBatch()) {
+                                FileInfo file = batch.add(fileId, new ByteArrayInputStream(CryptoUtils.randomBytes(random.nextInt(3000))));
+                                FileStorage.Commit commit = batch.commit();
+                                topHashes.add(CryptoUtils.hexString(commit.snapshot().topHash()));
+                                assertTrue(MerkleTree.verifyFile(new LeafNode(file.getSha256()), commit.snapshot().topHash(),
+                                    commit.complementingHashes(0)));
+                            }
+                        } else {
+                            FileStorage.Snapshot snapshot = fileStorage.getSnapshot();
+                            List<ComplementingHash> complementingHashes = snapshot.tree().getComplementingHashes(fileId);
+                            if (complementingHashes != null) {
+                                assertEquals(snapshot.size(), snapshot.tree().size());
+                                assertArrayEquals(snapshot.topHash(), snapshot.tree().getTopHash());
+                            }
+                            this.assertOpenFileIsPublished(fileStorage, fileId, topHashes);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        MerkleTree tree = fileStorage.getMerkleTree();
+        assertEquals(FILES, tree.size());
+        assertArrayEquals(fileStorage.getTopHash(), tree.getTopHash());
+        fileStorage.close();
+
+        FileStorage reloaded = new FileStorage(this.root);
+        reloaded.load();
+        assertArrayEquals(tree.getTopHash(), reloaded.getTopHash());
+        reloaded.close();
+    }
+
+
+    @Test
+    void failedBatchCommitKeepsTreeInSyncWithDisk() throws IOException {
+        byte[] failingFileId = CryptoUtils.randomBytes(32);
+        FileBlobStore fileBlobStore = new FileBlobStore(this.root, 1, FileBlobStore.DEFAULT_SHARD_DEPTH, new Metrics());
+        BlobStore blobStore = new BlobStore() {
+            @Override
+            public List<FileInfo> load() throws IOException {
+                return fileBlobStore.load();
+            }
+
+            @Override
+            public Stream<byte[]> listFiles() throws IOException {
+                return fileBlobStore.listFiles();
+            }
+
+            @Override
+            public Writer create(byte[] fileId) throws IOException {
+                Writer writer = fileBlobStore.create(fileId);
+                if (!Arrays.equals(fileId, failingFileId)) {
+                    return writer;
+                }
+                return new Writer() {
+                    @Override
+                    public OutputStream output() {
+                        return writer.output();
+                    }
+
+                    @Override
+                    public void finish(ChunkTree chunkTree) throws IOException {
+                        writer.finish(chunkTree);
+                    }
+
+                    @Override
+                    public void commit() throws IOException {
+                        throw new IOException("Disk full");
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        writer.close();
+                    }
+                };
+            }
+
+            @Override
+            public @Nullable Blob open(byte[] fileId) throws IOException {
+                return fileBlobStore.open(fileId);
+            }
+
+            @Override
+            public void close() throws IOException {
+                fileBlobStore.close();
+            }
+        };
+        FileStorage fileStorage = new FileStorage(blobStore, files -> FlatMerkleTree.fromFiles(files, false), new Metrics());
+        fileStorage.load();
+
+        try (FileStorage.Batch batch = fileStorage.beginBatch()) {
+            batch.add(CryptoUtils.randomBytes(32), new ByteArrayInputStream(CryptoUtils.randomBytes(100)));
+            batch.add(CryptoUtils.randomBytes(32), new ByteArrayInputStream(CryptoUtils.randomBytes(100)));
+            batch.add(failingFileId, new ByteArrayInputStream(CryptoUtils.randomBytes(100)));
+            assertThrows(IOException.class, batch::commit);
+        }
+        // The two files that were committed before the failure are on disk, so
+        // they must be in the tree too
+        assertEquals(2, fileStorage.getMerkleTree().size());
+        byte[] topHash = fileStorage.getTopHash();
+        fileStorage.close();
+
+        FileStorage reloaded = new FileStorage(this.root);
+        reloaded.load();
+        assertArrayEquals(topHash, reloaded.getTopHash());
+        reloaded.close();
+    }
+
+    /**
+     * Open a file and check that its content and proof lead to a top hash that
+     * was published by a commit.
+     */
+    private void assertOpenFileIsPublished(FileStorage fileStorage, byte[] fileId, Set<String> topHashes) throws IOException {
+        try (FileStorage.OpenFile file = fileStorage.openFile(fileId)) {
+            if (file == null) {
+                return;
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            file.blob().transferTo(0, file.blob().size(), Channels.newChannel(output));
+            FileInfo fileInfo = new FileInfo(fileId, output.toByteArray());
+            assertArrayEquals(fileInfo.getSha256(), file.readChunkTree().getRootHash());
+            byte[] topHash = MerkleTree.reconstruct(fileInfo.getSha256(), file.complementingHashes()).getTopHash();
+            assertNotNull(topHash);
+            // The commit that published the snapshot may still be recording its top hash
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (!topHashes.contains(CryptoUtils.hexString(topHash)) && System.nanoTime() < deadline) {
+                Thread.onSpinWait();
+            }
+            assertTrue(topHashes.contains(CryptoUtils.hexString(topHash)));
+        }
+    }
+}
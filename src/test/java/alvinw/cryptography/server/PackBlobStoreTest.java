@@ -0,0 +1,115 @@
+package alvinw.cryptography.server;
+
+import alvinw.cryptography.CryptoUtils;
+import alvinw.cryptography.merkle.ChunkTree;
+import alvinw.cryptography.merkle.FileInfo;
+import alvinw.cryptography.merkle.FlatMerkleTree;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackBlobStoreTest {
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @TempDir
+    Path root;
+
+    private FileStorage open() throws IOException {
+        PackBlobStore blobStore = new PackBlobStore(this.root, SEGMENT_SIZE, Log.disabled());
+        FileStorage fileStorage = new FileStorage(blobStore, files -> FlatMerkleTree.fromFiles(files, false), new Metrics());
+        fileStorage.load();
+        return fileStorage;
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> paths = Files.list(this.root)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(".pack")).count();
+        }
+    }
+
+    private static void assertContents(FileStorage fileStorage, Map<String, byte[]> contents) throws IOException {
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            try (FileStorage.OpenFile file = fileStorage.openFile(fileStorage.getFileId(entry.getKey()))) {
+                assertNotNull(file);
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                file.blob().transferTo(0, file.blob().size(), Channels.newChannel(output));
+                assertArrayEquals(entry.getValue(), output.toByteArray());
+                assertArrayEquals(ChunkTree.of(entry.getValue()).getRootHash(), file.readChunkTree().getRootHash());
+            }
+        }
+    }
+
+    @Test
+    void reloadAfterCompaction() throws IOException {
+        Map<String, byte[]> contents = new HashMap<>();
+        PackBlobStore blobStore = new PackBlobStore(this.root, SEGMENT_SIZE, Log.disabled());
+        FileStorage fileStorage = new FileStorage(blobStore, files -> FlatMerkleTree.fromFiles(files, false), new Metrics());
+        fileStorage.load();
+        // Replace every file a few times, so the old segments are mostly unused
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 20; i++) {
+                byte[] content = CryptoUtils.randomBytes(10_000 + i);
+                fileStorage.store(fileStorage.getFileId("file" + i), content);
+                contents.put("file" + i, content);
+            }
+        }
+        long segmentsBefore = this.segmentCount();
+        blobStore.compact();
+        assertTrue(this.segmentCount() < segmentsBefore);
+        assertContents(fileStorage, contents);
+        byte[] topHash = fileStorage.getTopHash();
+        fileStorage.close();
+
+        FileStorage reloaded = this.open();
+        assertArrayEquals(topHash, reloaded.getTopHash());
+        assertContents(reloaded, contents);
+        try (Stream<byte[]> fileIds = reloaded.listFiles()) {
+            assertEquals(contents.size(), fileIds.count());
+        }
+
+        // Files can still be replaced after the reload
+        byte[] content = CryptoUtils.randomBytes(100);
+        reloaded.store(reloaded.getFileId("file0"), content);
+        contents.put("file0", content);
+        assertContents(reloaded, contents);
+        reloaded.close();
+    }
+
+    @Test
+    void reloadKeepsHashes() throws IOException {
+        FileStorage fileStorage = this.open();
+        Map<String, byte[]> contents = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            byte[] content = CryptoUtils.randomBytes(i * 1000);
+            fileStorage.store(fileStorage.getFileId("file" + i), content);
+            contents.put("file" + i, content);
+        }
+        fileStorage.close();
+
+        PackBlobStore blobStore = new PackBlobStore(this.root, SEGMENT_SIZE, Log.disabled());
+        List<FileInfo> loaded = blobStore.load();
+        Map<String, FileInfo> expected = contents.entrySet().stream()
+            .map(entry -> FileInfo.ofHash(fileStorage.getFileId(entry.getKey()), ChunkTree.of(entry.getValue()).getRootHash()))
+            .collect(Collectors.toMap(file -> CryptoUtils.hexString(file.getFileId()), file -> file));
+        assertEquals(expected.size(), loaded.size());
+        for (FileInfo file : loaded) {
+            assertArrayEquals(expected.get(CryptoUtils.hexString(file.getFileId())).getSha256(), file.getSha256());
+        }
+        blobStore.close();
+    }
+}